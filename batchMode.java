@@ -0,0 +1,531 @@
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Non-interactive batch processing of many images.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java imageEditor batch --input photos/ --ops sepia,blur:2 --output out/ [--format png] [--threads 8]
+ *      [--cache-mb 512] [--cache-dir cache/] [--cache-disk-mb 4096] [--pool-mb 256]
+ *      [--quality 0.85] [--progressive] [--preview 512] [--sizes 1600,800,256]
+ *      [--spill /scratch] [--spill-mb 64]
+ * </pre>
+ *
+ * The input is a directory (every image directly inside it) or a glob such as
+ * "photos/*.jpg". Each file is decoded on an IO pool, processed on a bounded
+ * CPU pool and encoded on the IO pool again, so reading and writing overlap
+ * with processing. A failing file is reported and skipped without stopping
+ * the batch, and a throughput summary is printed at the end.
+ *
+ * Files are decoded and encoded through {@link codec}, which reuses the
+ * readers and writers of each IO thread. Results are written in the format
+ * of their input unless --format is given; --quality and --progressive tune
+ * the writer, and --preview N decodes at a reduced resolution whose longer
+ * side is still at least N pixels, for preview and thumbnail jobs.
+ *
+ * --sizes writes one file per size instead of the full result, named e.g.
+ * "photo-256.jpg", each shrunk to fit its size. All sizes of a file are made
+ * from the one processed image with {@link resize#resizeAll}, which shares
+ * the halving pyramid between them.
+ *
+ * With --cache-mb, results are looked up in a {@link resultCache} keyed by
+ * the file contents before anything is decoded, so re-running a chain on the
+ * same files only re-encodes them, and a longer chain starts from the cached
+ * result of its prefix. --cache-dir adds a disk tier that outlives the run.
+ *
+ * Without a cache, intermediate and encoded images go back to an
+ * {@link imagePool} of --pool-mb megabytes (256 by default, 0 to disable),
+ * so that a batch of same-sized photos stops allocating after the first few
+ * images, and point operations run in place on the decoded image.
+ *
+ * With --spill, every intermediate image of at least --spill-mb megabytes
+ * (64 by default) is a {@link mappedStore} image in a temporary file of that
+ * directory instead of a heap image, for inputs too large to process on the
+ * heap.
+ */
+public class batchMode {
+
+    private static final String USAGE = "Usage: java imageEditor batch --input <dir|glob> --ops <chain>"
+            + " --output <dir> [--format jpg|png|bmp|gif] [--threads N]\n"
+            + "       [--cache-mb MB] [--cache-dir <dir>] [--cache-disk-mb MB] [--pool-mb MB]\n"
+            + "       [--quality 0..1] [--progressive] [--preview PIXELS] [--sizes N,N,...]\n"
+            + "       [--spill <dir>] [--spill-mb MB]\n"
+            + "  chain steps: gray, brightness:P, negative, sepia, rotate:DEG, rotateccw:DEG, mirrorh, mirrorv,\n"
+            + "               red, green, blue, pixelate:N, blur[:R], gaussian:SIGMA, autolevels[:CLIP], equalize,\n"
+            + "               sharpen, edges, emboss, scale:P, fit:SIZE";
+
+    private static final String[] IMAGE_SUFFIXES = { ".jpg", ".jpeg", ".png", ".bmp", ".gif", ".wbmp", ".tif",
+            ".tiff" };
+
+    private final List<Path> inputs;
+    private final opChain ops;
+    private final Path outputDir;
+    private final String format;
+    private final int threads;
+    private final resultCache cache;
+    private final imagePool pool;
+    private final codec imageCodec;
+    private final int[] sizes;
+    private final mappedStore spill;
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+
+    batchMode(List<Path> inputs, opChain ops, Path outputDir, String format, int threads, resultCache cache,
+            imagePool pool, codec imageCodec, int[] sizes, mappedStore spill) {
+        this.inputs = inputs;
+        this.ops = ops;
+        this.outputDir = outputDir;
+        this.format = format;
+        this.threads = threads;
+        this.cache = cache;
+        this.pool = pool;
+        this.imageCodec = imageCodec;
+        this.sizes = sizes;
+        this.spill = spill;
+    }
+
+    /**
+     * A file on its way through the pipeline: its cache key, its format, the
+     * image with the first steps of the chain already applied, and finally
+     * the result, or the results of every --sizes entry.
+     */
+    private static final class Work {
+        final String key;
+        final String format;
+        final resultCache.Entry start;
+        BufferedImage result;
+        BufferedImage[] sized;
+
+        Work(String key, String format, resultCache.Entry start) {
+            this.key = key;
+            this.format = format;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Entry point of the batch command.
+     *
+     * @param args The command-line arguments, without the leading "batch".
+     * @throws IOException If the input cannot be listed or the output directory created.
+     */
+    public static void main(String[] args) throws IOException {
+        String input = null;
+        String chain = null;
+        String output = null;
+        String format = "same";
+        float quality = -1;
+        boolean progressive = false;
+        int preview = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long cacheMegabytes = 0;
+        String cacheDir = null;
+        long cacheDiskMegabytes = 1024;
+        long poolMegabytes = 256;
+        int[] sizes = null;
+        String spillDir = null;
+        long spillMegabytes = mappedStore.DEFAULT_MIN_BYTES >> 20;
+
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--input":
+                    input = value;
+                    break;
+                case "--ops":
+                    chain = value;
+                    break;
+                case "--output":
+                    output = value;
+                    break;
+                case "--format":
+                    format = value == null ? null : value.toLowerCase(Locale.ROOT);
+                    break;
+                case "--threads":
+                    try {
+                        threads = Integer.parseInt(String.valueOf(value));
+                    } catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    break;
+                case "--cache-mb":
+                case "--cache-disk-mb":
+                case "--pool-mb":
+                case "--spill-mb":
+                    long megabytes;
+                    try {
+                        megabytes = Long.parseLong(String.valueOf(value));
+                    } catch (NumberFormatException e) {
+                        megabytes = -1;
+                    }
+                    if (args[i].equals("--cache-mb")) {
+                        cacheMegabytes = megabytes;
+                    } else if (args[i].equals("--pool-mb")) {
+                        poolMegabytes = megabytes;
+                    } else if (args[i].equals("--spill-mb")) {
+                        spillMegabytes = megabytes;
+                    } else {
+                        cacheDiskMegabytes = megabytes;
+                    }
+                    break;
+                case "--cache-dir":
+                    cacheDir = value;
+                    break;
+                case "--spill":
+                    spillDir = value;
+                    break;
+                case "--quality":
+                    try {
+                        quality = Float.parseFloat(String.valueOf(value));
+                    } catch (NumberFormatException e) {
+                        quality = Float.NaN;
+                    }
+                    break;
+                case "--progressive":
+                    progressive = true;
+                    // A flag without a value.
+                    i--;
+                    break;
+                case "--preview":
+                    try {
+                        preview = Integer.parseInt(String.valueOf(value));
+                    } catch (NumberFormatException e) {
+                        preview = -1;
+                    }
+                    break;
+                case "--sizes":
+                    sizes = parseSizes(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.err.println(USAGE);
+                    System.exit(2);
+                    return;
+            }
+            i++;
+        }
+        if (input == null || chain == null || output == null || format == null || threads < 1
+                || cacheMegabytes < 0 || cacheDiskMegabytes < 0 || poolMegabytes < 0 || spillMegabytes < 0
+                || !(quality == -1 || quality >= 0 && quality <= 1) || preview < 0
+                || sizes != null && sizes.length == 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (!format.equals("same") && !codec.canWrite(format)) {
+            System.err.println("No image writer for format " + format);
+            System.exit(2);
+            return;
+        }
+
+        opChain ops;
+        try {
+            ops = opChain.parse(chain);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        List<Path> inputs = listInputs(input);
+        Path outputDir = Paths.get(output);
+        Files.createDirectories(outputDir);
+
+        resultCache cache = null;
+        if (cacheMegabytes > 0 || cacheDir != null) {
+            cache = new resultCache(cacheMegabytes << 20, cacheDir == null ? null : Paths.get(cacheDir),
+                    cacheDiskMegabytes << 20);
+        }
+
+        // Cached results are shared, so only an uncached batch can recycle its images.
+        imagePool pool = cache == null && poolMegabytes > 0 ? new imagePool(poolMegabytes << 20) : null;
+
+        mappedStore spill = null;
+        if (spillDir != null) {
+            Files.createDirectories(Paths.get(spillDir));
+            spill = new mappedStore(new File(spillDir), mappedStore.Layout.INTERLEAVED, spillMegabytes << 20);
+        }
+
+        codec imageCodec = new codec().quality(quality).progressive(progressive).preview(preview);
+        boolean ok = new batchMode(inputs, ops, outputDir, format.equals("same") ? null : format, threads,
+                cache, pool, imageCodec, sizes, spill).run();
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Processes every input file and prints a summary.
+     *
+     * @return Whether every file was processed successfully.
+     */
+    boolean run() {
+        ThreadPoolExecutor ioPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(Math.max(2, threads / 2));
+        ThreadPoolExecutor cpuPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+        metrics.registerGauge("batch.io.queued", () -> ioPool.getQueue().size());
+        metrics.registerGauge("batch.cpu.queued", () -> cpuPool.getQueue().size());
+
+        // Cap the number of decoded images in memory at once.
+        Semaphore inFlight = new Semaphore(threads * 2);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> jobs = new ArrayList<>();
+        for (Path file : inputs) {
+            inFlight.acquireUninterruptibly();
+
+            // Whole images are processed in parallel, so each filter runs on the thread of its image,
+            // leaving the parallelism of the rest of the process as it is.
+            CompletableFuture<Void> job = CompletableFuture.supplyAsync(() -> decode(file), ioPool)
+                    .thenApplyAsync(work -> parallelExecutor.sequential(() -> process(work)), cpuPool)
+                    .thenAcceptAsync(work -> encode(file, work), ioPool)
+                    .handle((ignored, error) -> {
+                        inFlight.release();
+                        if (error == null) {
+                            succeeded.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                            Throwable cause = error.getCause() != null ? error.getCause() : error;
+                            System.err.println("FAILED " + file + ": " + cause);
+                        }
+                        return null;
+                    });
+            jobs.add(job);
+        }
+        CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+
+        ioPool.shutdown();
+        cpuPool.shutdown();
+        try {
+            ioPool.awaitTermination(1, TimeUnit.MINUTES);
+            cpuPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        printSummary(elapsed);
+        return failed.get() == 0;
+    }
+
+    private Work decode(Path file) {
+        try {
+            // Look for a cached result before paying for the decode.
+            String key = null;
+            if (cache != null) {
+                // A preview decode is a different source than the full image.
+                int preview = imageCodec.getPreview();
+                key = resultCache.sourceKey(file) + (preview > 0 ? "@" + preview : "");
+                resultCache.Entry cached = cache.lookup(key, ops);
+                if (cached != null) {
+                    String inputFormat = format != null ? null : codec.formatOf(file.toFile());
+                    return new Work(key, inputFormat, cached);
+                }
+            }
+            metrics.Span span = metrics.start("decode", extension(file));
+            codec.Decoded decoded;
+            try {
+                decoded = imageCodec.read(file.toFile());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("not a readable image" + (e.getMessage() == null ? ""
+                        : ": " + e.getMessage()), e);
+            }
+            BufferedImage img = decoded.image;
+            long size = (long) img.getWidth() * img.getHeight();
+            metrics.end(span, size);
+            pixels.addAndGet(size);
+            return new Work(key, decoded.format, new resultCache.Entry(0, img));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Work process(Work work) {
+        // Large intermediate images go to the spill directory instead of the heap.
+        return spill == null ? transform(work) : spill.using(() -> transform(work));
+    }
+
+    private Work transform(Work work) {
+        if (cache == null) {
+            // The decoded image is not used after this, so the chain may change or recycle it.
+            work.result = ops.applyConsuming(work.start.image, pool);
+        } else {
+            work.result = cache.finish(work.key, ops, work.start);
+        }
+        if (sizes != null) {
+            work.sized = resizeAll(work.result);
+        }
+        return work;
+    }
+
+    private BufferedImage[] resizeAll(BufferedImage img) {
+        Dimension[] targets = new Dimension[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            targets[s] = resize.fit(img.getWidth(), img.getHeight(), sizes[s]);
+        }
+        if (pool == null) {
+            return resize.resizeAll(img, targets, resize.Filter.LANCZOS3);
+        }
+        // The pyramid levels come from the pool and go back to it, and so does the full result.
+        BufferedImage[] sized = pool.using(() -> resize.resizeAll(img, targets, resize.Filter.LANCZOS3));
+        pool.release(img);
+        return sized;
+    }
+
+    private void encode(Path file, Work work) {
+        String outputFormat = format != null ? format : work.format;
+        if (outputFormat == null) {
+            throw new IllegalArgumentException("unknown input format");
+        }
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = format != null ? format : codec.extension(outputFormat);
+        if (work.sized == null) {
+            encode(work.result, outputFormat, outputDir.resolve(base + "." + extension).toFile());
+            return;
+        }
+        for (int s = 0; s < sizes.length; s++) {
+            encode(work.sized[s], outputFormat, outputDir.resolve(base + "-" + sizes[s] + "." + extension).toFile());
+        }
+    }
+
+    private void encode(BufferedImage img, String outputFormat, File target) {
+        try {
+            metrics.Span span = metrics.start("encode", outputFormat);
+            imageCodec.write(img, outputFormat, target);
+            metrics.end(span, (long) img.getWidth() * img.getHeight());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (pool != null) {
+            pool.release(img);
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of sizes.
+     *
+     * @param text The list, e.g. "1600,800,256".
+     * @return The sizes, or an empty array if the list is missing or invalid.
+     */
+    private static int[] parseSizes(String text) {
+        if (text == null) {
+            return new int[0];
+        }
+        String[] parts = text.split(",");
+        int[] sizes = new int[parts.length];
+        for (int s = 0; s < parts.length; s++) {
+            try {
+                sizes[s] = Integer.parseInt(parts[s].trim());
+            } catch (NumberFormatException e) {
+                return new int[0];
+            }
+            if (sizes[s] < 1) {
+                return new int[0];
+            }
+        }
+        return sizes;
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        int done = succeeded.get();
+        System.out.printf(Locale.ROOT, "Processed %d image(s), %d failed, in %.2f s%n", done, failed.get(), seconds);
+        System.out.printf(Locale.ROOT, "Throughput: %.2f images/s, %.2f MP/s%n", done / seconds,
+                pixels.get() / 1e6 / seconds);
+        if (cache != null) {
+            System.out.println(cache);
+        }
+        if (pool != null) {
+            System.out.println(pool);
+        }
+    }
+
+    /**
+     * Lists the files selected by a directory or a glob pattern.
+     *
+     * @param input A directory, a single file, or a glob such as "photos/*.jpg".
+     * @return The matching files, sorted by path.
+     * @throws IOException If a directory cannot be listed.
+     */
+    static List<Path> listInputs(String input) throws IOException {
+        if (firstWildcard(input) == input.length()) {
+            Path path = Paths.get(input);
+            if (Files.isRegularFile(path)) {
+                return List.of(path);
+            }
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(Files::isRegularFile).filter(batchMode::isImageName).sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+
+        // Walk from the directory part of the pattern that has no wildcards.
+        String normalized = input.replace('\\', '/');
+        int wildcard = firstWildcard(normalized);
+        int slash = normalized.lastIndexOf('/', wildcard);
+        Path base = slash < 0 ? Paths.get(".") : Paths.get(normalized.substring(0, slash + 1));
+        String pattern = normalized.substring(slash + 1);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/").length;
+
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(base, depth)) {
+            return files.filter(Files::isRegularFile).filter(p -> matcher.matches(base.relativize(p))).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int firstWildcard(String pattern) {
+        int first = pattern.length();
+        for (char c : new char[] { '*', '?', '{', '[' }) {
+            int i = pattern.indexOf(c);
+            if (i >= 0) {
+                first = Math.min(first, i);
+            }
+        }
+        return first;
+    }
+
+    private static String extension(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isImageName(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String suffix : IMAGE_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,213 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Micro-benchmarks for every public imageEditor operation.
+ *
+ * Each operation is run on synthetic images of several sizes and source
+ * pixel types. After warm-up iterations, the measured iterations report the
+ * time per pixel, the bytes allocated per call and per second (summed over
+ * all threads, including the filter worker pool), and the GC time spent.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java -Xmx3g imageEditor bench [--sizes 1,12,48] [--types bgr,int_rgb,int_argb,gray]
+ *      [--ops sepia,blur] [--warmup 3] [--iterations 5] [--parallelism N]
+ * </pre>
+ */
+public class benchmarkSuite {
+
+    private static final Map<String, UnaryOperator<BufferedImage>> OPERATIONS = new LinkedHashMap<>();
+    private static final Map<String, Integer> TYPES = new LinkedHashMap<>();
+
+    static {
+        OPERATIONS.put("grayScale", imageEditor::grayScale);
+        OPERATIONS.put("changeBrightness", img -> imageEditor.changeBrightness(img, 20));
+        OPERATIONS.put("negative", imageEditor::negative);
+        OPERATIONS.put("sepia", imageEditor::sepia);
+        OPERATIONS.put("rotate", img -> imageEditor.rotate(img, 30));
+        OPERATIONS.put("rotateCounterclockwise", img -> imageEditor.rotateCounterclockwise(img, 30));
+        OPERATIONS.put("mirrorHorizontal", imageEditor::mirrorHorizontal);
+        OPERATIONS.put("mirrorVertical", imageEditor::mirrorVertical);
+        OPERATIONS.put("redFilter", imageEditor::redFilter);
+        OPERATIONS.put("greenFilter", imageEditor::greenFilter);
+        OPERATIONS.put("blueFilter", imageEditor::blueFilter);
+        OPERATIONS.put("pixelate", img -> imageEditor.pixelate(img, 16));
+        OPERATIONS.put("blur", imageEditor::blur);
+        OPERATIONS.put("sharpen", imageEditor::sharpen);
+        OPERATIONS.put("detectEdges", imageEditor::detectEdges);
+        OPERATIONS.put("emboss", imageEditor::emboss);
+        OPERATIONS.put("autoLevels", imageEditor::autoLevels);
+        OPERATIONS.put("equalize", imageEditor::equalize);
+        OPERATIONS.put("resize", img -> imageEditor.resize(img, img.getWidth() * 2 / 3, img.getHeight() * 2 / 3));
+        OPERATIONS.put("thumbnail", img -> imageEditor.thumbnail(img, 256));
+
+        TYPES.put("bgr", BufferedImage.TYPE_3BYTE_BGR);
+        TYPES.put("int_rgb", BufferedImage.TYPE_INT_RGB);
+        TYPES.put("int_argb", BufferedImage.TYPE_INT_ARGB);
+        TYPES.put("abgr", BufferedImage.TYPE_4BYTE_ABGR);
+        TYPES.put("gray", BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    // Keeps results reachable so the JIT cannot drop the work.
+    private static volatile int sink;
+
+    /**
+     * Entry point of the bench command.
+     *
+     * @param args The command-line arguments, without the leading "bench".
+     */
+    public static void main(String[] args) {
+        List<Integer> sizes = List.of(1, 12, 48);
+        List<String> types = List.of("bgr", "int_rgb", "int_argb", "gray");
+        List<String> ops = new ArrayList<>(OPERATIONS.keySet());
+        int warmup = 3;
+        int iterations = 5;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = new ArrayList<>();
+                    for (String s : value.split(",")) {
+                        sizes.add(Integer.parseInt(s.trim()));
+                    }
+                    break;
+                case "--types":
+                    types = List.of(value.split(","));
+                    break;
+                case "--ops":
+                    ops = List.of(value.split(","));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--parallelism":
+                    parallelExecutor.setParallelism(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        for (String op : ops) {
+            if (!OPERATIONS.containsKey(op)) {
+                throw new IllegalArgumentException("unknown operation " + op + ", expected one of "
+                        + OPERATIONS.keySet());
+            }
+        }
+        for (String type : types) {
+            if (!TYPES.containsKey(type)) {
+                throw new IllegalArgumentException("unknown type " + type + ", expected one of " + TYPES.keySet());
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "# parallelism %d, warmup %d, iterations %d%n",
+                parallelExecutor.getParallelism(), warmup, iterations);
+        System.out.printf(Locale.ROOT, "%-24s %-9s %5s %12s %10s %14s %12s %9s%n", "operation", "type", "MP",
+                "ms/op", "ns/pixel", "alloc B/op", "alloc MB/s", "gc ms/op");
+
+        for (int megapixels : sizes) {
+            for (String type : types) {
+                BufferedImage img = syntheticImage(megapixels, TYPES.get(type));
+                for (String op : ops) {
+                    run(op, type, megapixels, img, OPERATIONS.get(op), warmup, iterations);
+                }
+            }
+        }
+    }
+
+    private static void run(String name, String type, int megapixels, BufferedImage img,
+            UnaryOperator<BufferedImage> op, int warmup, int iterations) {
+        for (int i = 0; i < warmup; i++) {
+            consume(op.apply(img));
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long gcBefore = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            consume(op.apply(img));
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long gc = gcMillis() - gcBefore;
+
+        long pixels = (long) img.getWidth() * img.getHeight();
+        double nanosPerOp = (double) elapsed / iterations;
+        System.out.printf(Locale.ROOT, "%-24s %-9s %5d %12.2f %10.3f %14d %12.1f %9.2f%n", name, type, megapixels,
+                nanosPerOp / 1e6, nanosPerOp / pixels, allocated / iterations,
+                allocated / 1e6 / (elapsed / 1e9), (double) gc / iterations);
+    }
+
+    private static void consume(BufferedImage img) {
+        sink += img.getRGB(img.getWidth() / 2, img.getHeight() / 2);
+    }
+
+    /**
+     * Builds a deterministic noise image with roughly the given number of megapixels, in 4:3.
+     */
+    static BufferedImage syntheticImage(int megapixels, int type) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(megapixels * 1e6 / width);
+        BufferedImage img = new BufferedImage(width, height, type);
+
+        // Cheap xorshift noise written straight into the raster.
+        int state = 0x9E3779B9;
+        if (img.getRaster().getDataBuffer() instanceof DataBufferByte) {
+            byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < data.length; i++) {
+                state ^= state << 13;
+                state ^= state >>> 17;
+                state ^= state << 5;
+                data[i] = (byte) state;
+            }
+        } else {
+            int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < data.length; i++) {
+                state ^= state << 13;
+                state ^= state >>> 17;
+                state ^= state << 5;
+                data[i] = state | 0xFF000000;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Bytes allocated so far by all live threads, or 0 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
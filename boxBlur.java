@@ -0,0 +1,201 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Box and Gaussian blurs whose cost per pixel does not depend on the radius.
+ *
+ * The box blur keeps a running sum per column over a sliding window of rows,
+ * and a running sum of those column sums over a sliding window of columns,
+ * so each pixel costs a handful of additions whatever the radius is. Near the
+ * borders the window shrinks to the pixels that are inside the image, just
+ * like the 3x3 {@link imageEditor#blur(BufferedImage)} always did.
+ *
+ * The Gaussian blur is approximated by three successive box blurs whose sizes
+ * are chosen to match the requested standard deviation.
+ */
+final class boxBlur {
+
+    // Three box passes are within a few percent of a true Gaussian.
+    private static final int GAUSSIAN_PASSES = 3;
+
+    private boxBlur() {
+    }
+
+    /**
+     * Averages every pixel with its neighbors in a (2 * radius + 1) square.
+     *
+     * @param inputImg The input image.
+     * @param radius   The window radius; 0 copies the image.
+     * @return The blurred image, with the output type of the other filters.
+     */
+    static BufferedImage blur(BufferedImage inputImg, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius must not be negative: " + radius);
+        }
+
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg);
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+        int width = src.width;
+        int height = src.height;
+
+        // A window wider than the image covers all of it, whatever its radius; keep the
+        // window edges below from overflowing.
+        int reach = Math.min(radius, Math.max(width, height));
+
+        // Alpha is averaged like the colors, but only summed when there is any.
+        boolean alpha = src.hasAlpha;
+
+        parallelExecutor.forEachBand(height, width, (from, to) -> {
+            int[] row = new int[width];
+
+            // Sums of each column over the rows currently inside the window.
+            int[] columnRed = new int[width];
+            int[] columnGreen = new int[width];
+            int[] columnBlue = new int[width];
+            int[] columnAlpha = alpha ? new int[width] : null;
+
+            // Prime the column sums with the window of the first row of the band.
+            for (int y = Math.max(0, from - reach); y <= Math.min(height - 1, from + reach); y++) {
+                addRow(src, y, row, columnRed, columnGreen, columnBlue, columnAlpha, 1);
+            }
+
+            for (int i = from; i < to; i++) {
+                // Slide the window down: one row enters at the bottom, one leaves at the top.
+                if (i > from) {
+                    if (i + reach < height) {
+                        addRow(src, i + reach, row, columnRed, columnGreen, columnBlue, columnAlpha, 1);
+                    }
+                    if (i - reach - 1 >= 0) {
+                        addRow(src, i - reach - 1, row, columnRed, columnGreen, columnBlue, columnAlpha, -1);
+                    }
+                }
+                int rows = Math.min(height - 1, i + reach) - Math.max(0, i - reach) + 1;
+
+                // Prime the horizontal window of the first pixel of the row.
+                long red = 0, green = 0, blue = 0, opacity = 0;
+                for (int x = 0; x <= Math.min(width - 1, reach); x++) {
+                    red += columnRed[x];
+                    green += columnGreen[x];
+                    blue += columnBlue[x];
+                    if (alpha) {
+                        opacity += columnAlpha[x];
+                    }
+                }
+
+                for (int j = 0; j < width; j++) {
+                    // Slide the window right: one column enters, one leaves.
+                    if (j > 0) {
+                        int enter = j + reach;
+                        if (enter < width) {
+                            red += columnRed[enter];
+                            green += columnGreen[enter];
+                            blue += columnBlue[enter];
+                            if (alpha) {
+                                opacity += columnAlpha[enter];
+                            }
+                        }
+                        int leave = j - reach - 1;
+                        if (leave >= 0) {
+                            red -= columnRed[leave];
+                            green -= columnGreen[leave];
+                            blue -= columnBlue[leave];
+                            if (alpha) {
+                                opacity -= columnAlpha[leave];
+                            }
+                        }
+                    }
+
+                    // Average over the pixels of the window that are inside the image.
+                    int count = rows * (Math.min(width - 1, j + reach) - Math.max(0, j - reach) + 1);
+                    int a = alpha ? (int) (opacity / count) : 0xFF;
+                    row[j] = a << 24 | (int) (red / count) << 16 | (int) (green / count) << 8 | (int) (blue / count);
+                }
+                sink.writeRow(i, row);
+            }
+        });
+
+        return outputImg;
+    }
+
+    /**
+     * Adds (sign 1) or removes (sign -1) a row to the column sums. The alpha
+     * sums are null for opaque images.
+     */
+    private static void addRow(pixelEngine.Source src, int y, int[] row, int[] red, int[] green, int[] blue,
+            int[] alpha, int sign) {
+        src.readRow(y, row);
+        for (int x = 0; x < src.width; x++) {
+            int argb = row[x];
+            red[x] += sign * ((argb >> 16) & 0xFF);
+            green[x] += sign * ((argb >> 8) & 0xFF);
+            blue[x] += sign * (argb & 0xFF);
+        }
+        if (alpha != null) {
+            for (int x = 0; x < src.width; x++) {
+                alpha[x] += sign * (row[x] >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Approximates a Gaussian blur with successive box blurs.
+     *
+     * @param inputImg The input image.
+     * @param sigma    The standard deviation of the Gaussian, in pixels.
+     * @return The blurred image.
+     */
+    static BufferedImage gaussian(BufferedImage inputImg, double sigma) {
+        if (!(sigma >= 0)) {
+            throw new IllegalArgumentException("sigma must not be negative: " + sigma);
+        }
+        BufferedImage outputImg = inputImg;
+        for (int radius : gaussianRadii(sigma, GAUSSIAN_PASSES)) {
+            outputImg = blur(outputImg, radius);
+        }
+        return outputImg;
+    }
+
+    /**
+     * Returns how many rows or columns away from a pixel can affect it in
+     * {@link #gaussian}, i.e. the sum of the radii of its box passes.
+     *
+     * @param sigma The standard deviation of the Gaussian.
+     * @return The reach in pixels.
+     */
+    static int gaussianReach(double sigma) {
+        int reach = 0;
+        for (int radius : gaussianRadii(sigma, GAUSSIAN_PASSES)) {
+            reach += radius;
+        }
+        return reach;
+    }
+
+    /**
+     * Computes the radii of the box passes that approximate a Gaussian.
+     * The box widths w satisfy sum(w^2 - 1) / 12 = sigma^2, using the two odd
+     * widths closest to the ideal one.
+     *
+     * @param sigma  The standard deviation of the Gaussian.
+     * @param passes The number of box passes.
+     * @return The radius of each pass.
+     */
+    static int[] gaussianRadii(double sigma, int passes) {
+        double idealWidth = Math.sqrt(12 * sigma * sigma / passes + 1);
+        int lower = (int) Math.floor(idealWidth);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+
+        // How many passes use the lower width.
+        double idealLower = (12 * sigma * sigma - passes * lower * lower - 4 * passes * lower - 3 * passes)
+                / (-4.0 * lower - 4);
+        int lowerPasses = (int) Math.round(idealLower);
+
+        int[] radii = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            radii[i] = ((i < lowerPasses ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+}
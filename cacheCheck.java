@@ -0,0 +1,97 @@
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Checks that chains applied through a {@link resultCache} give the same
+ * pixels as the same chains applied directly with {@link opChain#apply}.
+ *
+ * Each chain is run on synthetic images of several sizes and pixel types,
+ * once on an empty cache and once more after a shorter chain has left its
+ * prefix in the cache, so both the full computation and the resumption
+ * from a cached intermediate result are compared.
+ *
+ * <pre>
+ * java -cp out cacheCheck
+ * </pre>
+ *
+ * Exits with status 1 when any chain differs.
+ */
+final class cacheCheck {
+
+    // Chains with runs that opChain fuses or composes, and steps that break them up.
+    private static final String[] CHAINS = { "sepia,negative,blur:2,brightness:20", "mirrorh,rotate:30,mirrorv",
+            "rotate:30,rotateccw:30", "rotate:45,mirrorh", "mirrorv,sepia,rotate:90,negative,mirrorh,blur:1",
+            "rotate:180,red,pixelate:4,rotateccw:15,gray", "scale:50,rotate:20,mirrorh,sepia",
+            "mirrorh,gaussian:1.5,rotate:10,rotate:10,blue" };
+
+    private static final int[][] SIZES = { { 37, 23 }, { 64, 64 }, { 120, 77 } };
+
+    private static final int[] TYPES = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY };
+
+    private cacheCheck() {
+    }
+
+    /**
+     * Runs the comparison and prints every chain that differs.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        int checked = 0;
+        int failed = 0;
+        for (int[] size : SIZES) {
+            for (int type : TYPES) {
+                BufferedImage img = new BufferedImage(size[0], size[1], type);
+                for (int y = 0; y < size[1]; y++) {
+                    for (int x = 0; x < size[0]; x++) {
+                        img.setRGB(x, y, random.nextInt());
+                    }
+                }
+                for (String text : CHAINS) {
+                    opChain chain = opChain.parse(text);
+                    BufferedImage expected = chain.apply(img);
+
+                    // Once from scratch, and once resuming from the cached result of the chain minus its last step.
+                    BufferedImage cold = new resultCache(64L << 20).apply(img, chain);
+                    resultCache warm = new resultCache(64L << 20);
+                    warm.apply(img, chain.prefix(chain.getSteps().size() - 1));
+                    BufferedImage resumed = warm.apply(img, chain);
+
+                    checked++;
+                    String where = size[0] + "x" + size[1] + " type " + type + " " + text;
+                    long coldDiff = differences(expected, cold);
+                    long resumedDiff = differences(expected, resumed);
+                    if (coldDiff != 0 || resumedDiff != 0) {
+                        failed++;
+                        System.out.println(where + ": " + coldDiff + " pixels differ from scratch, " + resumedDiff
+                                + " when resumed");
+                    }
+                }
+            }
+        }
+        System.out.println(checked + " chains checked, " + failed + " differ");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Counts the pixels that differ; images of different sizes differ everywhere.
+     */
+    private static long differences(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return (long) a.getWidth() * a.getHeight();
+        }
+        long count = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
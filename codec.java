@@ -0,0 +1,382 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Decoding and encoding with reused ImageIO readers and writers.
+ *
+ * ImageIO.read and ImageIO.write look up the plugins and create a new reader
+ * or writer on every call. Here every thread keeps one reader per format
+ * and one writer per format, and the format of an input is recognized by
+ * asking the reader providers directly, so a stream of images only pays for
+ * the decoding and encoding itself.
+ *
+ * The settings are fluent, e.g.
+ *
+ * <pre>
+ * codec.Decoded in = new codec().preview(256).read(file);
+ * new codec().quality(0.85f).progressive(true).write(result, in.format, out);
+ * </pre>
+ *
+ * {@link #subsampling} and {@link #preview} decode only every n-th pixel of
+ * every n-th row, which is how thumbnails and previews avoid decoding the
+ * full resolution; JPEG in particular skips most of the work for the
+ * dropped pixels. {@link #quality} and {@link #progressive} apply to the
+ * writers that support them (JPEG quality and progressive mode, PNG
+ * compression level); other writers ignore them.
+ *
+ * A codec holds settings only and is safe to share between threads.
+ */
+public class codec {
+
+    // Reader and writer instances of the current thread, by format name.
+    private static final ThreadLocal<Map<String, ImageReader>> READERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    private int subsampling = 1;
+    private int previewSize;
+    private float quality = -1;
+    private boolean progressive;
+
+    /**
+     * A decoded image and the format it was stored in.
+     */
+    public static final class Decoded {
+        /** The image, at reduced resolution if subsampling was asked for. */
+        public final BufferedImage image;
+
+        /** The lower-case format name, e.g. "jpeg" or "png", usable with {@link #write}. */
+        public final String format;
+
+        /** The width of the stored image. */
+        public final int sourceWidth;
+
+        /** The height of the stored image. */
+        public final int sourceHeight;
+
+        Decoded(BufferedImage image, String format, int sourceWidth, int sourceHeight) {
+            this.image = image;
+            this.format = format;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+    }
+
+    /**
+     * Thrown by {@link #read(InputStream, long)} when the header announces
+     * more pixels than allowed; nothing has been decoded.
+     */
+    public static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Decodes every n-th pixel of every n-th row.
+     *
+     * @param factor The subsampling factor, 1 for the full resolution.
+     * @return This codec.
+     */
+    public codec subsampling(int factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1: " + factor);
+        }
+        this.subsampling = factor;
+        return this;
+    }
+
+    /**
+     * Decodes with the largest subsampling that keeps the longer side at
+     * least the given size, for previews and thumbnails that are resized to
+     * their final size afterwards.
+     *
+     * @param size The smallest longer side, or 0 for the full resolution.
+     * @return This codec.
+     */
+    public codec preview(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("preview size must not be negative: " + size);
+        }
+        this.previewSize = size;
+        return this;
+    }
+
+    /**
+     * Returns the preview size set with {@link #preview}.
+     *
+     * @return The smallest longer side, or 0 for the full resolution.
+     */
+    public int getPreview() {
+        return previewSize;
+    }
+
+    /**
+     * Sets the compression quality of lossy writers, or the compression
+     * level of lossless ones, from 0 (smallest) to 1 (best).
+     *
+     * @param value The quality, or -1 for the writer default.
+     * @return This codec.
+     */
+    public codec quality(float value) {
+        if (value != -1 && !(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException("quality must be in [0, 1]: " + value);
+        }
+        this.quality = value;
+        return this;
+    }
+
+    /**
+     * Writes progressive (interlaced) images where the format supports it.
+     *
+     * @param on Whether to write progressively.
+     * @return This codec.
+     */
+    public codec progressive(boolean on) {
+        this.progressive = on;
+        return this;
+    }
+
+    /**
+     * Decodes the first image of a file.
+     *
+     * @param file The file.
+     * @return The image and its format.
+     * @throws IOException If the file cannot be read or is not a supported image.
+     */
+    public Decoded read(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("cannot open " + file);
+            }
+            return read(in, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Decodes the first image of a stream, refusing images that are too large.
+     *
+     * @param stream    The encoded image.
+     * @param maxPixels The largest accepted width times height of the stored image.
+     * @return The image and its format.
+     * @throws TooLargeException If the image has more pixels than allowed.
+     * @throws IOException       If the stream is not a supported image.
+     */
+    public Decoded read(InputStream stream, long maxPixels) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(stream)) {
+            return read(in, maxPixels);
+        }
+    }
+
+    private Decoded read(ImageInputStream in, long maxPixels) throws IOException {
+        ImageReader reader = reader(in);
+        try {
+            reader.setInput(in, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if ((long) width * height > maxPixels) {
+                throw new TooLargeException(
+                        "image has " + (long) width * height + " pixels, the limit is " + maxPixels);
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            int factor = subsampling;
+            if (previewSize > 0) {
+                factor = Math.max(factor, Math.max(width, height) / previewSize);
+            }
+            if (factor > 1) {
+                param.setSourceSubsampling(factor, factor, 0, 0);
+            }
+            String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+            return new Decoded(reader.read(0, param), format, width, height);
+        } finally {
+            // Keep the reader for the next image, without holding on to this one.
+            reader.reset();
+        }
+    }
+
+    /**
+     * Returns the format of an encoded file without decoding it.
+     *
+     * @param file The file.
+     * @return The lower-case format name, or null if no reader recognizes it.
+     * @throws IOException If the file cannot be read.
+     */
+    public static String formatOf(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("cannot open " + file);
+            }
+            ImageReaderSpi spi = provider(in);
+            return spi == null ? null : spi.getFormatNames()[0].toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Encodes an image to a file. Alpha is dropped for formats that cannot store it.
+     *
+     * @param img    The image.
+     * @param format The format name, e.g. "jpeg", "jpg" or "png".
+     * @param file   The target file.
+     * @throws IOException If there is no writer for the format or writing fails.
+     */
+    public void write(BufferedImage img, String format, File file) throws IOException {
+        // Like ImageIO.write, replace the file rather than write over its old contents.
+        if (file.exists() && !file.delete()) {
+            throw new IOException("cannot replace " + file);
+        }
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null) {
+                throw new IOException("cannot create " + file);
+            }
+            write(img, format, out);
+        }
+    }
+
+    /**
+     * Encodes an image to a stream. Alpha is dropped for formats that cannot store it.
+     *
+     * @param img    The image.
+     * @param format The format name, e.g. "jpeg", "jpg" or "png".
+     * @param stream The target stream, left open.
+     * @throws IOException If there is no writer for the format or writing fails.
+     */
+    public void write(BufferedImage img, String format, OutputStream stream) throws IOException {
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(stream)) {
+            write(img, format, out);
+        }
+    }
+
+    private void write(BufferedImage img, String format, ImageOutputStream out) throws IOException {
+        ImageWriter writer = writer(format);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(quality);
+            }
+            if (progressive && param.canWriteProgressive()) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            // Formats such as JPEG and BMP cannot store alpha.
+            BufferedImage image = img;
+            if (img.getColorModel().hasAlpha() && !writer.getOriginatingProvider().canEncodeImage(img)) {
+                image = pixelEngine.withoutAlpha(img);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+            out.flush();
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Whether there is a writer for a format.
+     *
+     * @param format The format name.
+     * @return True if images can be written in the format.
+     */
+    public static boolean canWrite(String format) {
+        return ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    /**
+     * Returns the usual file extension of a format, e.g. "jpg" for "jpeg".
+     *
+     * @param format The format name.
+     * @return The extension, without the dot.
+     */
+    public static String extension(String format) {
+        String name = format.toLowerCase(Locale.ROOT);
+        switch (name) {
+            case "jpeg":
+                return "jpg";
+            case "tiff":
+                return "tif";
+            default:
+                return name;
+        }
+    }
+
+    private static ImageReader reader(ImageInputStream in) throws IOException {
+        ImageReaderSpi spi = provider(in);
+        if (spi == null) {
+            throw new IOException("not a readable image");
+        }
+        String key = spi.getClass().getName();
+        Map<String, ImageReader> readers = READERS.get();
+        ImageReader reader = readers.get(key);
+        if (reader == null) {
+            reader = spi.createReaderInstance();
+            readers.put(key, reader);
+        }
+        return reader;
+    }
+
+    private static ImageWriter writer(String format) throws IOException {
+        String key = format.toLowerCase(Locale.ROOT);
+        Map<String, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(key);
+        if (writer == null) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(key);
+            if (!found.hasNext()) {
+                throw new IOException("no image writer for format " + format);
+            }
+            writer = found.next();
+            writers.put(key, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * The first registered reader provider that recognizes the stream, as
+     * ImageIO.getImageReaders would pick, without creating any reader.
+     */
+    private static ImageReaderSpi provider(ImageInputStream in) throws IOException {
+        for (ImageReaderSpi spi : Providers.READERS) {
+            if (spi.canDecodeInput(in)) {
+                return spi;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The reader providers, looked up once.
+     */
+    private static final class Providers {
+        static final List<ImageReaderSpi> READERS = new ArrayList<>();
+
+        static {
+            IIORegistry registry = IIORegistry.getDefaultInstance();
+            Iterator<ImageReaderSpi> it = registry.getServiceProviders(ImageReaderSpi.class, true);
+            while (it.hasNext()) {
+                READERS.add(it.next());
+            }
+        }
+    }
+}
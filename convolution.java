@@ -0,0 +1,629 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Convolution with arbitrary kernels.
+ *
+ * A kernel whose weights are the outer product of a column and a row
+ * (Gaussian, box, Sobel) is recognized when it is created and applied as a
+ * horizontal pass followed by a vertical one, so a k x k kernel costs 2k
+ * multiplications per pixel instead of k^2. Every pass accumulates integers:
+ * the weights are scaled to fixed point once, as far as the accumulator
+ * allows, and rounded so that they still add up to the scaled kernel total,
+ * which keeps flat areas flat.
+ *
+ * Rows are split into channel planes padded on both sides according to the
+ * border mode before they are filtered, so the inner loops run tap by tap
+ * over whole rows without looking at the borders at all:
+ * <ul>
+ * <li>{@link Border#CLAMP} repeats the edge pixels,</li>
+ * <li>{@link Border#MIRROR} reflects the image about its edge pixels,</li>
+ * <li>{@link Border#SHRINK} leaves out the pixels outside the image and
+ * scales the rest back to the kernel total, like
+ * {@link imageEditor#blur(BufferedImage)} averages only the pixels inside
+ * the image. Kernels whose weights add up to zero are not scaled.</li>
+ * </ul>
+ * The colors are convolved; the alpha of every pixel is kept.
+ */
+public final class convolution {
+
+    /**
+     * How the pixels outside the image are made up.
+     */
+    public enum Border {
+        /** The nearest edge pixel. */
+        CLAMP,
+        /** The image reflected about its edge pixels: ..., 2, 1, 0, 1, 2, ... */
+        MIRROR,
+        /** None: the window shrinks to the pixels inside the image. */
+        SHRINK
+    }
+
+    /**
+     * An immutable kernel of odd width and height, centered on its middle weight.
+     */
+    public static final class Kernel {
+        final int width;
+        final int height;
+        final double[] weights;
+
+        // The column and row whose product is the kernel, or null if it has none.
+        final double[] vertical;
+        final double[] horizontal;
+
+        /**
+         * Creates a kernel from its weights, row by row.
+         *
+         * @param width   The width, odd.
+         * @param height  The height, odd.
+         * @param weights The width * height weights.
+         */
+        public Kernel(int width, int height, double... weights) {
+            if (width < 1 || height < 1 || width % 2 == 0 || height % 2 == 0) {
+                throw new IllegalArgumentException("kernel sides must be odd: " + width + "x" + height);
+            }
+            if (weights.length != width * height) {
+                throw new IllegalArgumentException(
+                        "a " + width + "x" + height + " kernel needs " + width * height + " weights");
+            }
+            for (double w : weights) {
+                if (!Double.isFinite(w)) {
+                    throw new IllegalArgumentException("kernel weights must be finite");
+                }
+            }
+            this.width = width;
+            this.height = height;
+            this.weights = weights.clone();
+
+            // Factor the kernel through its largest weight, and keep the factors if they reproduce it.
+            int pivot = 0;
+            for (int i = 1; i < weights.length; i++) {
+                if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                    pivot = i;
+                }
+            }
+            double largest = weights[pivot];
+            double[] column = new double[height];
+            double[] row = new double[width];
+            for (int y = 0; y < height; y++) {
+                column[y] = weights[y * width + pivot % width];
+            }
+            for (int x = 0; x < width; x++) {
+                row[x] = largest == 0 ? 0 : weights[pivot / width * width + x] / largest;
+            }
+            boolean separable = width > 1 && height > 1;
+            for (int y = 0; separable && y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (Math.abs(column[y] * row[x] - weights[y * width + x]) > 1e-9 * Math.abs(largest)) {
+                        separable = false;
+                        break;
+                    }
+                }
+            }
+            this.vertical = separable ? column : null;
+            this.horizontal = separable ? row : null;
+        }
+
+        /**
+         * Creates the kernel that is the product of a column and a row.
+         *
+         * @param horizontal The row, of odd length.
+         * @param vertical   The column, of odd length.
+         * @return The kernel.
+         */
+        public static Kernel separable(double[] horizontal, double[] vertical) {
+            double[] weights = new double[horizontal.length * vertical.length];
+            for (int y = 0; y < vertical.length; y++) {
+                for (int x = 0; x < horizontal.length; x++) {
+                    weights[y * horizontal.length + x] = vertical[y] * horizontal[x];
+                }
+            }
+            return new Kernel(horizontal.length, vertical.length, weights);
+        }
+
+        /**
+         * Returns the kernel width.
+         *
+         * @return The width.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Returns the kernel height.
+         *
+         * @return The height.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Whether the kernel is applied as two one-dimensional passes.
+         *
+         * @return True if the kernel is the product of a column and a row.
+         */
+        public boolean isSeparable() {
+            return vertical != null;
+        }
+    }
+
+    /** Sharpens by subtracting the four neighbors from five times the pixel. */
+    public static final Kernel SHARPEN = new Kernel(3, 3,
+            0, -1, 0,
+            -1, 5, -1,
+            0, -1, 0);
+
+    /** Laplacian edge detection: bright edges on black. */
+    public static final Kernel EDGES = new Kernel(3, 3,
+            -1, -1, -1,
+            -1, 8, -1,
+            -1, -1, -1);
+
+    /** Relief lit from the top left. */
+    public static final Kernel EMBOSS = new Kernel(3, 3,
+            -2, -1, 0,
+            -1, 1, 1,
+            0, 1, 2);
+
+    // Fixed-point bits of the weights, at most.
+    private static final int MAX_SHIFT = 16;
+
+    // Fractional bits kept between the horizontal and the vertical pass, at most.
+    private static final int MIDDLE_BITS = 8;
+
+    private convolution() {
+    }
+
+    /**
+     * Convolves an image with a kernel.
+     *
+     * @param inputImg The input image.
+     * @param kernel   The kernel.
+     * @param border   How the pixels outside the image are made up.
+     * @return The filtered image, with the output type of the other filters.
+     */
+    public static BufferedImage convolve(BufferedImage inputImg, Kernel kernel, Border border) {
+        return convolve(inputImg, kernel, border, 0);
+    }
+
+    /**
+     * Convolves an image with a kernel and adds a constant to every color channel.
+     *
+     * @param inputImg The input image.
+     * @param kernel   The kernel.
+     * @param border   How the pixels outside the image are made up.
+     * @param bias     Added to every channel before it is clamped, e.g. 128 to
+     *                 center the response of a kernel that adds up to zero.
+     * @return The filtered image, with the output type of the other filters.
+     */
+    public static BufferedImage convolve(BufferedImage inputImg, Kernel kernel, Border border, int bias) {
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg);
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+        if (kernel.isSeparable()) {
+            separable(src, sink, kernel, border, bias);
+        } else {
+            general(src, sink, kernel, border, bias);
+        }
+        return outputImg;
+    }
+
+    /**
+     * Applies a kernel as it is, k^2 taps per pixel.
+     */
+    private static void general(pixelEngine.Source src, pixelEngine.Sink sink, Kernel kernel, Border border,
+            int bias) {
+        int width = src.width;
+        int height = src.height;
+        int rx = kernel.width / 2;
+        int ry = kernel.height / 2;
+        // Whole-number kernels such as the presets are summed exactly.
+        int shift = shift(255, absSum(kernel.weights), whole(kernel.weights) ? 0 : MAX_SHIFT);
+        int half = shift == 0 ? 0 : 1 << (shift - 1);
+        int[] weights = quantize(kernel.weights, shift);
+        Shrink shrink = Shrink.of(border, kernel.weights, kernel.width, kernel.height, sum(kernel.weights) != 0,
+                1 << 30);
+
+        parallelExecutor.forEachBand(height, width * kernel.width * kernel.height, (from, to) -> {
+            // The source rows as channel planes, padded by rx on both sides.
+            Window window = new Window(kernel.height, width, width + 2 * rx, (y, row, planes) -> {
+                src.readRow(y, row);
+                split(row, width, rx, border, planes);
+            });
+
+            int[] red = new int[width];
+            int[] green = new int[width];
+            int[] blue = new int[width];
+            int[] out = new int[width];
+            for (int i = from; i < to; i++) {
+                Arrays.fill(red, half);
+                Arrays.fill(green, half);
+                Arrays.fill(blue, half);
+                for (int ky = 0; ky < kernel.height; ky++) {
+                    int y = source(i + ky - ry, height, border);
+                    if (y < 0) {
+                        continue;
+                    }
+                    int[][] p = window.planes(y);
+                    for (int kx = 0; kx < kernel.width; kx++) {
+                        int w = weights[ky * kernel.width + kx];
+                        if (w != 0) {
+                            tap(red, green, blue, p, kx, w, width);
+                        }
+                    }
+                }
+                if (shrink != null) {
+                    shrink.rescale(red, green, blue, half, i, width, height);
+                }
+                pack(red, green, blue, src.hasAlpha ? window.row(i) : null, shift, bias, out, width);
+                sink.writeRow(i, out);
+            }
+        });
+    }
+
+    /**
+     * Applies a separable kernel as a horizontal and a vertical pass.
+     */
+    private static void separable(pixelEngine.Source src, pixelEngine.Sink sink, Kernel kernel, Border border,
+            int bias) {
+        int width = src.width;
+        int height = src.height;
+        int rx = kernel.width / 2;
+        int ry = kernel.height / 2;
+
+        // The horizontal sums keep a few fractional bits for the vertical pass. The bits left in
+        // the accumulator go to those and to the column weights, so that neither rounding dominates.
+        double rowSum = absSum(kernel.horizontal);
+        double columnSum = absSum(kernel.vertical);
+        int rowShift = shift(255, rowSum, MAX_SHIFT);
+        int bits = shift(255 * rowSum + 1, columnSum, MIDDLE_BITS + MAX_SHIFT);
+        int middleBits = middleBits(rowSum, columnSum, kernel.height, rowShift, bits);
+        int columnShift = Math.min(MAX_SHIFT, bits - middleBits);
+        int[] rowWeights = quantize(kernel.horizontal, rowShift);
+        int[] columnWeights = quantize(kernel.vertical, columnShift);
+        int down = rowShift - middleBits;
+        int rowHalf = down == 0 ? 0 : 1 << (down - 1);
+        int totalShift = columnShift + middleBits;
+        int half = totalShift == 0 ? 0 : 1 << (totalShift - 1);
+
+        // The border scale only depends on the whole kernel, so it is applied once, after both passes.
+        Shrink shrink = Shrink.of(border, kernel.weights, kernel.width, kernel.height, sum(kernel.weights) != 0,
+                1 << 30);
+
+        parallelExecutor.forEachBand(height, width * (kernel.width + kernel.height), (from, to) -> {
+            // The source rows filtered horizontally, with the fractional bits of their sums.
+            int[][] padded = new int[3][width + 2 * rx];
+            Window window = new Window(kernel.height, width, width, (y, row, sums) -> {
+                src.readRow(y, row);
+                split(row, width, rx, border, padded);
+                for (int[] sum : sums) {
+                    Arrays.fill(sum, rowHalf);
+                }
+                for (int kx = 0; kx < kernel.width; kx++) {
+                    if (rowWeights[kx] != 0) {
+                        tap(sums[0], sums[1], sums[2], padded, kx, rowWeights[kx], width);
+                    }
+                }
+                for (int[] sum : sums) {
+                    for (int x = 0; x < width; x++) {
+                        sum[x] >>= down;
+                    }
+                }
+            });
+
+            // Then the columns, one output row at a time.
+            int[] red = new int[width];
+            int[] green = new int[width];
+            int[] blue = new int[width];
+            int[] out = new int[width];
+            for (int i = from; i < to; i++) {
+                Arrays.fill(red, half);
+                Arrays.fill(green, half);
+                Arrays.fill(blue, half);
+                for (int ky = 0; ky < kernel.height; ky++) {
+                    int y = source(i + ky - ry, height, border);
+                    int w = columnWeights[ky];
+                    if (y >= 0 && w != 0) {
+                        tap(red, green, blue, window.planes(y), 0, w, width);
+                    }
+                }
+                if (shrink != null) {
+                    shrink.rescale(red, green, blue, half, i, width, height);
+                }
+                pack(red, green, blue, src.hasAlpha ? window.row(i) : null, totalShift, bias, out, width);
+                sink.writeRow(i, out);
+            }
+        });
+    }
+
+    /**
+     * Fills the channel planes of a source row.
+     */
+    private interface RowLoader {
+        void load(int y, int[] row, int[][] planes);
+    }
+
+    /**
+     * The source rows a band is reading, each loaded once into one of as many
+     * reused slots as the kernel is high. The rows that one output row reads
+     * are distinct modulo the number of slots, also where the border repeats
+     * or reflects rows, so none of them pushes out another.
+     */
+    private static final class Window {
+        private final int[] loaded;
+        private final int[][] rows;
+        private final int[][][] planes;
+        private final RowLoader loader;
+
+        Window(int slots, int width, int planeLength, RowLoader loader) {
+            this.loaded = new int[slots];
+            Arrays.fill(loaded, -1);
+            this.rows = new int[slots][width];
+            this.planes = new int[slots][3][planeLength];
+            this.loader = loader;
+        }
+
+        /**
+         * Returns the red, green and blue planes of a source row.
+         */
+        int[][] planes(int y) {
+            int slot = y % loaded.length;
+            if (loaded[slot] != y) {
+                loader.load(y, rows[slot], planes[slot]);
+                loaded[slot] = y;
+            }
+            return planes[slot];
+        }
+
+        /**
+         * Returns the 0xAARRGGBB pixels of a source row.
+         */
+        int[] row(int y) {
+            planes(y);
+            return rows[y % loaded.length];
+        }
+    }
+
+    /**
+     * Adds one tap to the sums of a row: sum[x] += w * plane[x + offset].
+     * This is the inner loop; it runs over the whole row with no border cases.
+     */
+    private static void tap(int[] red, int[] green, int[] blue, int[][] planes, int offset, int w, int width) {
+        int[] r = planes[0];
+        int[] g = planes[1];
+        int[] b = planes[2];
+        for (int x = 0; x < width; x++) {
+            red[x] += w * r[x + offset];
+        }
+        for (int x = 0; x < width; x++) {
+            green[x] += w * g[x + offset];
+        }
+        for (int x = 0; x < width; x++) {
+            blue[x] += w * b[x + offset];
+        }
+    }
+
+    /**
+     * Splits a row into red, green and blue planes of width + 2 * pad values,
+     * with the pixels outside the row made up as the border mode says.
+     */
+    private static void split(int[] row, int width, int pad, Border border, int[][] planes) {
+        int[] red = planes[0];
+        int[] green = planes[1];
+        int[] blue = planes[2];
+        for (int x = 0; x < width; x++) {
+            int argb = row[x];
+            red[pad + x] = (argb >> 16) & 0xFF;
+            green[pad + x] = (argb >> 8) & 0xFF;
+            blue[pad + x] = argb & 0xFF;
+        }
+        for (int p = 1; p <= pad; p++) {
+            for (int x : new int[] { -p, width - 1 + p }) {
+                int s = source(x, width, border);
+                int at = s < 0 ? -1 : pad + s;
+                red[pad + x] = at < 0 ? 0 : red[at];
+                green[pad + x] = at < 0 ? 0 : green[at];
+                blue[pad + x] = at < 0 ? 0 : blue[at];
+            }
+        }
+    }
+
+    /**
+     * Rounds the fixed-point sums to channel values, adds the bias, clamps,
+     * and puts the alpha of the source row back (opaque if there is none).
+     */
+    private static void pack(int[] red, int[] green, int[] blue, int[] alpha, int shift, int bias, int[] out,
+            int width) {
+        for (int x = 0; x < width; x++) {
+            int r = clamp((red[x] >> shift) + bias);
+            int g = clamp((green[x] >> shift) + bias);
+            int b = clamp((blue[x] >> shift) + bias);
+            int a = alpha == null ? 0xFF000000 : alpha[x] & 0xFF000000;
+            out[x] = a | r << 16 | g << 8 | b;
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * Maps a row or column index outside [0, size) into the image, or returns
+     * -1 if the border mode leaves it out.
+     */
+    static int source(int index, int size, Border border) {
+        if (index >= 0 && index < size) {
+            return index;
+        }
+        switch (border) {
+            case CLAMP:
+                return index < 0 ? 0 : size - 1;
+            case MIRROR:
+                if (size == 1) {
+                    return 0;
+                }
+                int period = 2 * size - 2;
+                int i = Math.floorMod(index, period);
+                return i < size ? i : period - i;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * The number of fixed-point bits that keeps sum(|w| * value) for values up
+     * to maxValue within an int, with room for rounding, up to the given most.
+     */
+    private static int shift(double maxValue, double absSum, int most) {
+        if (absSum == 0) {
+            return most;
+        }
+        int shift = 0;
+        while (shift < most && maxValue * absSum * (1L << (shift + 1)) < Integer.MAX_VALUE / 2) {
+            shift++;
+        }
+        if (maxValue * absSum * (1L << shift) >= Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("kernel weights are too large: the sum of their magnitudes is "
+                    + absSum);
+        }
+        return shift;
+    }
+
+    /**
+     * Picks the fractional bits of the horizontal sums, out of the bits shared
+     * with the column weights, that give the smallest estimated rounding error.
+     */
+    private static int middleBits(double rowSum, double columnSum, int taps, int rowShift, int bits) {
+        int best = 0;
+        double smallest = Double.MAX_VALUE;
+        for (int m = 0; m <= Math.min(MIDDLE_BITS, Math.min(rowShift, bits)); m++) {
+            double error = columnSum / (1 << m) + 255 * rowSum * taps / (double) (1L << Math.min(MAX_SHIFT, bits - m));
+            if (error < smallest) {
+                smallest = error;
+                best = m;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Scales weights to fixed point, moving the rounding error to the largest
+     * weight so that they add up to the scaled total.
+     */
+    private static int[] quantize(double[] weights, int shift) {
+        double scale = 1L << shift;
+        int[] fixed = new int[weights.length];
+        long sum = 0;
+        int largest = 0;
+        for (int i = 0; i < weights.length; i++) {
+            fixed[i] = (int) Math.round(weights[i] * scale);
+            sum += fixed[i];
+            if (Math.abs(weights[i]) > Math.abs(weights[largest])) {
+                largest = i;
+            }
+        }
+        fixed[largest] += (int) (Math.round(sum(weights) * scale) - sum);
+        return fixed;
+    }
+
+    private static boolean whole(double[] weights) {
+        for (double w : weights) {
+            if (w != Math.rint(w)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double sum(double[] weights) {
+        double sum = 0;
+        for (double w : weights) {
+            sum += w;
+        }
+        return sum;
+    }
+
+    private static double absSum(double[] weights) {
+        double sum = 0;
+        for (double w : weights) {
+            sum += Math.abs(w);
+        }
+        return sum;
+    }
+
+    /**
+     * Scales the sums of pixels near the border back to the kernel total, for
+     * {@link Border#SHRINK}. Only the pixels within the kernel radius of an
+     * edge are touched.
+     */
+    private static final class Shrink {
+        final int width;
+        final int height;
+        final double total;
+
+        // The largest magnitude of a scaled sum, which the next stage has room for.
+        final int limit;
+
+        // Prefix sums of the kernel weights, (height + 1) x (width + 1).
+        final double[] prefix;
+
+        private Shrink(double[] weights, int width, int height, int limit) {
+            this.width = width;
+            this.height = height;
+            this.total = sum(weights);
+            this.limit = limit;
+            this.prefix = new double[(height + 1) * (width + 1)];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    prefix[(y + 1) * (width + 1) + x + 1] = weights[y * width + x] + prefix[y * (width + 1) + x + 1]
+                            + prefix[(y + 1) * (width + 1) + x] - prefix[y * (width + 1) + x];
+                }
+            }
+        }
+
+        static Shrink of(Border border, double[] weights, int width, int height, boolean scaled, int limit) {
+            return border == Border.SHRINK && scaled ? new Shrink(weights, width, height, limit) : null;
+        }
+
+        /**
+         * Rescales the sums of row y of an image of the given size.
+         */
+        void rescale(int[] red, int[] green, int[] blue, int half, int y, int imageWidth, int imageHeight) {
+            int rx = width / 2;
+            int ry = height / 2;
+            boolean edgeRow = y < ry || y >= imageHeight - ry;
+            for (int x = 0; x < imageWidth; x++) {
+                if (!edgeRow && x == rx && imageWidth - rx > rx) {
+                    // Skip the interior of the row.
+                    x = imageWidth - rx - 1;
+                    continue;
+                }
+                // The kernel weights that fall inside the image.
+                int x0 = Math.max(0, rx - x);
+                int x1 = Math.min(width, rx + imageWidth - x);
+                int y0 = Math.max(0, ry - y);
+                int y1 = Math.min(height, ry + imageHeight - y);
+                double inside = prefix[y1 * (width + 1) + x1] - prefix[y0 * (width + 1) + x1]
+                        - prefix[y1 * (width + 1) + x0] + prefix[y0 * (width + 1) + x0];
+                if (inside == 0 || inside == total) {
+                    continue;
+                }
+                double factor = total / inside;
+                red[x] = scale(red[x], half, factor);
+                green[x] = scale(green[x], half, factor);
+                blue[x] = scale(blue[x], half, factor);
+            }
+        }
+
+        /**
+         * Scales a sum without its rounding term, saturating at the limit:
+         * a few weights near a border can add up to a tiny part of the total.
+         */
+        private int scale(int sum, int half, double factor) {
+            double scaled = Math.rint((sum - half) * factor);
+            return (int) Math.max(-limit, Math.min(limit, scaled)) + half;
+        }
+    }
+}
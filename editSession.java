@@ -0,0 +1,622 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An editing session: one decoded image, the edits made to it, undo and redo.
+ *
+ * The image of every step of the history is kept as a grid of tiles, and a
+ * tile that an edit does not change is shared with the step before. An edit
+ * can be limited to a region; an edit made of a step that only reads the
+ * pixels around each output pixel (see {@link opChain#inputRegion}) then only
+ * computes the tiles that meet its region, from the tiles around them. Other
+ * steps, which move pixels or change the image size, run on the whole image.
+ *
+ * Undo and redo only move through the history. Replacing an earlier edit,
+ * e.g. to try another brightness, recomputes that edit and then only the
+ * tiles of the later edits that read a tile that changed; all other tiles of
+ * the later steps are taken from the history. So successive edits of a large
+ * image cost in proportion to the area they touch, not to the image.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java imageEditor edit photo.jpg [--tile 256] [--undo 50]
+ * </pre>
+ *
+ * reads commands from the standard input, one per line: a chain such as
+ * "sepia,blur:2" optionally followed by a region "x,y,width,height", then
+ * "undo", "redo", "set N STEP [REGION]" to replace edit N, "list",
+ * "save [FILE]" and "quit".
+ */
+public class editSession {
+
+    /** The default side of a tile, in pixels. */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** The default number of edits that can be undone. */
+    public static final int DEFAULT_UNDO_DEPTH = 50;
+
+    private static final String USAGE = "Usage: java imageEditor edit <file> [--tile PIXELS] [--undo EDITS]\n"
+            + "  commands: <chain> [x,y,w,h] | undo | redo | set N <step> [x,y,w,h] | list | save [file] | quit";
+
+    /**
+     * Entry point of the edit command.
+     *
+     * @param args The command-line arguments, without the leading "edit".
+     * @throws IOException If the image cannot be read or saved.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length % 2 != 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        int tileSize = DEFAULT_TILE_SIZE;
+        int undoDepth = DEFAULT_UNDO_DEPTH;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--tile":
+                    tileSize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--undo":
+                    undoDepth = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println(USAGE);
+                    System.exit(2);
+                    return;
+            }
+        }
+
+        File input = new File(args[0]);
+        codec codec = new codec();
+        codec.Decoded decoded = codec.read(input);
+        editSession session = new editSession(decoded.image, tileSize, undoDepth);
+        System.out.println(decoded.image.getWidth() + "x" + decoded.image.getHeight() + ", "
+                + session.getTileCount() + " tiles");
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                switch (words[0]) {
+                    case "quit":
+                        return;
+                    case "undo":
+                        System.out.println(session.undo() ? "undone" : "nothing to undo");
+                        break;
+                    case "redo":
+                        System.out.println(session.redo() ? "redone" : "nothing to redo");
+                        break;
+                    case "list": {
+                        List<Edit> edits = session.getEdits();
+                        for (int i = 0; i < edits.size(); i++) {
+                            System.out.println(i + ": " + edits.get(i));
+                        }
+                        break;
+                    }
+                    case "save": {
+                        File output = words.length > 1 ? new File(words[1])
+                                : new File(input.getParentFile(), "Edited" + input.getName());
+                        String name = output.getName().toLowerCase(Locale.ROOT);
+                        String format = words.length > 1 ? name.substring(name.lastIndexOf('.') + 1)
+                                : decoded.format;
+                        codec.write(session.image(), format, output);
+                        System.out.println("saved " + output);
+                        break;
+                    }
+                    case "set": {
+                        if (words.length < 3 || words.length > 4) {
+                            throw new IllegalArgumentException("usage: set N STEP [x,y,w,h]");
+                        }
+                        List<opChain.Step> steps = opChain.parse(words[2]).getSteps();
+                        if (steps.size() != 1) {
+                            throw new IllegalArgumentException("set takes a single step");
+                        }
+                        session.replace(Integer.parseInt(words[1]), steps.get(0),
+                                words.length > 3 ? parseRegion(words[3]) : null);
+                        report(session, start);
+                        break;
+                    }
+                    default: {
+                        if (words.length > 2) {
+                            throw new IllegalArgumentException("usage: CHAIN [x,y,w,h]");
+                        }
+                        Rectangle region = words.length > 1 ? parseRegion(words[1]) : null;
+                        long tiles = 0;
+                        for (opChain.Step step : opChain.parse(words[0]).getSteps()) {
+                            session.apply(step, region);
+                            tiles += session.getTilesComputed();
+                        }
+                        session.image();
+                        System.out.printf(Locale.ROOT, "%d tiles in %.1f ms%n", tiles,
+                                (System.nanoTime() - start) / 1e6);
+                        break;
+                    }
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void report(editSession session, long start) {
+        System.out.printf(Locale.ROOT, "%d tiles in %.1f ms%n", session.getTilesComputed(),
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Parses a region given as "x,y,width,height".
+     */
+    static Rectangle parseRegion(String text) {
+        String[] parts = text.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("region must be x,y,width,height: " + text);
+        }
+        int[] values = new int[4];
+        for (int i = 0; i < 4; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        if (values[2] < 1 || values[3] < 1) {
+            throw new IllegalArgumentException("region must not be empty: " + text);
+        }
+        return new Rectangle(values[0], values[1], values[2], values[3]);
+    }
+
+    /**
+     * One edit: a step applied to a region of the image or to all of it.
+     */
+    public static final class Edit {
+        final opChain.Step step;
+        final Rectangle region;
+
+        Edit(opChain.Step step, Rectangle region) {
+            this.step = step;
+            this.region = region == null ? null : new Rectangle(region);
+        }
+
+        /**
+         * Returns the step.
+         *
+         * @return The step.
+         */
+        public opChain.Step getStep() {
+            return step;
+        }
+
+        /**
+         * Returns the region the step is limited to.
+         *
+         * @return A copy of the region, or null for the whole image.
+         */
+        public Rectangle getRegion() {
+            return region == null ? null : new Rectangle(region);
+        }
+
+        @Override
+        public String toString() {
+            if (region == null) {
+                return step.toString();
+            }
+            return step + " @" + region.x + "," + region.y + "," + region.width + "," + region.height;
+        }
+    }
+
+    /**
+     * The image after some number of edits, as a grid of tiles in row order.
+     * Tiles are never changed once the state is made, so states share them.
+     */
+    private static final class State {
+        final int width;
+        final int height;
+        final int type;
+        final int tileSize;
+        final int columns;
+        final int rows;
+        final BufferedImage[] tiles;
+
+        State(int width, int height, int type, int tileSize) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.tileSize = tileSize;
+            this.columns = (width + tileSize - 1) / tileSize;
+            this.rows = (height + tileSize - 1) / tileSize;
+            this.tiles = new BufferedImage[columns * rows];
+        }
+
+        /**
+         * Cuts a whole image into tiles that are views of it.
+         */
+        static State of(BufferedImage img, int tileSize) {
+            State state = new State(img.getWidth(), img.getHeight(), img.getType(), tileSize);
+            for (int t = 0; t < state.tiles.length; t++) {
+                Rectangle r = state.bounds(t);
+                state.tiles[t] = img.getSubimage(r.x, r.y, r.width, r.height);
+            }
+            return state;
+        }
+
+        Rectangle bounds(int tile) {
+            int x = tile % columns * tileSize;
+            int y = tile / columns * tileSize;
+            return new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+        }
+
+        boolean sameShape(State other) {
+            return other != null && width == other.width && height == other.height && type == other.type;
+        }
+
+        /**
+         * Whether any tile marked in the array meets the region.
+         */
+        boolean touches(boolean[] marked, Rectangle region) {
+            int firstColumn = region.x / tileSize;
+            int lastColumn = (region.x + region.width - 1) / tileSize;
+            int firstRow = region.y / tileSize;
+            int lastRow = (region.y + region.height - 1) / tileSize;
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    if (marked[row * columns + column]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Copies a region into a new image.
+         */
+        BufferedImage copy(Rectangle region) {
+            BufferedImage img = new BufferedImage(region.width, region.height, type);
+            for (int t = 0; t < tiles.length; t++) {
+                Rectangle part = bounds(t).intersection(region);
+                if (!part.isEmpty()) {
+                    Rectangle tile = bounds(t);
+                    Raster child = tiles[t].getRaster().createChild(part.x - tile.x, part.y - tile.y, part.width,
+                            part.height, 0, 0, null);
+                    img.getRaster().setDataElements(part.x - region.x, part.y - region.y, child);
+                }
+            }
+            return img;
+        }
+    }
+
+    private final int tileSize;
+    private final int undoDepth;
+
+    // Every edit made and not discarded, and the state after each: states.get(k) follows k edits.
+    private final List<Edit> edits = new ArrayList<>();
+    private final List<State> states = new ArrayList<>();
+
+    // The number of edits in effect; the ones after it can be redone.
+    private int position;
+
+    // The current image, updated tile by tile, and the state it shows.
+    private BufferedImage composite;
+    private State compositeState;
+
+    private long tilesComputed;
+
+    /**
+     * Starts a session with the default tile size and undo depth.
+     *
+     * @param source The image to edit, which must not be changed afterwards.
+     */
+    public editSession(BufferedImage source) {
+        this(source, DEFAULT_TILE_SIZE, DEFAULT_UNDO_DEPTH);
+    }
+
+    /**
+     * Starts a session.
+     *
+     * @param source    The image to edit, which must not be changed afterwards.
+     * @param tileSize  The side of a tile, in pixels.
+     * @param undoDepth How many edits can be undone; older ones become part of the source.
+     */
+    public editSession(BufferedImage source, int tileSize, int undoDepth) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be positive: " + tileSize);
+        }
+        if (undoDepth < 0) {
+            throw new IllegalArgumentException("undoDepth must not be negative: " + undoDepth);
+        }
+        this.tileSize = tileSize;
+        this.undoDepth = undoDepth;
+        states.add(State.of(workingCopy(source), tileSize));
+    }
+
+    /**
+     * Applies a step to the current image, discarding the edits that could be redone.
+     *
+     * @param step   The step.
+     * @param region The region to limit the step to, or null for the whole
+     *               image. Only steps with an {@link opChain#inputRegion} can
+     *               be limited.
+     * @return The edited image; see {@link #image}.
+     */
+    public synchronized BufferedImage apply(opChain.Step step, Rectangle region) {
+        Edit edit = edit(step, region, states.get(position));
+        tilesComputed = 0;
+        State next = advance(states.get(position), edit, null, null);
+        edits.subList(position, edits.size()).clear();
+        states.subList(position + 1, states.size()).clear();
+        edits.add(edit);
+        states.add(next);
+        position++;
+
+        // Fold the oldest edits into the source once they can no longer be undone.
+        while (position > undoDepth) {
+            edits.remove(0);
+            states.remove(0);
+            position--;
+        }
+        return image();
+    }
+
+    /**
+     * Replaces an edit in effect and brings the later edits, including those
+     * that can be redone, up to date by recomputing only what changed.
+     *
+     * @param index  The index of the edit, in [0, {@link #getPosition}).
+     * @param step   The new step.
+     * @param region The new region, or null for the whole image.
+     * @return The edited image; see {@link #image}.
+     */
+    public synchronized BufferedImage replace(int index, opChain.Step step, Rectangle region) {
+        if (index < 0 || index >= position) {
+            throw new IndexOutOfBoundsException("no edit " + index + " in effect, there are " + position);
+        }
+        Edit edit = edit(step, region, states.get(index));
+        tilesComputed = 0;
+        edits.set(index, edit);
+        State previous = states.get(index + 1);
+        State next = advance(states.get(index), edit, null, null);
+        states.set(index + 1, next);
+
+        // Carry the tiles that changed through the later edits, reusing every other tile.
+        for (int k = index + 1; k < edits.size(); k++) {
+            State old = states.get(k + 1);
+            State updated = advance(next, edits.get(k), old, changes(previous, next));
+            states.set(k + 1, updated);
+            previous = old;
+            next = updated;
+        }
+        return image();
+    }
+
+    /**
+     * Takes back the last edit in effect.
+     *
+     * @return Whether there was an edit to undo.
+     */
+    public synchronized boolean undo() {
+        tilesComputed = 0;
+        if (position == 0) {
+            return false;
+        }
+        position--;
+        return true;
+    }
+
+    /**
+     * Puts back the last edit taken back.
+     *
+     * @return Whether there was an edit to redo.
+     */
+    public synchronized boolean redo() {
+        tilesComputed = 0;
+        if (position == edits.size()) {
+            return false;
+        }
+        position++;
+        return true;
+    }
+
+    /**
+     * Returns the current image. It is updated in place, tile by tile, by the
+     * next call after an edit, undo or redo, so copy it to keep it.
+     *
+     * @return The image after the edits in effect.
+     */
+    public synchronized BufferedImage image() {
+        State state = states.get(position);
+        if (!state.sameShape(compositeState) || state.tileSize != compositeState.tileSize) {
+            composite = new BufferedImage(state.width, state.height, state.type);
+            compositeState = null;
+        }
+        for (int t = 0; t < state.tiles.length; t++) {
+            if (compositeState == null || compositeState.tiles[t] != state.tiles[t]) {
+                Rectangle bounds = state.bounds(t);
+                composite.getRaster().setDataElements(bounds.x, bounds.y, state.tiles[t].getRaster());
+            }
+        }
+        compositeState = state;
+        return composite;
+    }
+
+    /**
+     * Returns the edits in effect, oldest first.
+     *
+     * @return An unmodifiable list.
+     */
+    public synchronized List<Edit> getEdits() {
+        return Collections.unmodifiableList(new ArrayList<>(edits.subList(0, position)));
+    }
+
+    /**
+     * Returns the number of edits in effect.
+     *
+     * @return The position in the history.
+     */
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns how many tiles the last edit, replacement, undo or redo computed.
+     *
+     * @return The number of tiles; a whole-image step counts all tiles.
+     */
+    public synchronized long getTilesComputed() {
+        return tilesComputed;
+    }
+
+    /**
+     * Returns the number of tiles of the current image.
+     *
+     * @return The number of tiles.
+     */
+    public synchronized int getTileCount() {
+        return states.get(position).tiles.length;
+    }
+
+    private static boolean isLocal(opChain.Step step) {
+        return opChain.inputRegion(step, new Rectangle(0, 0, 1, 1), 1, 1) != null;
+    }
+
+    private static Edit edit(opChain.Step step, Rectangle region, State state) {
+        if (region == null) {
+            return new Edit(step, null);
+        }
+        if (!isLocal(step)) {
+            throw new IllegalArgumentException("operation '" + step.getName() + "' cannot be limited to a region");
+        }
+        Rectangle clipped = region.intersection(new Rectangle(0, 0, state.width, state.height));
+        if (clipped.isEmpty()) {
+            throw new IllegalArgumentException("region " + region.x + "," + region.y + "," + region.width + ","
+                    + region.height + " is outside the " + state.width + "x" + state.height + " image");
+        }
+        return new Edit(step, clipped);
+    }
+
+    /**
+     * Computes the state after an edit.
+     *
+     * @param before The state the edit applies to.
+     * @param edit   The edit.
+     * @param old    The state the edit made from an earlier version of
+     *               before, or null to compute the edit afresh.
+     * @param dirty  With an old state, the tiles of before that differ from
+     *               that earlier version.
+     * @return The state after the edit.
+     */
+    private State advance(State before, Edit edit, State old, boolean[] dirty) {
+        if (old != null && !any(dirty)) {
+            return old;
+        }
+        metrics.Span span = metrics.start("edit", edit.step);
+        State after;
+        long pixels;
+        if (!isLocal(edit.step)) {
+            // Steps that move pixels or change the size see the whole image.
+            Rectangle all = new Rectangle(0, 0, before.width, before.height);
+            after = State.of(workingCopy(opChain.applyStep(before.copy(all), edit.step)), tileSize);
+            tilesComputed += after.tiles.length;
+            pixels = (long) before.width * before.height;
+        } else {
+            // An earlier replacement may have changed the size; the region then keeps its part of the image.
+            Rectangle image = new Rectangle(0, 0, before.width, before.height);
+            Rectangle region = edit.region != null ? edit.region.intersection(image) : image;
+            boolean reuse = old != null && old.sameShape(before) && old.tileSize == before.tileSize;
+            after = new State(before.width, before.height, before.type, tileSize);
+            pixels = 0;
+            for (int t = 0; t < after.tiles.length; t++) {
+                Rectangle bounds = after.bounds(t);
+                Rectangle out = bounds.intersection(region);
+                if (out.isEmpty()) {
+                    // Outside the region the tile stays as it was before the edit.
+                    after.tiles[t] = before.tiles[t];
+                    continue;
+                }
+                Rectangle in = opChain.inputRegion(edit.step, out, before.width, before.height);
+                if (reuse && !before.touches(dirty, in)) {
+                    after.tiles[t] = old.tiles[t];
+                    continue;
+                }
+                after.tiles[t] = computeTile(before, edit.step, bounds, out, in);
+                tilesComputed++;
+                pixels += (long) out.width * out.height;
+            }
+        }
+        metrics.end(span, pixels);
+        return after;
+    }
+
+    /**
+     * Marks the tiles of a state that differ from an earlier version of it.
+     * States never change their tiles, so a tile is unchanged when it is the
+     * same object.
+     */
+    private static boolean[] changes(State old, State now) {
+        boolean[] changed = new boolean[now.tiles.length];
+        boolean comparable = now.sameShape(old) && now.tileSize == old.tileSize;
+        for (int t = 0; t < changed.length; t++) {
+            changed[t] = !comparable || now.tiles[t] != old.tiles[t];
+        }
+        return changed;
+    }
+    /**
+     * Computes one tile of an edit: the step runs on the input region, and
+     * the part of the result inside the edit region replaces that part of
+     * the tile before the edit.
+     */
+    private static BufferedImage computeTile(State before, opChain.Step step, Rectangle bounds, Rectangle out,
+            Rectangle in) {
+        BufferedImage result = opChain.applyStep(before.copy(in), step);
+        if (out.equals(bounds) && result.getType() == before.type) {
+            return result.getSubimage(out.x - in.x, out.y - in.y, out.width, out.height);
+        }
+        BufferedImage tile = before.copy(bounds);
+        Raster part = result.getRaster().createChild(out.x - in.x, out.y - in.y, out.width, out.height, 0, 0, null);
+        tile.getRaster().setDataElements(out.x - bounds.x, out.y - bounds.y, part);
+        return tile;
+    }
+
+    /**
+     * Converts an image to the type the filters write, so that every tile of
+     * a state and every filter output share one pixel layout. Mapped images
+     * are copied to the heap, since tiles are made by type.
+     */
+    private static BufferedImage workingCopy(BufferedImage img) {
+        if (pixelEngine.isWritable(img) && !mappedStore.isMapped(img)) {
+            return img;
+        }
+        pixelEngine.Source src = new pixelEngine.Source(img);
+        BufferedImage copy = new BufferedImage(src.width, src.height, pixelEngine.outputType(img));
+        pixelEngine.Sink sink = new pixelEngine.Sink(copy);
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                sink.writeRow(i, row);
+            }
+        });
+        return copy;
+    }
+
+    private static boolean any(boolean[] marked) {
+        for (boolean m : marked) {
+            if (m) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
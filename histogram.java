@@ -0,0 +1,262 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Per-channel histograms and statistics of an image.
+ *
+ * The image is counted in bands on the filter worker pool. Each band fills
+ * histograms of its own, without any sharing between threads, and the band
+ * histograms are added together when the band is done, so counting scales
+ * with the number of cores.
+ *
+ * Besides the red, green and blue channels, the luma channel holds the
+ * Rec. 601 luma (0.299 R + 0.587 G + 0.114 B) of every pixel.
+ *
+ * The statistics drive {@link #autoLevelsLut} and {@link #equalizeLut},
+ * which {@link imageEditor#autoLevels} and {@link imageEditor#equalize}
+ * apply in a single lookup table pass.
+ */
+public class histogram {
+
+    /** Channel index of red. */
+    public static final int RED = 0;
+
+    /** Channel index of green. */
+    public static final int GREEN = 1;
+
+    /** Channel index of blue. */
+    public static final int BLUE = 2;
+
+    /** Channel index of luma. */
+    public static final int LUMA = 3;
+
+    private static final int CHANNELS = 4;
+
+    // counts[channel * 256 + level] is the number of pixels with that level.
+    private final long[] counts = new long[CHANNELS * 256];
+    private final long pixels;
+
+    /**
+     * Counts the levels of every pixel of an image.
+     *
+     * @param inputImg The image to analyze.
+     */
+    public histogram(BufferedImage inputImg) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        this.pixels = (long) src.width * src.height;
+
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            // Histograms of this band only, merged into the shared ones at the end.
+            long[] local = new long[CHANNELS * 256];
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                for (int j = 0; j < src.width; j++) {
+                    int r = (row[j] >> 16) & 0xFF;
+                    int g = (row[j] >> 8) & 0xFF;
+                    int b = row[j] & 0xFF;
+                    local[r]++;
+                    local[256 + g]++;
+                    local[512 + b]++;
+                    local[768 + ((77 * r + 150 * g + 29 * b + 128) >> 8)]++;
+                }
+            }
+            synchronized (counts) {
+                for (int k = 0; k < counts.length; k++) {
+                    counts[k] += local[k];
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of pixels counted.
+     *
+     * @return The width times the height of the image.
+     */
+    public long getPixelCount() {
+        return pixels;
+    }
+
+    /**
+     * Returns how many pixels have a level in a channel.
+     *
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMA}.
+     * @param level   The level, in [0, 255].
+     * @return The number of pixels.
+     */
+    public long count(int channel, int level) {
+        checkChannel(channel);
+        if (level < 0 || level > 255) {
+            throw new IllegalArgumentException("level must be in [0, 255]: " + level);
+        }
+        return counts[channel * 256 + level];
+    }
+
+    /**
+     * Returns the histogram of a channel.
+     *
+     * @param channel The channel index.
+     * @return A copy of the 256 counts.
+     */
+    public long[] getCounts(int channel) {
+        checkChannel(channel);
+        long[] copy = new long[256];
+        System.arraycopy(counts, channel * 256, copy, 0, 256);
+        return copy;
+    }
+
+    /**
+     * Returns the lowest level present in a channel.
+     *
+     * @param channel The channel index.
+     * @return The minimum, or -1 for an empty image.
+     */
+    public int min(int channel) {
+        checkChannel(channel);
+        for (int level = 0; level < 256; level++) {
+            if (counts[channel * 256 + level] > 0) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the highest level present in a channel.
+     *
+     * @param channel The channel index.
+     * @return The maximum, or -1 for an empty image.
+     */
+    public int max(int channel) {
+        checkChannel(channel);
+        for (int level = 255; level >= 0; level--) {
+            if (counts[channel * 256 + level] > 0) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the mean level of a channel.
+     *
+     * @param channel The channel index.
+     * @return The mean, or NaN for an empty image.
+     */
+    public double mean(int channel) {
+        checkChannel(channel);
+        double sum = 0;
+        for (int level = 0; level < 256; level++) {
+            sum += (double) level * counts[channel * 256 + level];
+        }
+        return pixels == 0 ? Double.NaN : sum / pixels;
+    }
+
+    /**
+     * Returns the smallest level such that at least the given percentage of
+     * pixels are at or below it.
+     *
+     * @param channel The channel index.
+     * @param percent The percentage, in [0, 100].
+     * @return The percentile level, or -1 for an empty image.
+     */
+    public int percentile(int channel, double percent) {
+        checkChannel(channel);
+        if (!(percent >= 0 && percent <= 100)) {
+            throw new IllegalArgumentException("percent must be in [0, 100]: " + percent);
+        }
+        if (pixels == 0) {
+            return -1;
+        }
+        // At least one pixel, so that the 0th percentile is the minimum.
+        double target = Math.max(1, Math.ceil(pixels * percent / 100));
+        long seen = 0;
+        for (int level = 0; level < 256; level++) {
+            seen += counts[channel * 256 + level];
+            if (seen >= target) {
+                return level;
+            }
+        }
+        return 255;
+    }
+
+    /**
+     * Returns the median level of a channel.
+     *
+     * @param channel The channel index.
+     * @return The 50th percentile.
+     */
+    public int median(int channel) {
+        return percentile(channel, 50);
+    }
+
+    /**
+     * Builds the table that stretches a color channel so that its
+     * clipPercent-th and (100 - clipPercent)-th percentiles become 0 and 255.
+     * A channel with a single level is left as it is.
+     *
+     * @param channel     {@link #RED}, {@link #GREEN} or {@link #BLUE}.
+     * @param clipPercent The percentage of pixels allowed to clip at each end, in [0, 50).
+     * @return The 256 output levels.
+     */
+    public int[] autoLevelsLut(int channel, double clipPercent) {
+        if (!(clipPercent >= 0 && clipPercent < 50)) {
+            throw new IllegalArgumentException("clipPercent must be in [0, 50): " + clipPercent);
+        }
+        int low = percentile(channel, clipPercent);
+        int high = percentile(channel, 100 - clipPercent);
+        int[] lut = new int[256];
+        for (int level = 0; level < 256; level++) {
+            if (high <= low) {
+                lut[level] = level;
+            } else {
+                int stretched = (int) Math.round((level - low) * 255.0 / (high - low));
+                lut[level] = Math.max(0, Math.min(255, stretched));
+            }
+        }
+        return lut;
+    }
+
+    /**
+     * Builds the table that equalizes a channel: each level is mapped to its
+     * cumulative share of pixels, scaled so the lowest present level becomes 0
+     * and the highest 255.
+     *
+     * @param channel The channel index.
+     * @return The 256 output levels.
+     */
+    public int[] equalizeLut(int channel) {
+        checkChannel(channel);
+        int[] lut = new int[256];
+        int first = min(channel);
+        if (first < 0) {
+            return identityLut();
+        }
+        long below = counts[channel * 256 + first];
+        long range = pixels - below;
+        if (range == 0) {
+            // A single level: nothing to spread out.
+            return identityLut();
+        }
+        long seen = 0;
+        for (int level = 0; level < 256; level++) {
+            seen += counts[channel * 256 + level];
+            lut[level] = level < first ? 0 : (int) Math.round((seen - below) * 255.0 / range);
+        }
+        return lut;
+    }
+
+    private static int[] identityLut() {
+        int[] lut = new int[256];
+        for (int level = 0; level < 256; level++) {
+            lut[level] = level;
+        }
+        return lut;
+    }
+
+    private static void checkChannel(int channel) {
+        if (channel < 0 || channel >= CHANNELS) {
+            throw new IllegalArgumentException("channel must be in [0, " + CHANNELS + "): " + channel);
+        }
+    }
+}
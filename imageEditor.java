@@ -1,5 +1,4 @@
-
-import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
@@ -9,6 +8,10 @@ import javax.imageio.*;
 
 public class imageEditor {
 
+    // Names of the menu choices for the metrics, as in opChain.
+    private static final String[] MENU_NAMES = { "", "gray", "brightness", "negative", "sepia", "rotate",
+            "rotateccw", "mirrorh", "mirrorv", "red", "green", "blue", "pixelate", "print", "blur", "exit" };
+
     /**
      * Converts a color image to grayscale.
      *
@@ -17,19 +20,38 @@ public class imageEditor {
      */
     public static BufferedImage grayScale(BufferedImage inputImg) {
         // Create a new BufferedImage with the same dimensions, but in grayscale format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
+        BufferedImage outputImg = pixelEngine.newImage(inputImg.getWidth(), inputImg.getHeight(),
                 BufferedImage.TYPE_BYTE_GRAY);
 
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the RGB color of the pixel in the input image.
-                int rgb = inputImg.getRGB(j, i);
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        byte[] out = pixelEngine.grayData(outputImg);
 
-                // Set the same grayscale value for the pixel in the output image.
-                outputImg.setRGB(j, i, rgb);
-            }
+        // Gray and indexed images have at most 256 colors: convert each one once.
+        int[] palette = src.palette();
+        byte[] levels = null;
+        if (palette != null) {
+            levels = new byte[palette.length];
+            pixelEngine.luminanceRow(palette, levels, 0, palette.length);
         }
+        byte[] paletteLevels = levels;
+
+        // Iterate over each row in the input image, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                int o = i * src.width;
+                if (paletteLevels != null) {
+                    src.readIndices(i, row);
+                    for (int j = 0; j < src.width; j++) {
+                        out[o + j] = paletteLevels[row[j]];
+                    }
+                } else {
+                    // Store the luminance of each pixel, as the gray color model would.
+                    src.readRow(i, row);
+                    pixelEngine.luminanceRow(row, out, o, src.width);
+                }
+            }
+        });
 
         // Return the grayscale image.
         return outputImg;
@@ -45,38 +67,59 @@ public class imageEditor {
      * @return The image with adjusted brightness.
      */
     public static BufferedImage changeBrightness(BufferedImage inputImg, double percent) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image.
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Calculate the new brightness based on the input percentage.
-                double brightness = 1 + (percent / 100);
-
-                // Adjust the color channels (red, green, blue) by applying the brightness
-                // factor.
-                int red = (int) (color.getRed() * brightness);
-                int green = (int) (color.getGreen() * brightness);
-                int blue = (int) (color.getBlue() * brightness);
-
-                // Ensure that color values stay within the valid range [0, 255].
-                red = Math.max(0, Math.min(255, red));
-                green = Math.max(0, Math.min(255, green));
-                blue = Math.max(0, Math.min(255, blue));
-
-                // Create a new color with the adjusted channels.
-                Color newColor = new Color(red, green, blue);
-
-                // Set the pixel color in the output image.
-                outputImg.setRGB(j, i, newColor.getRGB());
-            }
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        return changeBrightness(inputImg, pixelEngine.newOutputImage(inputImg), percent);
+    }
+
+    /**
+     * Adjusts the brightness of an image in place.
+     *
+     * @param img     The image to change; see {@link #canEditInPlace}.
+     * @param percent The percentage by which to change brightness.
+     * @return The same image.
+     */
+    public static BufferedImage changeBrightnessInPlace(BufferedImage img, double percent) {
+        return changeBrightness(checkInPlace(img), img, percent);
+    }
+
+    private static BufferedImage changeBrightness(BufferedImage inputImg, BufferedImage outputImg, double percent) {
+        // Calculate the new brightness based on the input percentage.
+        double brightness = 1 + (percent / 100);
+
+        // Every channel is scaled by the same factor, so precompute the result for all 256 levels
+        // and keep the values within the valid range [0, 255].
+        byte[] lut = new byte[256];
+        for (int c = 0; c < 256; c++) {
+            lut[c] = (byte) Math.max(0, Math.min(255, (int) (c * brightness)));
         }
 
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // The SIMD kernels need the table as a fixed-point factor, when there is an exact one.
+        vectorSupport.Kernels simd = vectorSupport.KERNELS;
+        int multiplier = simd == null ? -1 : vectorSupport.brightnessMultiplier(lut);
+
+        // Iterate over each row in the input image, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                if (multiplier >= 0) {
+                    simd.scale(row, src.width, multiplier);
+                    sink.writeRow(i, row);
+                    continue;
+                }
+                for (int j = 0; j < src.width; j++) {
+                    // Scale the color channels and keep the alpha as it is.
+                    int argb = row[j];
+                    row[j] = (argb & 0xFF000000) | ((lut[(argb >> 16) & 0xFF] & 0xFF) << 16)
+                            | ((lut[(argb >> 8) & 0xFF] & 0xFF) << 8) | (lut[argb & 0xFF] & 0xFF);
+                }
+                sink.writeRow(i, row);
+            }
+        });
+
         // Return the image with adjusted brightness.
         return outputImg;
     }
@@ -88,29 +131,40 @@ public class imageEditor {
      * @return The negative image.
      */
     public static BufferedImage negative(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image.
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Calculate the negative color values by subtracting each channel value from
-                // 255.
-                int red = 255 - color.getRed();
-                int green = 255 - color.getGreen();
-                int blue = 255 - color.getBlue();
-
-                // Create a new color with the negative color values.
-                Color newColor = new Color(red, green, blue);
-
-                // Set the pixel color in the output image.
-                outputImg.setRGB(j, i, newColor.getRGB());
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        return negative(inputImg, pixelEngine.newOutputImage(inputImg));
+    }
+
+    /**
+     * Converts an image to its negative in place.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage negativeInPlace(BufferedImage img) {
+        return negative(checkInPlace(img), img);
+    }
+
+    private static BufferedImage negative(BufferedImage inputImg, BufferedImage outputImg) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Iterate over each row in the input image, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                if (vectorSupport.KERNELS != null) {
+                    vectorSupport.KERNELS.xor(row, src.width, 0xFFFFFF);
+                } else {
+                    for (int j = 0; j < src.width; j++) {
+                        // Subtracting each 8-bit channel from 255 is the same as flipping its bits.
+                        row[j] ^= 0xFFFFFF;
+                    }
+                }
+                sink.writeRow(i, row);
             }
-        }
+        });
 
         // Return the negative image.
         return outputImg;
@@ -123,34 +177,40 @@ public class imageEditor {
      * @return The image with the sepia effect applied.
      */
     public static BufferedImage sepia(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image.
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Calculate the sepia color values based on a weighted combination of the
-                // original color channels.
-                int red = (int) (color.getRed() * 0.393 + color.getGreen() * 0.769 + color.getBlue() * 0.189);
-                int green = (int) (color.getRed() * 0.349 + color.getGreen() * 0.686 + color.getBlue() * 0.168);
-                int blue = (int) (color.getRed() * 0.272 + color.getGreen() * 0.534 + color.getBlue() * 0.131);
-
-                // Ensure that color values stay within the valid range [0, 255].
-                red = Math.max(0, Math.min(255, red));
-                green = Math.max(0, Math.min(255, green));
-                blue = Math.max(0, Math.min(255, blue));
-
-                // Create a new color with the sepia color values.
-                Color newColor = new Color(red, green, blue);
-
-                // Set the pixel color in the output image.
-                outputImg.setRGB(j, i, newColor.getRGB());
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg);
+
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Iterate over each row in the input image, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                if (vectorSupport.KERNELS != null) {
+                    vectorSupport.KERNELS.sepia(row, src.width);
+                    sink.writeRow(i, row);
+                    continue;
+                }
+                for (int j = 0; j < src.width; j++) {
+                    int r = (row[j] >> 16) & 0xFF;
+                    int g = (row[j] >> 8) & 0xFF;
+                    int b = row[j] & 0xFF;
+
+                    // Calculate the sepia color values based on a weighted combination of the
+                    // original color channels.
+                    int red = (int) (r * 0.393 + g * 0.769 + b * 0.189);
+                    int green = (int) (r * 0.349 + g * 0.686 + b * 0.168);
+                    int blue = (int) (r * 0.272 + g * 0.534 + b * 0.131);
+
+                    // Ensure that color values stay within the valid range [0, 255].
+                    row[j] = (row[j] & 0xFF000000) | (Math.min(255, red) << 16) | (Math.min(255, green) << 8)
+                            | Math.min(255, blue);
+                }
+                sink.writeRow(i, row);
             }
-        }
+        });
 
         // Return the image with the sepia effect applied.
         return outputImg;
@@ -164,40 +224,8 @@ public class imageEditor {
      * @return The rotated image.
      */
     public static BufferedImage rotate(BufferedImage inputImg, double angle) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Convert the angle from degrees to radians.
-        double radians = Math.toRadians(angle);
-
-        // Calculate sine and cosine values for the rotation angle.
-        double sin = Math.sin(radians);
-        double cos = Math.cos(radians);
-
-        // Calculate the center of rotation.
-        double x0 = 0.5 * (inputImg.getWidth() - 1);
-        double y0 = 0.5 * (inputImg.getHeight() - 1);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Calculate the new pixel position after rotation.
-                double a = j - x0;
-                double b = i - y0;
-                int x = (int) (+a * cos - b * sin + x0);
-                int y = (int) (+a * sin + b * cos + y0);
-
-                // Check if the new pixel position is within the bounds of the input image.
-                if (x >= 0 && x < inputImg.getWidth() && y >= 0 && y < inputImg.getHeight()) {
-                    // Get the color of the pixel in the input image and set it in the output image.
-                    outputImg.setRGB(j, i, inputImg.getRGB(x, y));
-                }
-            }
-        }
-
-        // Return the rotated image.
-        return outputImg;
+        // Keep the input dimensions and sample the nearest pixel, as this method always has.
+        return rotation.rotate(inputImg, angle, rotation.Sampling.NEAREST, false);
     }
 
     /**
@@ -209,40 +237,8 @@ public class imageEditor {
      * @return The rotated image.
      */
     public static BufferedImage rotateCounterclockwise(BufferedImage inputImg, double angle) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Convert the angle from degrees to radians.
-        double radians = Math.toRadians(angle);
-
-        // Calculate sine and cosine values for the rotation angle.
-        double sin = Math.sin(radians);
-        double cos = Math.cos(radians);
-
-        // Calculate the center of rotation.
-        double x0 = 0.5 * (inputImg.getWidth() - 1);
-        double y0 = 0.5 * (inputImg.getHeight() - 1);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Calculate the new pixel position after rotation.
-                double a = j - x0;
-                double b = i - y0;
-                int x = (int) (+a * cos + b * sin + x0);
-                int y = (int) (-a * sin + b * cos + y0);
-
-                // Check if the new pixel position is within the bounds of the input image.
-                if (x >= 0 && x < inputImg.getWidth() && y >= 0 && y < inputImg.getHeight()) {
-                    // Get the color of the pixel in the input image and set it in the output image.
-                    outputImg.setRGB(j, i, inputImg.getRGB(x, y));
-                }
-            }
-        }
-
-        // Return the counterclockwise rotated image.
-        return outputImg;
+        // Keep the input dimensions and sample the nearest pixel, as this method always has.
+        return rotation.rotate(inputImg, -angle, rotation.Sampling.NEAREST, false);
     }
 
     /**
@@ -252,18 +248,35 @@ public class imageEditor {
      * @return The horizontally mirrored image.
      */
     public static BufferedImage mirrorHorizontal(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel row in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            // Iterate over each pixel column in the input image.
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image and mirror it horizontally.
-                outputImg.setRGB(j, i, inputImg.getRGB(inputImg.getWidth() - j - 1, i));
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        return mirrorHorizontal(inputImg, pixelEngine.newOutputImage(inputImg));
+    }
+
+    /**
+     * Mirrors an image horizontally in place, swapping the pixels of each row.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage mirrorHorizontalInPlace(BufferedImage img) {
+        return mirrorHorizontal(checkInPlace(img), img);
+    }
+
+    private static BufferedImage mirrorHorizontal(BufferedImage inputImg, BufferedImage outputImg) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Iterate over each pixel row in the input image, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+
+                // Write the row back to front.
+                reverse(row, src.width);
+                sink.writeRow(i, row);
             }
-        }
+        });
 
         // Return the horizontally mirrored image.
         return outputImg;
@@ -276,23 +289,85 @@ public class imageEditor {
      * @return The vertically mirrored image.
      */
     public static BufferedImage mirrorVertical(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel row in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            // Iterate over each pixel column in the input image.
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image and mirror it vertically.
-                outputImg.setRGB(j, i, inputImg.getRGB(j, inputImg.getHeight() - i - 1));
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg);
+
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Copy each input row into the mirrored output row, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(src.height - i - 1, row);
+                sink.writeRow(i, row);
             }
-        }
+        });
 
         // Return the vertically mirrored image.
         return outputImg;
     }
 
+    /**
+     * Mirrors an image vertically in place, swapping its rows.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage mirrorVerticalInPlace(BufferedImage img) {
+        swapRows(checkInPlace(img), false);
+        return img;
+    }
+
+    /**
+     * Rotates an image by 180 degrees in place.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage rotate180InPlace(BufferedImage img) {
+        swapRows(checkInPlace(img), true);
+        return img;
+    }
+
+    /**
+     * Swaps each row of the top half of an image with its mirror row in the
+     * bottom half, optionally reversing both.
+     */
+    private static void swapRows(BufferedImage img, boolean reverse) {
+        pixelEngine.Source src = new pixelEngine.Source(img);
+        pixelEngine.Sink sink = new pixelEngine.Sink(img);
+
+        // Each task swaps a band of the top half, so no two tasks touch the same row.
+        int pairs = (src.height + 1) / 2;
+        parallelExecutor.forEachBand(pairs, src.width * 2, (from, to) -> {
+            int[] top = new int[src.width];
+            int[] bottom = new int[src.width];
+            for (int i = from; i < to; i++) {
+                int mirror = src.height - 1 - i;
+                src.readRow(i, top);
+                src.readRow(mirror, bottom);
+                if (reverse) {
+                    reverse(top, src.width);
+                    reverse(bottom, src.width);
+                }
+                // The middle row of an odd height is its own mirror.
+                sink.writeRow(i, bottom);
+                if (mirror != i) {
+                    sink.writeRow(mirror, top);
+                }
+            }
+        });
+    }
+
+    private static void reverse(int[] row, int length) {
+        for (int j = 0, k = length - 1; j < k; j++, k--) {
+            int argb = row[j];
+            row[j] = row[k];
+            row[k] = argb;
+        }
+    }
+
     /**
      * Applies a red filter to an image, preserving only the red color channel.
      *
@@ -300,28 +375,17 @@ public class imageEditor {
      * @return The image with only the red color channel preserved.
      */
     public static BufferedImage redFilter(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image.
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Extract the red color channel and set other color channels to zero.
-                int red = color.getRed();
-                Color newColor = new Color(red, 0, 0);
-
-                // Set the pixel color in the output image with only the red color channel
-                // preserved.
-                outputImg.setRGB(j, i, newColor.getRGB());
-            }
-        }
+        return channelFilter(inputImg, 0xFF0000);
+    }
 
-        // Return the image with the red filter applied.
-        return outputImg;
+    /**
+     * Applies a red filter to an image in place.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage redFilterInPlace(BufferedImage img) {
+        return channelFilter(checkInPlace(img), img, 0xFF0000);
     }
 
     /**
@@ -331,28 +395,17 @@ public class imageEditor {
      * @return The image with only the green color channel preserved.
      */
     public static BufferedImage greenFilter(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image.
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Extract the green color channel and set other color channels to zero.
-                int green = color.getGreen();
-                Color newColor = new Color(0, green, 0);
-
-                // Set the pixel color in the output image with only the green color channel
-                // preserved.
-                outputImg.setRGB(j, i, newColor.getRGB());
-            }
-        }
+        return channelFilter(inputImg, 0x00FF00);
+    }
 
-        // Return the image with the green filter applied.
-        return outputImg;
+    /**
+     * Applies a green filter to an image in place.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage greenFilterInPlace(BufferedImage img) {
+        return channelFilter(checkInPlace(img), img, 0x00FF00);
     }
 
     /**
@@ -362,30 +415,77 @@ public class imageEditor {
      * @return The image with only the blue color channel preserved.
      */
     public static BufferedImage blueFilter(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel in the input image.
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Extract the blue color channel and set other color channels to zero.
-                int blue = color.getBlue();
-                Color newColor = new Color(0, 0, blue);
-
-                // Set the pixel color in the output image with only the blue color channel
-                // preserved.
-                outputImg.setRGB(j, i, newColor.getRGB());
+        return channelFilter(inputImg, 0x0000FF);
+    }
+
+    /**
+     * Applies a blue filter to an image in place.
+     *
+     * @param img The image to change; see {@link #canEditInPlace}.
+     * @return The same image.
+     */
+    public static BufferedImage blueFilterInPlace(BufferedImage img) {
+        return channelFilter(checkInPlace(img), img, 0x0000FF);
+    }
+
+    /**
+     * Keeps the color channels selected by a mask and sets the others to zero.
+     *
+     * @param inputImg The input image to filter.
+     * @param mask     The 0xRRGGBB mask of the channels to keep; alpha is always kept.
+     * @return The filtered image.
+     */
+    private static BufferedImage channelFilter(BufferedImage inputImg, int mask) {
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        return channelFilter(inputImg, pixelEngine.newOutputImage(inputImg), mask);
+    }
+
+    private static BufferedImage channelFilter(BufferedImage inputImg, BufferedImage outputImg, int mask) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Iterate over each row in the input image, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                if (vectorSupport.KERNELS != null) {
+                    vectorSupport.KERNELS.and(row, src.width, mask | 0xFF000000);
+                } else {
+                    for (int j = 0; j < src.width; j++) {
+                        row[j] &= mask | 0xFF000000;
+                    }
+                }
+                sink.writeRow(i, row);
             }
-        }
+        });
 
-        // Return the image with the blue filter applied.
+        // Return the filtered image.
         return outputImg;
     }
 
+    /**
+     * Whether the in-place variants of the filters accept an image: a whole
+     * TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR, TYPE_3BYTE_BGR or
+     * TYPE_4BYTE_ABGR image, the types the filters produce, or a whole
+     * {@link mappedStore} image. Other images must go through the filters
+     * that return a new image.
+     *
+     * @param img The image.
+     * @return Whether the image can be changed in place.
+     */
+    public static boolean canEditInPlace(BufferedImage img) {
+        return pixelEngine.isWritable(img);
+    }
+
+    private static BufferedImage checkInPlace(BufferedImage img) {
+        if (!canEditInPlace(img)) {
+            throw new IllegalArgumentException("cannot change an image of type " + img.getType()
+                    + " in place; use the filter that returns a new image");
+        }
+        return img;
+    }
+
     /**
      * Applies a pixelated effect to an image.
      *
@@ -395,53 +495,14 @@ public class imageEditor {
      * @return The pixelated image.
      */
     public static BufferedImage pixelate(BufferedImage inputImg, int pixelSize) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over the input image in blocks of pixelSize x pixelSize.
-        for (int i = 0; i < inputImg.getHeight(); i += pixelSize) {
-            for (int j = 0; j < inputImg.getWidth(); j += pixelSize) {
-                int red = 0, green = 0, blue = 0;
-                int count = 0;
-
-                // Iterate over the pixels within the current pixel block.
-                for (int k = 0; k < pixelSize; k++) {
-                    for (int l = 0; l < pixelSize; l++) {
-                        if (i + k < inputImg.getHeight() && j + l < inputImg.getWidth()) {
-                            // Get the color of the pixel in the input image.
-                            Color color = new Color(inputImg.getRGB(j + l, i + k));
-
-                            // Accumulate color channel values.
-                            red += color.getRed();
-                            green += color.getGreen();
-                            blue += color.getBlue();
-                            count++;
-                        }
-                    }
-                }
-
-                // Calculate the average color within the pixel block.
-                red /= count;
-                green /= count;
-                blue /= count;
-
-                // Create a new color with the average values.
-                Color newColor = new Color(red, green, blue);
-
-                // Set the entire pixel block in the output image with the average color.
-                for (int k = 0; k < pixelSize; k++) {
-                    for (int l = 0; l < pixelSize; l++) {
-                        if (i + k < inputImg.getHeight() && j + l < inputImg.getWidth()) {
-                            outputImg.setRGB(j + l, i + k, newColor.getRGB());
-                        }
-                    }
-                }
-            }
+        if (pixelSize <= 0) {
+            throw new IllegalArgumentException("pixelSize must be positive: " + pixelSize);
         }
 
-        // Return the pixelated image.
-        return outputImg;
+        // Sum each band of blocks as it is read; a summed-area table of the whole image would
+        // cost 12-16 bytes per pixel. Callers that pixelate the same image repeatedly can keep an
+        // integralImage instead.
+        return integralImage.pixelate(inputImg, pixelSize, pixelSize);
     }
 
     /**
@@ -450,20 +511,9 @@ public class imageEditor {
      * @param inputImg The input image to print pixel values from.
      */
     public static void printPixelValues(BufferedImage inputImg) {
-        // Iterate over the image rows (height).
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            // Iterate over the image columns (width).
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                // Get the color of the pixel at position (j, i).
-                Color color = new Color(inputImg.getRGB(j, i));
-
-                // Print the RGB components of the pixel in the format (R G B).
-                System.out.print("(" + color.getRed() + " " + color.getGreen() + " " + color.getBlue() + ")");
-            }
-
-            // Move to the next line for the next row of pixels.
-            System.out.println();
-        }
+        // Format straight into a buffer in the (R G B) text layout; see pixelDump for
+        // CSV, raw and planar output, regions and strides.
+        pixelDump.print(inputImg);
     }
 
     /**
@@ -473,58 +523,176 @@ public class imageEditor {
      * @return The blurred image.
      */
     public static BufferedImage blur(BufferedImage inputImg) {
-        // Create a new BufferedImage with the same dimensions and color format.
-        BufferedImage outputImg = new BufferedImage(inputImg.getWidth(), inputImg.getHeight(),
-                BufferedImage.TYPE_3BYTE_BGR);
-
-        // Iterate over each pixel in the input image.
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            for (int j = 0; j < inputImg.getWidth(); j++) {
-                int red = 0, green = 0, blue = 0;
-                int count = 0;
-
-                // Apply a 3x3 blur kernel to the neighboring pixels.
-                for (int k = -1; k <= 1; k++) {
-                    for (int l = -1; l <= 1; l++) {
-                        int x = j + l;
-                        int y = i + k;
-
-                        // Check if the pixel coordinates are within the image bounds.
-                        if (x >= 0 && x < inputImg.getWidth() && y >= 0 && y < inputImg.getHeight()) {
-                            Color color = new Color(inputImg.getRGB(x, y));
-                            red += color.getRed();
-                            green += color.getGreen();
-                            blue += color.getBlue();
-                            count++;
-                        }
-                    }
-                }
+        // Average each pixel with its 3x3 neighborhood.
+        return blur(inputImg, 1);
+    }
 
-                // Calculate the average color values to obtain the blurred pixel color.
-                red /= count;
-                green /= count;
-                blue /= count;
+    /**
+     * Applies a box blur of any radius to an image. The cost per pixel does not
+     * grow with the radius.
+     *
+     * @param inputImg The input image to be blurred.
+     * @param radius   The blur radius; each pixel is averaged with the pixels in a
+     *                 (2 * radius + 1) square around it.
+     * @return The blurred image.
+     */
+    public static BufferedImage blur(BufferedImage inputImg, int radius) {
+        return boxBlur.blur(inputImg, radius);
+    }
 
-                // Create a new color with the blurred color values.
-                Color newColor = new Color(red, green, blue);
+    /**
+     * Applies a Gaussian blur to an image, approximated by three box blurs.
+     *
+     * @param inputImg The input image to be blurred.
+     * @param sigma    The standard deviation of the Gaussian, in pixels.
+     * @return The blurred image.
+     */
+    public static BufferedImage gaussianBlur(BufferedImage inputImg, double sigma) {
+        return boxBlur.gaussian(inputImg, sigma);
+    }
 
-                // Set the pixel color in the output image.
-                outputImg.setRGB(j, i, newColor.getRGB());
-            }
-        }
+    /**
+     * Stretches each color channel to the full range, ignoring the darkest and
+     * brightest 0.5% of pixels so that a few outliers do not stop the stretch.
+     *
+     * @param inputImg The input image.
+     * @return The image with its levels adjusted.
+     */
+    public static BufferedImage autoLevels(BufferedImage inputImg) {
+        return autoLevels(inputImg, 0.5);
+    }
 
-        // Return the image with the blur effect applied.
-        return outputImg;
+    /**
+     * Stretches each color channel to the full range.
+     *
+     * @param inputImg    The input image.
+     * @param clipPercent The percentage of pixels allowed to clip to black, and
+     *                    to white, in each channel.
+     * @return The image with its levels adjusted.
+     */
+    public static BufferedImage autoLevels(BufferedImage inputImg, double clipPercent) {
+        // One pass to count, one table pass to apply.
+        histogram stats = new histogram(inputImg);
+        return new pointOpChain().lut(stats.autoLevelsLut(histogram.RED, clipPercent),
+                stats.autoLevelsLut(histogram.GREEN, clipPercent),
+                stats.autoLevelsLut(histogram.BLUE, clipPercent)).apply(inputImg);
+    }
+
+    /**
+     * Equalizes the histogram of an image. The table is built from the luma
+     * histogram and applied to every color channel, which spreads the tones
+     * out without shifting the color balance.
+     *
+     * @param inputImg The input image.
+     * @return The equalized image.
+     */
+    public static BufferedImage equalize(BufferedImage inputImg) {
+        int[] lut = new histogram(inputImg).equalizeLut(histogram.LUMA);
+        return new pointOpChain().lut(lut, lut, lut).apply(inputImg);
+    }
+
+    /**
+     * Sharpens an image by subtracting its four direct neighbors from every
+     * pixel, weighted against five times the pixel itself.
+     *
+     * @param inputImg The input image.
+     * @return The sharpened image.
+     */
+    public static BufferedImage sharpen(BufferedImage inputImg) {
+        return convolution.convolve(inputImg, convolution.SHARPEN, convolution.Border.CLAMP);
+    }
+
+    /**
+     * Detects edges with a Laplacian kernel: edges turn bright, flat areas black.
+     *
+     * @param inputImg The input image.
+     * @return The edge image.
+     */
+    public static BufferedImage detectEdges(BufferedImage inputImg) {
+        return convolution.convolve(inputImg, convolution.EDGES, convolution.Border.CLAMP);
+    }
+
+    /**
+     * Embosses an image, as if lit from the top left.
+     *
+     * @param inputImg The input image.
+     * @return The embossed image.
+     */
+    public static BufferedImage emboss(BufferedImage inputImg) {
+        return convolution.convolve(inputImg, convolution.EMBOSS, convolution.Border.CLAMP);
+    }
+
+    /**
+     * Resizes an image with a Lanczos filter.
+     *
+     * @param inputImg The input image.
+     * @param width    The output width.
+     * @param height   The output height.
+     * @return The resized image.
+     */
+    public static BufferedImage resize(BufferedImage inputImg, int width, int height) {
+        return resize.resize(inputImg, width, height, resize.Filter.LANCZOS3);
+    }
+
+    /**
+     * Shrinks an image to fit within a square, keeping its aspect ratio.
+     * Large reductions halve the image first and only filter the last step.
+     *
+     * @param inputImg The input image.
+     * @param maxSize  The longest side of the result.
+     * @return The shrunk image, or a copy if the image already fits.
+     */
+    public static BufferedImage thumbnail(BufferedImage inputImg, int maxSize) {
+        Dimension size = resize.fit(inputImg.getWidth(), inputImg.getHeight(), maxSize);
+        return resize.resizeAll(inputImg, new Dimension[] { size }, resize.Filter.LANCZOS3)[0];
     }
 
     /**
      * The main method for the Image Editor program.
      *
-     * @param args The command-line arguments provided by the user (not used
-     *             directly for this application).
+     * @param args The command-line arguments provided by the user. When the
+     *             first argument is "batch", "stream", "edit", "bench",
+     *             "dump", "serve" or "load" the rest are handed to
+     *             {@link batchMode}, {@link stripProcessor},
+     *             {@link editSession}, {@link benchmarkSuite},
+     *             {@link pixelDump} or {@link imageServer}; otherwise they are
+     *             not used.
      * @throws IOException If there is an error reading or writing an image file.
      */
     public static void main(String args[]) throws IOException {
+        if (args.length > 0 && args[0].equals("batch")) {
+            batchMode.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stream")) {
+            stripProcessor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("edit")) {
+            editSession.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            benchmarkSuite.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("dump")) {
+            pixelDump.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            imageServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("load")) {
+            try {
+                imageServer.loadTest(Arrays.copyOfRange(args, 1, args.length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         System.out.println("Image Editor!\nChoose a number between 1 and 16:");
         System.out.println("\t1. Convert to grayscale");
@@ -544,17 +712,37 @@ public class imageEditor {
         System.out.println("\t15. Exit");
         System.out.println();
 
-        // Load an image from a file
-        BufferedImage inputImage = ImageIO.read(new File("Wallpaper-1.jpeg"));
+        // Load an image from a file; the result is saved in the same format.
+        File inputFile = new File("Wallpaper-1.jpeg");
+        File outputFile = new File(inputFile.getParentFile(), "Edited" + inputFile.getName());
+        metrics.Span decode = metrics.start("decode", "image");
+        codec.Decoded input = new codec().read(inputFile);
+        BufferedImage inputImage = input.image;
+        long pixels = (long) inputImage.getWidth() * inputImage.getHeight();
+        metrics.end(decode, pixels);
 
         // Select operation to be performed
         int choice = sc.nextInt();
 
         System.out.println("The number you've chosen is " + choice);
-        System.out.println("You can see the output by opening the file -> EditedWallpaper-1.jpeg");
+        System.out.println("You can see the output by opening the file -> " + outputFile);
+
+        // Animated GIFs and multi-page TIFFs get the operation on every frame; printing shows the first one.
+        if (choice >= 1 && choice < MENU_NAMES.length && choice != 13 && choice != 15
+                && multiFrame.frameCount(inputFile) > 1) {
+            String step = MENU_NAMES[choice];
+            if (choice == 2 || choice == 5 || choice == 6) {
+                step += ":" + sc.nextDouble();
+            } else if (choice == 12) {
+                step += ":" + sc.nextInt();
+            }
+            multiFrame.process(inputFile, outputFile, opChain.parse(step));
+            return;
+        }
 
         BufferedImage editedImage = null;
 
+        metrics.Span op = metrics.start("op", choice >= 1 && choice < MENU_NAMES.length ? MENU_NAMES[choice] : "?");
         switch (choice) {
             case 1:
                 editedImage = grayScale(inputImage);
@@ -615,7 +803,14 @@ public class imageEditor {
                 break;
         }
 
-        // Display or save the edited image as needed
-        ImageIO.write(editedImage, "jpg", new File("EditedWallpaper-1.jpeg"));
+        metrics.end(op, pixels);
+
+        // Save the edited image in the input format, with the quality and progressive
+        // settings of the imageEditor.quality and imageEditor.progressive properties.
+        metrics.Span encode = metrics.start("encode", input.format);
+        new codec().quality(Float.parseFloat(System.getProperty("imageEditor.quality", "-1")))
+                .progressive(Boolean.getBoolean("imageEditor.progressive"))
+                .write(editedImage, input.format, outputFile);
+        metrics.end(encode, pixels);
     }
 }
\ No newline at end of file
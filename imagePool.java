@@ -0,0 +1,259 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pool of filter output images, reused by width, height and type.
+ *
+ * Every filter allocates a full-size output image, so a chain of steps on a
+ * large photo allocates hundreds of megabytes that die young. While a pool
+ * is installed with {@link #using}, the filters take their output images
+ * from it instead of allocating them, and {@link opChain} gives back every
+ * intermediate result once the next step has consumed it. A chain then
+ * alternates between two buffers instead of allocating one per step.
+ *
+ * Idle images are bounded by their bytes of pixel data. An acquired image
+ * keeps whatever pixels it had when it was released; filters overwrite
+ * every pixel, and {@link #acquireCleared} is there for those that do not.
+ * The pool is thread-safe.
+ */
+public class imagePool {
+
+    // The pool the filters of the current thread allocate from, if any.
+    private static final ThreadLocal<imagePool> CURRENT = new ThreadLocal<>();
+
+    private final long maxIdleBytes;
+
+    // Idle images per (width, height, type); guarded by this.
+    private final Map<Key, ArrayDeque<BufferedImage>> idle = new HashMap<>();
+    private long idleBytes;
+
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final int type;
+
+        Key(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return width == k.width && height == k.height && type == k.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, height, type);
+        }
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxIdleBytes The most bytes of pixel data kept by idle images.
+     */
+    public imagePool(long maxIdleBytes) {
+        if (maxIdleBytes < 0) {
+            throw new IllegalArgumentException("maxIdleBytes must not be negative: " + maxIdleBytes);
+        }
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * Returns an image of the given size and type, reused when one is idle.
+     * The pixels of a reused image are left as they were.
+     *
+     * @param width  The width.
+     * @param height The height.
+     * @param type   A predefined BufferedImage type.
+     * @return The image.
+     */
+    public BufferedImage acquire(int width, int height, int type) {
+        BufferedImage img = take(width, height, type);
+        return img != null ? img : allocate(width, height, type);
+    }
+
+    /**
+     * Returns an all-zero image of the given size and type, reused when one is
+     * idle: black, and fully transparent for types with alpha.
+     *
+     * @param width  The width.
+     * @param height The height.
+     * @param type   A predefined BufferedImage type.
+     * @return The image.
+     */
+    public BufferedImage acquireCleared(int width, int height, int type) {
+        BufferedImage img = take(width, height, type);
+        if (img == null) {
+            return allocate(width, height, type);
+        }
+        clear(img.getRaster().getDataBuffer());
+        return img;
+    }
+
+    private synchronized BufferedImage take(int width, int height, int type) {
+        ArrayDeque<BufferedImage> images = idle.get(new Key(width, height, type));
+        if (images == null || images.isEmpty()) {
+            return null;
+        }
+        BufferedImage img = images.pop();
+        idleBytes -= resultCache.sizeOf(img);
+        reused.incrementAndGet();
+        return img;
+    }
+
+    private BufferedImage allocate(int width, int height, int type) {
+        allocated.incrementAndGet();
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Gives an image back to the pool. The caller must not use it afterwards.
+     * Images that are not plain predefined-type images, and images that do
+     * not fit the idle budget, are left to the garbage collector.
+     *
+     * @param img The image, or null for none.
+     */
+    public void release(BufferedImage img) {
+        if (img == null || img.getType() == BufferedImage.TYPE_CUSTOM || img.getRaster().getParent() != null
+                || img.getRaster().getMinX() != 0 || img.getRaster().getMinY() != 0) {
+            return;
+        }
+        long size = resultCache.sizeOf(img);
+        Key key = new Key(img.getWidth(), img.getHeight(), img.getType());
+        synchronized (this) {
+            // Make room by dropping idle images of other sizes first.
+            Iterator<Map.Entry<Key, ArrayDeque<BufferedImage>>> it = idle.entrySet().iterator();
+            while (idleBytes + size > maxIdleBytes && it.hasNext()) {
+                Map.Entry<Key, ArrayDeque<BufferedImage>> e = it.next();
+                if (e.getKey().equals(key)) {
+                    continue;
+                }
+                for (BufferedImage old : e.getValue()) {
+                    idleBytes -= resultCache.sizeOf(old);
+                    dropped.incrementAndGet();
+                }
+                it.remove();
+            }
+            if (idleBytes + size > maxIdleBytes) {
+                dropped.incrementAndGet();
+                return;
+            }
+            idle.computeIfAbsent(key, k -> new ArrayDeque<>()).push(img);
+            idleBytes += size;
+        }
+    }
+
+    /**
+     * Drops every idle image.
+     */
+    public synchronized void clear() {
+        idle.clear();
+        idleBytes = 0;
+    }
+
+    /**
+     * Returns how many images were handed out again instead of allocated.
+     *
+     * @return The number of reused images.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Returns how many images had to be allocated.
+     *
+     * @return The number of new images.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the bytes of pixel data held by idle images.
+     *
+     * @return The idle bytes.
+     */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * Runs a task with this pool installed for the filters of the current
+     * thread, then restores the previous pool.
+     *
+     * @param task The task.
+     * @param <T>  The result type.
+     * @return The result of the task.
+     */
+    public <T> T using(Supplier<T> task) {
+        imagePool previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the pool installed for the current thread.
+     *
+     * @return The pool, or null if filters allocate new images.
+     */
+    static imagePool current() {
+        return CURRENT.get();
+    }
+
+    private static void clear(DataBuffer db) {
+        for (int bank = 0; bank < db.getNumBanks(); bank++) {
+            if (db instanceof DataBufferByte) {
+                Arrays.fill(((DataBufferByte) db).getData(bank), (byte) 0);
+            } else if (db instanceof DataBufferInt) {
+                Arrays.fill(((DataBufferInt) db).getData(bank), 0);
+            } else if (db instanceof DataBufferUShort) {
+                Arrays.fill(((DataBufferUShort) db).getData(bank), (short) 0);
+            } else {
+                for (int i = 0; i < db.getSize(); i++) {
+                    db.setElem(bank, i, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the counters in one line, e.g. for a summary.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "pool: %d reused, %d allocated, %d dropped, %.1f MB idle",
+                reused.get(), allocated.get(), dropped.get(), idleBytes / 1e6);
+    }
+}
@@ -0,0 +1,553 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running HTTP service that applies operation chains to posted images,
+ * so that a stream of images pays for JVM startup and JIT warm-up once.
+ *
+ * <pre>
+ * POST /process?ops=sepia,blur:2[&amp;format=png][&amp;quality=0.85][&amp;progressive=true][&amp;preview=512]
+ *                                               body: the encoded image
+ *   200 with the encoded result, in the input format unless format is given
+ *   400 bad chain or unreadable image, 413 body, image or result too large,
+ *   503 too many requests waiting (with Retry-After)
+ * GET /health                                   counters as JSON
+ * GET /metrics                                  the {@link metrics} registry as JSON
+ * </pre>
+ *
+ * Every request runs on a virtual thread when the JVM has them (JDK 21+),
+ * and on a bounded pool of platform threads otherwise. Either way at most
+ * --max-concurrent requests decode and process images at the same time; up
+ * to --queue more wait for a slot, and anything beyond is rejected right
+ * away, so a burst cannot pile up decoded images until the heap runs out.
+ * Image dimensions are read from the header and checked against
+ * --max-pixels before anything is decoded, and so is every image the chain
+ * would produce, e.g. with scale. Without --cache-mb, decoded images and
+ * results are recycled through an {@link imagePool} of --pool-mb megabytes,
+ * so steady traffic stops allocating full-size images.
+ *
+ * The service has no authentication, so it only listens on the loopback
+ * address unless --host names another one, e.g. 0.0.0.0 for every interface.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java imageEditor serve [--host 127.0.0.1] [--port 8080] [--max-concurrent N] [--queue N]
+ *      [--max-pixels 50000000] [--max-body-mb 64] [--cache-mb MB] [--pool-mb 256]
+ * java imageEditor load --url http://localhost:8080/process?ops=sepia --image in.jpg
+ *      [--concurrency 32] [--seconds 10]
+ * </pre>
+ */
+public class imageServer {
+
+    private static final String USAGE = "Usage: java imageEditor serve [--host ADDRESS] [--port N]"
+            + " [--max-concurrent N] [--queue N] [--max-pixels N] [--max-body-mb MB] [--cache-mb MB] [--pool-mb MB]";
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxPixels;
+    private final int maxBodyBytes;
+    private final resultCache cache;
+    private final imagePool pool;
+
+    // Permits for requests that decode and process; the rest wait, up to maxQueued.
+    private final Semaphore slots;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong processedPixels = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates a service; call {@link #start} to listen.
+     *
+     * @param maxConcurrent The most requests processed at the same time.
+     * @param maxQueued     The most requests waiting for a slot.
+     * @param maxPixels     The largest accepted width times height.
+     * @param maxBodyBytes  The largest accepted request body.
+     * @param cache         A result cache shared by all requests, or null.
+     */
+    public imageServer(int maxConcurrent, int maxQueued, long maxPixels, int maxBodyBytes, resultCache cache) {
+        this(maxConcurrent, maxQueued, maxPixels, maxBodyBytes, cache, null);
+    }
+
+    /**
+     * Creates a service that recycles its images; call {@link #start} to listen.
+     *
+     * @param maxConcurrent The most requests processed at the same time.
+     * @param maxQueued     The most requests waiting for a slot.
+     * @param maxPixels     The largest accepted width times height.
+     * @param maxBodyBytes  The largest accepted request body.
+     * @param cache         A result cache shared by all requests, or null.
+     * @param pool          A pool for the images of uncached requests, or null.
+     */
+    public imageServer(int maxConcurrent, int maxQueued, long maxPixels, int maxBodyBytes, resultCache cache,
+            imagePool pool) {
+        if (maxConcurrent < 1 || maxQueued < 0 || maxPixels < 1 || maxBodyBytes < 1) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxPixels = maxPixels;
+        this.maxBodyBytes = maxBodyBytes;
+        this.cache = cache;
+        this.pool = pool;
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Starts listening on the loopback address only, since the service has no authentication.
+     *
+     * @param port The TCP port, or 0 for any free port.
+     * @return The port the server listens on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public int start(int port) throws IOException {
+        return start(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Starts listening.
+     *
+     * @param address The local address to bind, or null for every interface.
+     * @param port    The TCP port, or 0 for any free port.
+     * @return The port the server listens on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public synchronized int start(InetAddress address, int port) throws IOException {
+        executor = newRequestExecutor(maxConcurrent + maxQueued);
+        server = HttpServer.create(new InetSocketAddress(address, port), maxConcurrent + maxQueued);
+        server.createContext("/process", this::process);
+        server.createContext("/health", this::health);
+        server.createContext("/metrics", this::metricsReport);
+        metrics.registerGauge("server.waiting", () -> Math.max(0, waiting.get() - maxConcurrent));
+        metrics.registerGauge("server.active", () -> maxConcurrent - slots.availablePermits());
+        server.setExecutor(executor);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops listening, letting running requests finish for up to a few seconds.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(2);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    /**
+     * One virtual thread per request when the JVM supports it, looked up
+     * reflectively so the code still compiles and runs on JDK 17. Otherwise
+     * one platform thread per request, up to twice the admitted requests; the
+     * executor has no queue of its own, so requests never wait before the
+     * admission check, and past the limit the dispatcher thread answers them
+     * itself (they are rejected at once anyway).
+     */
+    private static ExecutorService newRequestExecutor(int admitted) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return new ThreadPoolExecutor(0, admitted * 2 + 4, 30, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
+    /**
+     * Returns whether requests run on virtual threads.
+     *
+     * @return True on JVMs with virtual threads.
+     */
+    static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "use POST");
+                return;
+            }
+            Map<String, String> query = query(exchange.getRequestURI());
+            opChain ops;
+            codec imageCodec;
+            try {
+                ops = opChain.parse(query.getOrDefault("ops", ""));
+                imageCodec = new codec().quality(Float.parseFloat(query.getOrDefault("quality", "-1")))
+                        .progressive(Boolean.parseBoolean(query.get("progressive")))
+                        .preview(Integer.parseInt(query.getOrDefault("preview", "0")));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, e.getMessage());
+                return;
+            }
+
+            // Backpressure: wait for a slot if few enough requests are waiting, else reject now.
+            if (waiting.incrementAndGet() > maxQueued + maxConcurrent) {
+                waiting.decrementAndGet();
+                rejected.incrementAndGet();
+                // Read the body anyway so the client sees the answer instead of a reset connection.
+                readBody(exchange.getRequestBody());
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, "server busy");
+                return;
+            }
+            try {
+                slots.acquireUninterruptibly();
+                try {
+                    handle(exchange, ops, imageCodec, query.get("format"));
+                } finally {
+                    slots.release();
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            send(exchange, 500, "processing failed: " + e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange, opChain ops, codec imageCodec, String requestedFormat)
+            throws IOException {
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null) {
+            send(exchange, 413, "request body larger than " + maxBodyBytes + " bytes");
+            return;
+        }
+
+        codec.Decoded decoded;
+        metrics.Span span = metrics.start("decode", "image");
+        try {
+            decoded = imageCodec.read(new ByteArrayInputStream(body), maxPixels);
+        } catch (codec.TooLargeException e) {
+            send(exchange, 413, e.getMessage());
+            return;
+        } catch (IOException e) {
+            send(exchange, 400, "cannot decode image" + (e.getMessage() == null ? "" : ": " + e.getMessage()));
+            return;
+        }
+        BufferedImage img = decoded.image;
+        String format = decoded.format;
+        metrics.end(span, (long) img.getWidth() * img.getHeight());
+        if (requestedFormat != null) {
+            format = requestedFormat.toLowerCase(Locale.ROOT);
+        }
+        if (!codec.canWrite(format)) {
+            send(exchange, 400, "no image writer for format " + format);
+            return;
+        }
+
+        long pixels = (long) img.getWidth() * img.getHeight();
+        // Steps such as scale:10000 can grow a small image past the limit the decoder enforced.
+        long peak = ops.peakPixels(img.getWidth(), img.getHeight());
+        if (peak > maxPixels) {
+            send(exchange, 413, "chain would produce an image of " + peak + " pixels, more than " + maxPixels);
+            return;
+        }
+        // Cached results are shared; otherwise the decoded image and the result are this request's to recycle.
+        BufferedImage result = cache == null ? ops.applyConsuming(img, pool) : cache.apply(img, ops);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        span = metrics.start("encode", format);
+        try {
+            imageCodec.write(result, format, out);
+        } catch (IOException e) {
+            send(exchange, 400, "cannot encode the result as " + format + ": " + e.getMessage());
+            return;
+        } finally {
+            if (cache == null && pool != null) {
+                pool.release(result);
+            }
+        }
+        metrics.end(span, (long) result.getWidth() * result.getHeight());
+        processed.incrementAndGet();
+        processedPixels.addAndGet(pixels);
+
+        exchange.getResponseHeaders().set("Content-Type", "image/" + format);
+        exchange.sendResponseHeaders(200, out.size());
+        try (OutputStream os = exchange.getResponseBody()) {
+            out.writeTo(os);
+        }
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        try {
+            String json = String.format(Locale.ROOT,
+                    "{\"processed\":%d,\"rejected\":%d,\"failed\":%d,\"megapixels\":%.1f,\"active\":%d,"
+                            + "\"waiting\":%d,\"maxConcurrent\":%d,\"maxQueued\":%d,\"virtualThreads\":%b}",
+                    processed.get(), rejected.get(), failed.get(), processedPixels.get() / 1e6,
+                    maxConcurrent - slots.availablePermits(), Math.max(0, waiting.get() - maxConcurrent),
+                    maxConcurrent, maxQueued, hasVirtualThreads());
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void metricsReport(HttpExchange exchange) throws IOException {
+        try {
+            if (!metrics.ENABLED) {
+                send(exchange, 404, "start the server with -DimageEditor.metrics=json to collect metrics");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            byte[] bytes = metrics.toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the whole body, or returns null if it exceeds the limit; the rest
+     * of an oversized body is skipped.
+     */
+    private byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        boolean tooLarge = false;
+        for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+            if (!tooLarge && body.size() + n > maxBodyBytes) {
+                tooLarge = true;
+                body = null;
+            }
+            if (!tooLarge) {
+                body.write(buffer, 0, n);
+            }
+        }
+        return tooLarge ? null : body.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> params = new HashMap<>();
+        String raw = uri.getRawQuery();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    /**
+     * Entry point of the serve command.
+     *
+     * @param args The command-line arguments, without the leading "serve".
+     * @throws IOException If the port cannot be bound.
+     */
+    public static void main(String[] args) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        InetAddress host = InetAddress.getLoopbackAddress();
+        int port = 8080;
+        int maxConcurrent = cores;
+        int maxQueued = cores * 4;
+        long maxPixels = 50_000_000L;
+        int maxBodyMegabytes = 64;
+        long cacheMegabytes = 0;
+        long poolMegabytes = 256;
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--host":
+                        try {
+                            host = InetAddress.getByName(value);
+                        } catch (IOException e) {
+                            throw new IllegalArgumentException("unknown host " + value);
+                        }
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--max-concurrent":
+                        maxConcurrent = Integer.parseInt(value);
+                        break;
+                    case "--queue":
+                        maxQueued = Integer.parseInt(value);
+                        break;
+                    case "--max-pixels":
+                        maxPixels = Long.parseLong(value);
+                        break;
+                    case "--max-body-mb":
+                        maxBodyMegabytes = Integer.parseInt(value);
+                        break;
+                    case "--cache-mb":
+                        cacheMegabytes = Long.parseLong(value);
+                        break;
+                    case "--pool-mb":
+                        poolMegabytes = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0 || maxBodyMegabytes > 2047 || poolMegabytes < 0) {
+                throw new IllegalArgumentException("bad arguments");
+            }
+            resultCache cache = cacheMegabytes > 0 ? new resultCache(cacheMegabytes << 20) : null;
+            imagePool pool = cache == null && poolMegabytes > 0 ? new imagePool(poolMegabytes << 20) : null;
+            imageServer service = new imageServer(maxConcurrent, maxQueued, maxPixels, maxBodyMegabytes << 20, cache,
+                    pool);
+            int bound = service.start(host, port);
+            System.out.printf(Locale.ROOT, "Listening on %s port %d (%s, %d concurrent, %d queued)%n",
+                    host.getHostAddress(), bound, hasVirtualThreads() ? "virtual threads" : "platform threads",
+                    maxConcurrent, maxQueued);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Entry point of the load command: posts the same image from several
+     * client threads for a while and reports the request rate and latencies.
+     *
+     * @param args The command-line arguments, without the leading "load".
+     * @throws IOException          If the image cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the clients.
+     */
+    public static void loadTest(String[] args) throws IOException, InterruptedException {
+        String url = null;
+        String image = null;
+        int concurrency = 32;
+        int seconds = 10;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--url":
+                    url = value;
+                    break;
+                case "--image":
+                    image = value;
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (url == null || image == null) {
+            System.err.println("Usage: java imageEditor load --url <url> --image <file> [--concurrency N]"
+                    + " [--seconds N]");
+            System.exit(2);
+            return;
+        }
+
+        byte[] body = Files.readAllBytes(Paths.get(image));
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(concurrency)).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        Map<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int c = 0; c < concurrency; c++) {
+            clients.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    long t0 = System.nanoTime();
+                    int status;
+                    try {
+                        status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                    } catch (IOException e) {
+                        status = -1;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    statuses.computeIfAbsent(status, s -> new AtomicLong()).incrementAndGet();
+                    if (status == 200) {
+                        latencies.add(System.nanoTime() - t0);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "%d ok in %.1f s: %.1f req/s%n", sorted.length, elapsed,
+                sorted.length / elapsed);
+        if (sorted.length > 0) {
+            System.out.printf(Locale.ROOT, "latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+                    sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.9)] / 1e6,
+                    sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6);
+        }
+        System.out.println("status counts: " + statuses);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,336 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Summed-area table of the red, green and blue channels of an image, and of
+ * its alpha channel when it has one.
+ *
+ * The table is built in one pass over the image and then gives the sum of any
+ * rectangle of pixels in constant time. It can be kept around to answer region
+ * queries on the same image, e.g. the mean color of a crop, or pixelation at
+ * several block sizes without reading the image again. It costs 12 or 16
+ * bytes per pixel, so one-off pixelation, as {@link imageEditor#pixelate}
+ * does, uses {@link #pixelate(BufferedImage, int, int)} instead, which only
+ * keeps the sums of one row of blocks at a time.
+ *
+ * Entries are stored as 32-bit ints that are allowed to wrap around: the
+ * difference of four entries is still exact as long as the true sum fits in
+ * 32 unsigned bits. Larger rectangles are split into pieces that do.
+ */
+public class integralImage {
+
+    // Largest number of pixels whose channel sum is guaranteed to fit in 32 unsigned bits.
+    private static final long MAX_EXACT_AREA = 0xFFFFFFFFL / 255;
+
+    private final int width;
+    private final int height;
+
+    // 3 channels, or 4 when the image has alpha.
+    private final int channels;
+
+    // The type of the images this table paints, matching the indexed image.
+    private final int outputType;
+
+    // (width + 1) * (height + 1) entries of interleaved red, green, blue (and alpha) sums.
+    // Entry (x, y) holds the sums of all pixels above and to the left of (x, y).
+    private final int[] table;
+
+    /**
+     * Builds the summed-area table of an image.
+     *
+     * @param inputImg The image to index.
+     */
+    public integralImage(BufferedImage inputImg) {
+        this.width = inputImg.getWidth();
+        this.height = inputImg.getHeight();
+        this.outputType = pixelEngine.outputType(inputImg);
+
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        this.channels = src.hasAlpha ? 4 : 3;
+        long entries = (long) channels * (width + 1) * (height + 1);
+        if (entries > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("image too large for a summed-area table: " + width + "x" + height);
+        }
+        this.table = new int[(int) entries];
+
+        int[] row = new int[width];
+        int stride = channels * (width + 1);
+
+        // Each entry is the entry above it plus the running sum of the current row.
+        for (int y = 0; y < height; y++) {
+            src.readRow(y, row);
+            int above = y * stride + channels;
+            int here = above + stride;
+            int red = 0, green = 0, blue = 0, alpha = 0;
+            for (int x = 0; x < width; x++, above += channels, here += channels) {
+                int argb = row[x];
+                red += (argb >> 16) & 0xFF;
+                green += (argb >> 8) & 0xFF;
+                blue += argb & 0xFF;
+                table[here] = table[above] + red;
+                table[here + 1] = table[above + 1] + green;
+                table[here + 2] = table[above + 2] + blue;
+                if (channels == 4) {
+                    alpha += argb >>> 24;
+                    table[here + 3] = table[above + 3] + alpha;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the width of the indexed image.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the indexed image.
+     *
+     * @return The height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns whether the table also sums the alpha channel.
+     *
+     * @return True if the indexed image has alpha.
+     */
+    public boolean hasAlpha() {
+        return channels == 4;
+    }
+
+    /**
+     * Returns the sum of one channel over a rectangle.
+     *
+     * @param channel 0 for red, 1 for green, 2 for blue, 3 for alpha if {@link #hasAlpha}.
+     * @param x       The left column of the rectangle.
+     * @param y       The top row of the rectangle.
+     * @param w       The width of the rectangle.
+     * @param h       The height of the rectangle.
+     * @return The sum of the channel over the rectangle.
+     */
+    public long sum(int channel, int x, int y, int w, int h) {
+        if (channel < 0 || channel >= channels) {
+            throw new IllegalArgumentException("channel must be in [0, " + channels + "): " + channel);
+        }
+        checkRegion(x, y, w, h);
+
+        // Split tall or wide rectangles into pieces whose sums cannot wrap around.
+        int pieceWidth = (int) Math.min(w, MAX_EXACT_AREA);
+        int pieceHeight = (int) Math.max(1, Math.min(h, MAX_EXACT_AREA / Math.max(1, pieceWidth)));
+        long total = 0;
+        for (int py = y; py < y + h; py += pieceHeight) {
+            int ph = Math.min(pieceHeight, y + h - py);
+            for (int px = x; px < x + w; px += pieceWidth) {
+                total += exactSum(channel, px, py, Math.min(pieceWidth, x + w - px), ph);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the mean color of a rectangle, each channel rounded down.
+     *
+     * @param x The left column of the rectangle.
+     * @param y The top row of the rectangle.
+     * @param w The width of the rectangle, at least 1.
+     * @param h The height of the rectangle, at least 1.
+     * @return The packed 0xAARRGGBB mean color; the alpha is 0xFF for opaque images.
+     */
+    public int meanRGB(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("region must not be empty: " + w + "x" + h);
+        }
+        long count = (long) w * h;
+        int alpha = channels == 4 ? (int) (sum(3, x, y, w, h) / count) : 0xFF;
+        return alpha << 24 | (int) (sum(0, x, y, w, h) / count) << 16 | (int) (sum(1, x, y, w, h) / count) << 8
+                | (int) (sum(2, x, y, w, h) / count);
+    }
+
+    /**
+     * Pixelates the indexed image with square blocks, as {@link imageEditor#pixelate}.
+     *
+     * @param pixelSize The size of each pixel block.
+     * @return The pixelated image, of the type {@link imageEditor} filters produce for the indexed image.
+     */
+    public BufferedImage pixelate(int pixelSize) {
+        return pixelate(pixelSize, pixelSize);
+    }
+
+    /**
+     * Pixelates the indexed image with rectangular blocks.
+     *
+     * @param blockWidth  The width of each block.
+     * @param blockHeight The height of each block.
+     * @return The pixelated image.
+     */
+    public BufferedImage pixelate(int blockWidth, int blockHeight) {
+        if (blockWidth <= 0 || blockHeight <= 0) {
+            throw new IllegalArgumentException("block size must be positive: " + blockWidth + "x" + blockHeight);
+        }
+        return mosaic(edges(width, blockWidth), edges(height, blockHeight));
+    }
+
+    /**
+     * Pixelates an image with rectangular blocks without building a table: each
+     * task sums the blocks of a band of block rows as it reads them. The result
+     * is the same as {@link #pixelate(int, int)} on the table of the image.
+     *
+     * @param inputImg    The image to pixelate.
+     * @param blockWidth  The width of each block.
+     * @param blockHeight The height of each block.
+     * @return The pixelated image, of the type {@link imageEditor} filters produce for the input.
+     */
+    public static BufferedImage pixelate(BufferedImage inputImg, int blockWidth, int blockHeight) {
+        if (blockWidth <= 0 || blockHeight <= 0) {
+            throw new IllegalArgumentException("block size must be positive: " + blockWidth + "x" + blockHeight);
+        }
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        int width = src.width;
+        int height = src.height;
+        boolean alpha = src.hasAlpha;
+        BufferedImage outputImg = pixelEngine.newImage(width, height, pixelEngine.outputType(inputImg));
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+        int[] columnEdges = edges(width, blockWidth);
+        int blockColumns = columnEdges.length - 1;
+        int blockRows = (height + blockHeight - 1) / blockHeight;
+
+        // Each task sums and paints a range of block rows.
+        int bandPixels = (int) Math.min(Integer.MAX_VALUE, (long) width * Math.min(blockHeight, height));
+        parallelExecutor.forEachBand(blockRows, bandPixels, (from, to) -> {
+            int[] row = new int[width];
+            long[] sums = new long[4 * blockColumns];
+            for (int by = from; by < to; by++) {
+                int top = by * blockHeight;
+                int rows = Math.min(blockHeight, height - top);
+
+                // Add up the channels of every block of the block row.
+                Arrays.fill(sums, 0);
+                for (int y = top; y < top + rows; y++) {
+                    src.readRow(y, row);
+                    for (int bx = 0; bx < blockColumns; bx++) {
+                        int s = 4 * bx;
+                        for (int x = columnEdges[bx]; x < columnEdges[bx + 1]; x++) {
+                            int argb = row[x];
+                            sums[s] += (argb >> 16) & 0xFF;
+                            sums[s + 1] += (argb >> 8) & 0xFF;
+                            sums[s + 2] += argb & 0xFF;
+                            sums[s + 3] += argb >>> 24;
+                        }
+                    }
+                }
+
+                // Paint the first row with the mean color of every block, rounded down as meanRGB does.
+                for (int bx = 0; bx < blockColumns; bx++) {
+                    int s = 4 * bx;
+                    long count = (long) (columnEdges[bx + 1] - columnEdges[bx]) * rows;
+                    int rgb = (alpha ? (int) (sums[s + 3] / count) : 0xFF) << 24 | (int) (sums[s] / count) << 16
+                            | (int) (sums[s + 1] / count) << 8 | (int) (sums[s + 2] / count);
+                    for (int x = columnEdges[bx]; x < columnEdges[bx + 1]; x++) {
+                        row[x] = rgb;
+                    }
+                }
+                sink.writeRow(top, row);
+
+                // The other rows of the block row are identical, so copy them in bulk.
+                for (int k = 1; k < rows; k++) {
+                    sink.copyRow(top, top + k);
+                }
+            }
+        });
+
+        return outputImg;
+    }
+
+    /**
+     * Paints every cell of a grid with its mean color. The cells may have any
+     * size, which gives variable-size mosaics.
+     *
+     * @param columnEdges Strictly increasing column boundaries, from 0 to the width.
+     * @param rowEdges    Strictly increasing row boundaries, from 0 to the height.
+     * @return The mosaic, of the type {@link imageEditor} filters produce for the indexed image.
+     */
+    public BufferedImage mosaic(int[] columnEdges, int[] rowEdges) {
+        checkEdges(columnEdges, width, "column");
+        checkEdges(rowEdges, height, "row");
+
+        BufferedImage outputImg = pixelEngine.newImage(width, height, outputType);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+        int cellRows = rowEdges.length - 1;
+        int averageCellHeight = Math.max(1, height / Math.max(1, cellRows));
+
+        // Each task paints a range of cell rows.
+        parallelExecutor.forEachBand(cellRows, width * averageCellHeight, (from, to) -> {
+            int[] row = new int[width];
+            for (int cy = from; cy < to; cy++) {
+                int top = rowEdges[cy];
+                int rows = rowEdges[cy + 1] - top;
+
+                // Paint the first row of the cell row with the mean color of every cell.
+                for (int cx = 0; cx + 1 < columnEdges.length; cx++) {
+                    int left = columnEdges[cx];
+                    int right = columnEdges[cx + 1];
+                    int rgb = meanRGB(left, top, right - left, rows);
+                    for (int x = left; x < right; x++) {
+                        row[x] = rgb;
+                    }
+                }
+                sink.writeRow(top, row);
+
+                // The other rows of the cell row are identical, so copy them in bulk.
+                for (int k = 1; k < rows; k++) {
+                    sink.copyRow(top, top + k);
+                }
+            }
+        });
+
+        return outputImg;
+    }
+
+    /**
+     * Sum of a channel over a rectangle small enough for 32-bit wrapping arithmetic.
+     */
+    private long exactSum(int channel, int x, int y, int w, int h) {
+        int stride = channels * (width + 1);
+        int topLeft = y * stride + channels * x + channel;
+        int topRight = topLeft + channels * w;
+        int bottomLeft = topLeft + h * stride;
+        int bottomRight = topRight + h * stride;
+        int sum = table[bottomRight] - table[topRight] - table[bottomLeft] + table[topLeft];
+        return sum & 0xFFFFFFFFL;
+    }
+
+    private void checkRegion(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x > width - w || y > height - h) {
+            throw new IllegalArgumentException("region " + x + "," + y + " " + w + "x" + h
+                    + " is outside the " + width + "x" + height + " image");
+        }
+    }
+
+    private static int[] edges(int length, int step) {
+        int cells = (length + step - 1) / step;
+        int[] edges = new int[cells + 1];
+        for (int i = 0; i < cells; i++) {
+            edges[i] = i * step;
+        }
+        edges[cells] = length;
+        return edges;
+    }
+
+    private static void checkEdges(int[] edges, int length, String name) {
+        if (edges.length < 1 || edges[0] != 0 || edges[edges.length - 1] != length) {
+            throw new IllegalArgumentException(name + " edges must run from 0 to " + length);
+        }
+        for (int i = 1; i < edges.length; i++) {
+            if (edges[i] <= edges[i - 1]) {
+                throw new IllegalArgumentException(name + " edges must be strictly increasing");
+            }
+        }
+    }
+}
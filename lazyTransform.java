@@ -0,0 +1,297 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A run of mirrors, rotations and point operations that is evaluated in one
+ * pass when the pixels are asked for.
+ *
+ * The mirrors and the rotations of {@link imageEditor} keep the image size and
+ * turn about the image center, so any sequence of them is one linear map about
+ * the center: the geometric steps are only multiplied into a 2x2 matrix, and
+ * the result is sampled once from the input with the nearest-pixel sampling of
+ * {@link rotation}. A chain such as mirror, rotate 30, mirror therefore reads
+ * each output pixel straight from the input instead of from two intermediate
+ * images, and does not compound the rounding of every rotation.
+ *
+ * Mirrors and half turns before the first rotation and after the last one
+ * are not folded into the matrix but kept as exact flips of the input and
+ * output pixel indices, as applying them on their own would do: rotation
+ * truncates sampled positions, and truncation does not commute with a flip.
+ *
+ * Point operations are deferred to the same pass: nearest-pixel sampling only
+ * copies pixels, so every point operation of the run is applied to the
+ * sampled pixel at the end. Each rotation by an angle that is not a multiple
+ * of 180 degrees still clips the corners that leave the canvas, as applying
+ * it on its own would; those pixels get the blank fill passed through the
+ * point operations that come after that rotation.
+ *
+ * A run with at most one rotation by an angle that is not a multiple of 180
+ * degrees gives the same pixels as applying its steps one by one, and so do
+ * runs whose rotations are all multiples of 90 degrees on a square image.
+ * Runs with two or more other rotations truncate once instead of once per
+ * rotation, so their pixels differ from the step-by-step result.
+ *
+ * Example:
+ *
+ * <pre>
+ * BufferedImage out = new lazyTransform().mirrorHorizontal().rotate(30)
+ *         .pointOps(new pointOpChain().sepia()).mirrorHorizontal().apply(img);
+ * </pre>
+ */
+public class lazyTransform {
+
+    /**
+     * A rotation that clips: the map from the output to its input, and the
+     * number of point operations before it.
+     */
+    private static final class Clip {
+        final double[] matrix;
+        final int pointOps;
+        final boolean quarterTurn;
+
+        Clip(double[] matrix, int pointOps, boolean quarterTurn) {
+            this.matrix = matrix;
+            this.pointOps = pointOps;
+            this.quarterTurn = quarterTurn;
+        }
+    }
+
+    // Flips of the input before the first rotation, and of the output after the last one.
+    private boolean inputFlipX;
+    private boolean inputFlipY;
+    private boolean outputFlipX;
+    private boolean outputFlipY;
+
+    // The map from a position of the output before its flips to a position of the flipped input,
+    // relative to the center, in row-major order; only the rotations and the steps between them.
+    private double[] matrix = { 1, 0, 0, 1 };
+    private boolean rotated;
+    private final List<Clip> clips = new ArrayList<>();
+    private final pointOpChain points = new pointOpChain();
+
+    /**
+     * Appends a clockwise rotation, as {@link imageEditor#rotate}.
+     *
+     * @param angle The angle in degrees.
+     * @return This transform.
+     */
+    public lazyTransform rotate(double angle) {
+        if (Double.isNaN(angle) || Double.isInfinite(angle)) {
+            throw new IllegalArgumentException("angle must be finite: " + angle);
+        }
+        double normalized = ((angle % 360) + 360) % 360;
+        double radians = Math.toRadians(normalized);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+
+        // Use exact values at the quarter turns, as rotation does.
+        if (normalized % 90 == 0) {
+            int turns = (int) (normalized / 90);
+            sin = turns == 1 ? 1 : turns == 3 ? -1 : 0;
+            cos = turns == 0 ? 1 : turns == 2 ? -1 : 0;
+        }
+        if (normalized % 180 == 0) {
+            // A half turn only flips both axes.
+            return flip(normalized != 0, normalized != 0);
+        }
+        double[] step = { cos, -sin, sin, cos };
+        then(step);
+        clips.add(new Clip(step, points.size(), normalized % 90 == 0));
+        return this;
+    }
+
+    /**
+     * Appends a horizontal mirror, as {@link imageEditor#mirrorHorizontal}.
+     *
+     * @return This transform.
+     */
+    public lazyTransform mirrorHorizontal() {
+        return flip(true, false);
+    }
+
+    /**
+     * Appends a vertical mirror, as {@link imageEditor#mirrorVertical}.
+     *
+     * @return This transform.
+     */
+    public lazyTransform mirrorVertical() {
+        return flip(false, true);
+    }
+
+    /**
+     * Appends point operations.
+     *
+     * @param ops The operations, which must not be changed afterwards.
+     * @return This transform.
+     */
+    public lazyTransform pointOps(pointOpChain ops) {
+        points.append(ops);
+        return this;
+    }
+
+    /**
+     * Appends flips of the axes: to the input flips before the first rotation,
+     * to the output flips after it.
+     */
+    private lazyTransform flip(boolean x, boolean y) {
+        if (rotated) {
+            outputFlipX ^= x;
+            outputFlipY ^= y;
+        } else {
+            inputFlipX ^= x;
+            inputFlipY ^= y;
+        }
+        return this;
+    }
+
+    /**
+     * Follows the map so far with a rotation: a position of the new output maps
+     * through the step to the old output, and from there to the input. Output
+     * flips since the last rotation now come between the two and join the matrix.
+     */
+    private void then(double[] step) {
+        if (outputFlipX || outputFlipY) {
+            double[] flips = { outputFlipX ? -1 : 1, 0, 0, outputFlipY ? -1 : 1 };
+            outputFlipX = false;
+            outputFlipY = false;
+            then(flips);
+        }
+        rotated = true;
+        matrix = multiply(matrix, step);
+        for (int c = 0; c < clips.size(); c++) {
+            Clip clip = clips.get(c);
+            clips.set(c, new Clip(multiply(clip.matrix, step), clip.pointOps, clip.quarterTurn));
+        }
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+        return new double[] {
+                a[0] * b[0] + a[1] * b[2], a[0] * b[1] + a[1] * b[3],
+                a[2] * b[0] + a[3] * b[2], a[2] * b[1] + a[3] * b[3] };
+    }
+
+    /**
+     * Evaluates the transform in one pass.
+     *
+     * @param inputImg The input image.
+     * @return A new image of the same size, with the output type of the other filters.
+     */
+    public BufferedImage apply(BufferedImage inputImg) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        int width = src.width;
+        int height = src.height;
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Quarter turns of a square image map the canvas onto itself and clip nothing.
+        List<Clip> active = new ArrayList<>();
+        for (Clip clip : clips) {
+            if (!(clip.quarterTurn && width == height)) {
+                active.add(clip);
+            }
+        }
+
+        // The blank a clipped pixel starts as, through the point operations after its rotation.
+        pointOpChain.Compiled compiled = points.compile();
+        int[] fills = new int[active.size()];
+        for (int c = 0; c < fills.length; c++) {
+            int[] blank = { 0 };
+            points.suffix(active.get(c).pointOps).compile().applyRow(blank, 1);
+            fills[c] = blank[0];
+        }
+        boolean identityPoints = points.size() == 0;
+
+        double[] m = matrix;
+        if (active.isEmpty() && m[1] == 0 && m[2] == 0) {
+            // Mirrors and half turns only: whole rows, read back to front when mirrored.
+            boolean flipX = inputFlipX ^ outputFlipX ^ (m[0] < 0);
+            boolean flipY = inputFlipY ^ outputFlipY ^ (m[3] < 0);
+            parallelExecutor.forEachBand(height, width, (from, to) -> {
+                int[] row = new int[width];
+                for (int i = from; i < to; i++) {
+                    src.readRow(flipY ? height - 1 - i : i, row);
+                    if (flipX) {
+                        reverse(row);
+                    }
+                    if (!identityPoints) {
+                        compiled.applyRow(row, width);
+                    }
+                    sink.writeRow(i, row);
+                }
+            });
+            return outputImg;
+        }
+
+        double x0 = 0.5 * (width - 1);
+        double y0 = 0.5 * (height - 1);
+        boolean flipInputX = inputFlipX;
+        boolean flipInputY = inputFlipY;
+        boolean flipOutputX = outputFlipX;
+        boolean flipOutputY = outputFlipY;
+        parallelExecutor.forEachBand(height, width, (from, to) -> {
+            int[] row = new int[width];
+            int[] span = new int[2];
+            for (int i = from; i < to; i++) {
+                // The row before the output flips; a horizontal one reverses it at the end.
+                int r = flipOutputY ? height - 1 - i : i;
+
+                // Walk the clipping rotations from the last one back: the columns a rotation
+                // clips that no later one has already clipped start out as its fill.
+                int first = 0;
+                int last = width - 1;
+                for (int c = active.size() - 1; c >= 0 && first <= last; c--) {
+                    rotation.span(active.get(c).matrix, r - y0, x0, x0, y0, width, height, width, span);
+                    int keepFirst = Math.max(first, span[0]);
+                    int keepLast = Math.min(last, span[1]);
+                    if (keepFirst > keepLast) {
+                        keepFirst = last + 1;
+                        keepLast = last;
+                    }
+                    for (int j = first; j < keepFirst; j++) {
+                        row[j] = fills[c];
+                    }
+                    for (int j = keepLast + 1; j <= last; j++) {
+                        row[j] = fills[c];
+                    }
+                    first = keepFirst;
+                    last = keepLast;
+                }
+
+                // Sample the rest straight from the input, as rotation does for a single turn,
+                // and flip the sampled indices as the mirrors before the first rotation would.
+                double b = r - y0;
+                for (int j = first; j <= last; j++) {
+                    double a = j - x0;
+                    int u = clamp(rotation.index(rotation.position(a, b, m[0], m[1], x0)), width);
+                    int v = clamp(rotation.index(rotation.position(a, b, m[2], m[3], y0)), height);
+                    row[j] = src.rgb(flipInputX ? width - 1 - u : u, flipInputY ? height - 1 - v : v);
+                }
+                if (!identityPoints && first <= last) {
+                    compiled.applyRow(row, first, last + 1);
+                }
+                if (flipOutputX) {
+                    reverse(row);
+                }
+                sink.writeRow(i, row);
+            }
+        });
+        return outputImg;
+    }
+
+    private static void reverse(int[] row) {
+        for (int j = 0, k = row.length - 1; j < k; j++, k--) {
+            int argb = row[j];
+            row[j] = row[k];
+            row[k] = argb;
+        }
+    }
+
+    /**
+     * Keeps a pixel index inside the image; a composed map may land a rounding
+     * error outside where the rotations it is made of do not.
+     */
+    private static int clamp(int index, int length) {
+        return Math.max(0, Math.min(length - 1, index));
+    }
+}
@@ -0,0 +1,418 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Images whose pixels live in memory-mapped temporary files instead of on the heap.
+ *
+ * A mapped image is an ordinary BufferedImage of 8-bit RGB or RGBA samples,
+ * either interleaved (one file region, B, G, R and A bytes per pixel like
+ * TYPE_4BYTE_ABGR) or planar (one region per channel). Its pixels are paged
+ * in and out by the operating system, so images far larger than the heap can
+ * be held, and the garbage collector never scans or copies them.
+ *
+ * The filters read and write mapped images directly: {@link pixelEngine}
+ * recognizes their data buffer and moves whole rows in and out of the file
+ * regions. While a store is installed with {@link #using}, filter outputs of
+ * at least the store's minimum size are mapped images too, so a chain on a
+ * huge image keeps every intermediate result off the heap. Encoders read the
+ * mapped image like any other BufferedImage, without a heap copy.
+ *
+ * The temporary files are deleted as soon as they are mapped; their disk
+ * space and address space are returned when the image is garbage collected.
+ * A bank holds at most 2^31 - 1 bytes, which limits interleaved images to
+ * about 715 million RGB pixels and planar images to about 2 billion pixels.
+ */
+public class mappedStore {
+
+    /**
+     * How the channels of a pixel are stored.
+     */
+    public enum Layout {
+        /** The channels of a pixel next to each other, as in TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR. */
+        INTERLEAVED,
+        /** One plane per channel: all red bytes, then all green, blue and alpha. */
+        PLANAR
+    }
+
+    /** The default size from which filter outputs are mapped: 64 MiB of pixels. */
+    public static final long DEFAULT_MIN_BYTES = 64L << 20;
+
+    // The store the filters of the current thread map large outputs into, if any.
+    private static final ThreadLocal<mappedStore> CURRENT = new ThreadLocal<>();
+
+    // Rows of a bank are mapped in chunks of whole rows of about this many bytes.
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    // Scratch bytes for moving rows between the file regions and int pixels.
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private final Path directory;
+    private final Layout layout;
+    private final long minBytes;
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Creates a store.
+     *
+     * @param directory The directory of the temporary files, or null for the
+     *                  default temporary directory.
+     * @param layout    The layout of the images.
+     * @param minBytes  The smallest filter output, in bytes of pixels, that
+     *                  {@link #using} maps; smaller ones stay on the heap.
+     */
+    public mappedStore(File directory, Layout layout, long minBytes) {
+        if (minBytes < 0) {
+            throw new IllegalArgumentException("minBytes must not be negative: " + minBytes);
+        }
+        this.directory = directory == null ? null : directory.toPath();
+        this.layout = layout;
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * Creates a mapped image.
+     *
+     * @param width  The width.
+     * @param height The height.
+     * @param alpha  Whether the image has an alpha channel.
+     * @return An all-zero image: black, and fully transparent if it has alpha.
+     */
+    public BufferedImage allocate(int width, int height, boolean alpha) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("image must not be empty: " + width + "x" + height);
+        }
+        int channels = alpha ? 4 : 3;
+        int banks = layout == Layout.PLANAR ? channels : 1;
+        long bankBytes = (long) width * height * (channels / banks);
+        if (bankBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(width + "x" + height + " is too large for a "
+                    + layout.name().toLowerCase(Locale.ROOT) + " mapped image"
+                    + (layout == Layout.INTERLEAVED ? "; use the planar layout" : ""));
+        }
+        Pixels pixels = new Pixels(map(bankBytes, banks, width * (channels / banks)), width, height, channels,
+                layout == Layout.PLANAR);
+
+        SampleModel sm;
+        if (layout == Layout.PLANAR) {
+            int[] indices = alpha ? new int[] { 0, 1, 2, 3 } : new int[] { 0, 1, 2 };
+            sm = new BandedSampleModel(DataBuffer.TYPE_BYTE, width, height, width, indices, new int[channels]);
+        } else {
+            int[] offsets = alpha ? new int[] { 3, 2, 1, 0 } : new int[] { 2, 1, 0 };
+            sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, channels, width * channels,
+                    offsets);
+        }
+        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), alpha, false,
+                alpha ? ColorModel.TRANSLUCENT : ColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
+        WritableRaster raster = Raster.createWritableRaster(sm, pixels, null);
+
+        images.incrementAndGet();
+        bytes.addAndGet(bankBytes * banks);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Maps the banks of an image into a new temporary file, in chunks of whole rows.
+     */
+    private ByteBuffer[][] map(long bankBytes, int banks, int rowBytes) {
+        int rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+        long chunkBytes = (long) rowsPerChunk * rowBytes;
+        int chunks = (int) ((bankBytes + chunkBytes - 1) / chunkBytes);
+        try {
+            Path file = directory == null ? Files.createTempFile("mapped", ".raw")
+                    : Files.createTempFile(directory, "mapped", ".raw");
+            // The mappings outlive the channel, and the file is deleted when the channel closes.
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                ByteBuffer[][] regions = new ByteBuffer[banks][chunks];
+                for (int bank = 0; bank < banks; bank++) {
+                    for (int c = 0; c < chunks; c++) {
+                        long start = c * chunkBytes;
+                        long size = Math.min(chunkBytes, bankBytes - start);
+                        regions[bank][c] = channel.map(FileChannel.MapMode.READ_WRITE, bank * bankBytes + start, size);
+                    }
+                }
+                return regions;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot map a temporary file", e);
+        }
+    }
+
+    /**
+     * Runs a task with this store installed for the filters of the current
+     * thread, then restores the previous store. Filter outputs of at least
+     * the minimum size are then mapped images; others come from the
+     * {@link imagePool} if one is installed, or from the heap.
+     *
+     * @param task The task.
+     * @param <T>  The result type.
+     * @return The result of the task.
+     */
+    public <T> T using(Supplier<T> task) {
+        mappedStore previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the store installed for the current thread.
+     *
+     * @return The store, or null if filter outputs stay on the heap.
+     */
+    static mappedStore current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Creates a filter output in this store if it is large enough.
+     *
+     * @param width  The width.
+     * @param height The height.
+     * @param type   One of the types {@link pixelEngine#outputType} picks.
+     * @return A mapped, all-zero image, or null if the output should stay on the heap.
+     */
+    BufferedImage allocateOutput(int width, int height, int type) {
+        boolean alpha;
+        switch (type) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+                alpha = false;
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_ARGB:
+                alpha = true;
+                break;
+            default:
+                return null;
+        }
+        if ((long) width * height * (alpha ? 4 : 3) < minBytes) {
+            return null;
+        }
+        return allocate(width, height, alpha);
+    }
+
+    /**
+     * Whether an image, or the image a subimage belongs to, is a mapped image.
+     *
+     * @param img The image.
+     * @return True if its pixels are in a mapped file.
+     */
+    public static boolean isMapped(BufferedImage img) {
+        return img.getRaster().getDataBuffer() instanceof Pixels;
+    }
+
+    /**
+     * Returns the number of images mapped so far.
+     *
+     * @return The number of images.
+     */
+    public long getImages() {
+        return images.get();
+    }
+
+    /**
+     * Returns the bytes of pixels mapped so far.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * The data buffer of a mapped image: 8-bit samples in file regions of
+     * whole rows. Besides the per-sample DataBuffer methods that the generic
+     * raster code uses, it moves runs of pixels as 0xAARRGGBB ints for
+     * {@link pixelEngine}. Distinct rows may be read and written by different
+     * threads at the same time.
+     */
+    static final class Pixels extends DataBuffer {
+        final int width;
+        final int height;
+        final int channels;
+        final boolean planar;
+
+        // Regions per bank; a region holds rowsPerChunk rows of rowBytes bytes.
+        private final ByteBuffer[][] regions;
+        private final int rowBytes;
+        private final int rowsPerChunk;
+        private final int chunkBytes;
+
+        Pixels(ByteBuffer[][] regions, int width, int height, int channels, boolean planar) {
+            super(DataBuffer.TYPE_BYTE, width * height * (planar ? 1 : channels), regions.length);
+            this.regions = regions;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.planar = planar;
+            this.rowBytes = width * (planar ? 1 : channels);
+            this.rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+            this.chunkBytes = rowsPerChunk * rowBytes;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return regions[bank][i / chunkBytes].get(i % chunkBytes) & 0xFF;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            regions[bank][i / chunkBytes].put(i % chunkBytes, (byte) val);
+        }
+
+        /**
+         * Reads a horizontal run of pixels.
+         *
+         * @param x      The first column.
+         * @param y      The row.
+         * @param length The number of pixels.
+         * @param row    Receives the 0xAARRGGBB colors; alpha is 0xFF without an alpha channel.
+         * @param offset The index in row of the first pixel.
+         */
+        void readRow(int x, int y, int length, int[] row, int offset) {
+            int chunk = y / rowsPerChunk;
+            int at = (y % rowsPerChunk) * rowBytes;
+            byte[] b = scratch(length * channels);
+            if (planar) {
+                for (int c = 0; c < channels; c++) {
+                    regions[c][chunk].get(at + x, b, c * length, length);
+                }
+                int g = length;
+                int bl = 2 * length;
+                int a = 3 * length;
+                for (int k = 0; k < length; k++) {
+                    int alpha = channels == 4 ? (b[a + k] & 0xFF) << 24 : 0xFF000000;
+                    row[offset + k] = alpha | ((b[k] & 0xFF) << 16) | ((b[g + k] & 0xFF) << 8) | (b[bl + k] & 0xFF);
+                }
+            } else {
+                regions[0][chunk].get(at + x * channels, b, 0, length * channels);
+                if (channels == 3) {
+                    for (int k = 0, i = 0; k < length; k++, i += 3) {
+                        row[offset + k] = 0xFF000000 | ((b[i + 2] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8)
+                                | (b[i] & 0xFF);
+                    }
+                } else {
+                    for (int k = 0, i = 0; k < length; k++, i += 4) {
+                        row[offset + k] = ((b[i] & 0xFF) << 24) | ((b[i + 3] & 0xFF) << 16)
+                                | ((b[i + 2] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes a horizontal run of pixels.
+         *
+         * @param x      The first column.
+         * @param y      The row.
+         * @param length The number of pixels.
+         * @param row    The 0xAARRGGBB colors; alpha is dropped without an alpha channel.
+         * @param offset The index in row of the first pixel.
+         */
+        void writeRow(int x, int y, int length, int[] row, int offset) {
+            int chunk = y / rowsPerChunk;
+            int at = (y % rowsPerChunk) * rowBytes;
+            byte[] b = scratch(length * channels);
+            if (planar) {
+                int g = length;
+                int bl = 2 * length;
+                int a = 3 * length;
+                for (int k = 0; k < length; k++) {
+                    int argb = row[offset + k];
+                    b[k] = (byte) (argb >> 16);
+                    b[g + k] = (byte) (argb >> 8);
+                    b[bl + k] = (byte) argb;
+                    if (channels == 4) {
+                        b[a + k] = (byte) (argb >>> 24);
+                    }
+                }
+                for (int c = 0; c < channels; c++) {
+                    regions[c][chunk].put(at + x, b, c * length, length);
+                }
+            } else {
+                if (channels == 3) {
+                    for (int k = 0, i = 0; k < length; k++, i += 3) {
+                        int argb = row[offset + k];
+                        b[i] = (byte) argb;
+                        b[i + 1] = (byte) (argb >> 8);
+                        b[i + 2] = (byte) (argb >> 16);
+                    }
+                } else {
+                    for (int k = 0, i = 0; k < length; k++, i += 4) {
+                        int argb = row[offset + k];
+                        b[i] = (byte) (argb >>> 24);
+                        b[i + 1] = (byte) argb;
+                        b[i + 2] = (byte) (argb >> 8);
+                        b[i + 3] = (byte) (argb >> 16);
+                    }
+                }
+                regions[0][chunk].put(at + x * channels, b, 0, length * channels);
+            }
+        }
+
+        /**
+         * Returns the color of a single pixel.
+         *
+         * @param x The column.
+         * @param y The row.
+         * @return The 0xAARRGGBB color.
+         */
+        int rgb(int x, int y) {
+            int chunk = y / rowsPerChunk;
+            int at = (y % rowsPerChunk) * rowBytes;
+            if (planar) {
+                int i = at + x;
+                int alpha = channels == 4 ? (regions[3][chunk].get(i) & 0xFF) << 24 : 0xFF000000;
+                return alpha | ((regions[0][chunk].get(i) & 0xFF) << 16) | ((regions[1][chunk].get(i) & 0xFF) << 8)
+                        | (regions[2][chunk].get(i) & 0xFF);
+            }
+            ByteBuffer region = regions[0][chunk];
+            int i = at + x * channels;
+            if (channels == 3) {
+                return 0xFF000000 | ((region.get(i + 2) & 0xFF) << 16) | ((region.get(i + 1) & 0xFF) << 8)
+                        | (region.get(i) & 0xFF);
+            }
+            return ((region.get(i) & 0xFF) << 24) | ((region.get(i + 3) & 0xFF) << 16)
+                    | ((region.get(i + 2) & 0xFF) << 8) | (region.get(i + 1) & 0xFF);
+        }
+
+        private static byte[] scratch(int size) {
+            byte[] b = SCRATCH.get();
+            if (b.length < size) {
+                b = new byte[size];
+                SCRATCH.set(b);
+            }
+            return b;
+        }
+    }
+}
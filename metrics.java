@@ -0,0 +1,393 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Timers for the decode, operation and encode stages, and gauges such as
+ * thread-pool queue depths, exposed in two ways:
+ *
+ * <ul>
+ * <li>as JFR events ("imageEditor.Stage" for every timed stage and the
+ * periodic "imageEditor.Gauge"), whenever a flight recording has them
+ * enabled, e.g. java -XX:StartFlightRecording=filename=run.jfr ...;</li>
+ * <li>as an in-process registry, turned on with the system property
+ * imageEditor.metrics=text or imageEditor.metrics=json. The registry can be
+ * queried with {@link #toText} and {@link #toJson} (the HTTP service serves
+ * it at GET /metrics), and is printed to stderr, or to the file named by
+ * imageEditor.metrics.file, when the JVM exits.</li>
+ * </ul>
+ *
+ * When neither is on, {@link #start} returns null after checking two flags
+ * and {@link #end} returns at once, so instrumented code pays next to
+ * nothing. Timers are per stage and name, e.g. "op" / "blur:2".
+ *
+ * Allocated bytes are those of the thread that ran the stage, which includes
+ * the filter bands unless they ran on the worker pool of
+ * {@link parallelExecutor}.
+ */
+public final class metrics {
+
+    /** Whether the registry is on; JFR events have their own switch. */
+    static final boolean ENABLED;
+
+    private static final boolean JSON;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION = THREADS instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+
+    static {
+        String mode = System.getProperty("imageEditor.metrics", "off").toLowerCase(Locale.ROOT);
+        ENABLED = mode.equals("text") || mode.equals("json");
+        JSON = mode.equals("json");
+
+        registerGauge("filters.queued", parallelExecutor::queuedTasks);
+        FlightRecorder.addPeriodicEvent(GaugeEvent.class, metrics::emitGauges);
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(metrics::dumpAtExit, "metrics-dump"));
+        }
+    }
+
+    private metrics() {
+    }
+
+    /**
+     * A timed stage: one decode, operation or encode.
+     */
+    @Name("imageEditor.Stage")
+    @Label("Image Stage")
+    @Category("Image Editor")
+    @Description("A decode, operation or encode")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Name")
+        String name;
+
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    /**
+     * The value of a gauge, emitted once per recording period.
+     */
+    @Name("imageEditor.Gauge")
+    @Label("Image Gauge")
+    @Category("Image Editor")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class GaugeEvent extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Value")
+        long value;
+    }
+
+    /**
+     * An open stage, from {@link #start} to {@link #end}.
+     */
+    static final class Span {
+        final String stage;
+        final Object name;
+        final long startNanos;
+        final long startAllocated;
+        final StageEvent event;
+
+        Span(String stage, Object name, StageEvent event) {
+            this.stage = stage;
+            this.name = name;
+            this.event = event;
+            this.startAllocated = ENABLED ? allocatedBytes() : 0;
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Statistics of one timer.
+     */
+    public static final class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong pixels = new AtomicLong();
+        private final AtomicLong allocated = new AtomicLong();
+
+        void record(long elapsed, long pixelCount, long bytes) {
+            count.incrementAndGet();
+            nanos.addAndGet(elapsed);
+            maxNanos.accumulateAndGet(elapsed, Math::max);
+            pixels.addAndGet(pixelCount);
+            allocated.addAndGet(bytes);
+        }
+
+        /**
+         * Returns how many times the stage ran.
+         *
+         * @return The count.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Returns the total time spent in the stage.
+         *
+         * @return The time in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return nanos.get();
+        }
+
+        /**
+         * Returns the longest single run of the stage.
+         *
+         * @return The time in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * Returns the pixels processed by the stage.
+         *
+         * @return The pixel count.
+         */
+        public long getPixels() {
+            return pixels.get();
+        }
+
+        /**
+         * Returns the bytes allocated while the stage ran.
+         *
+         * @return The allocated bytes, or 0 if the JVM cannot measure them.
+         */
+        public long getAllocatedBytes() {
+            return allocated.get();
+        }
+
+        /**
+         * Returns the throughput of the stage.
+         *
+         * @return Pixels per second of time spent in the stage.
+         */
+        public double getPixelsPerSecond() {
+            long total = nanos.get();
+            return total == 0 ? 0 : pixels.get() * 1e9 / total;
+        }
+    }
+
+    /**
+     * A sampled value: its last and highest value seen.
+     */
+    private static final class Gauge {
+        final LongSupplier source;
+        final AtomicLong last = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        Gauge(LongSupplier source) {
+            this.source = source;
+        }
+
+        long sample() {
+            long value = source.getAsLong();
+            last.set(value);
+            max.accumulateAndGet(value, Math::max);
+            return value;
+        }
+    }
+
+    /**
+     * Starts timing a stage.
+     *
+     * @param stage The stage, e.g. "decode", "op" or "encode".
+     * @param name  What runs in the stage, e.g. an operation or a format; its
+     *              toString() is only called if the stage is recorded.
+     * @return The open span, or null if nothing is recording.
+     */
+    static Span start(String stage, Object name) {
+        StageEvent event = new StageEvent();
+        if (!ENABLED && !event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return new Span(stage, name, event);
+    }
+
+    /**
+     * Ends a stage and records it.
+     *
+     * @param span   The span from {@link #start}, or null.
+     * @param pixels The pixels the stage processed.
+     */
+    static void end(Span span, long pixels) {
+        if (span == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - span.startNanos;
+        long bytes = ENABLED ? allocatedBytes() - span.startAllocated : 0;
+        String name = String.valueOf(span.name);
+        if (ENABLED) {
+            TIMERS.computeIfAbsent(span.stage + " " + name, k -> new Timer()).record(elapsed, pixels, bytes);
+            for (Gauge gauge : GAUGES.values()) {
+                gauge.sample();
+            }
+        }
+        StageEvent event = span.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = span.stage;
+            event.name = name;
+            event.pixels = pixels;
+            event.allocated = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Registers a gauge, sampled whenever a stage ends and for JFR; a gauge
+     * registered again under the same name replaces the old one.
+     *
+     * @param name   The name, e.g. "batch.cpu.queued".
+     * @param source Supplies the current value.
+     */
+    static void registerGauge(String name, LongSupplier source) {
+        GAUGES.put(name, new Gauge(source));
+    }
+
+    /**
+     * Returns a timer of the registry.
+     *
+     * @param stage The stage.
+     * @param name  The name.
+     * @return The timer, or null if the stage never ended with the registry on.
+     */
+    public static Timer timer(String stage, String name) {
+        return TIMERS.get(stage + " " + name);
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATION ? ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private static void emitGauges() {
+        for (Map.Entry<String, Gauge> e : GAUGES.entrySet()) {
+            GaugeEvent event = new GaugeEvent();
+            event.name = e.getKey();
+            event.value = e.getValue().sample();
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the registry as a table, one timer or gauge per line.
+     *
+     * @return The text.
+     */
+    public static String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-32s %8s %12s %10s %12s %12s%n", "timer", "count", "total ms",
+                "max ms", "MP/s", "alloc MB"));
+        for (Map.Entry<String, Timer> e : new TreeMap<>(TIMERS).entrySet()) {
+            Timer t = e.getValue();
+            sb.append(String.format(Locale.ROOT, "%-32s %8d %12.1f %10.1f %12.1f %12.1f%n", e.getKey(), t.getCount(),
+                    t.getTotalNanos() / 1e6, t.getMaxNanos() / 1e6, t.getPixelsPerSecond() / 1e6,
+                    t.getAllocatedBytes() / 1e6));
+        }
+        for (Map.Entry<String, Gauge> e : new TreeMap<>(GAUGES).entrySet()) {
+            sb.append(String.format(Locale.ROOT, "gauge %-26s last %d, max %d%n", e.getKey(),
+                    e.getValue().last.get(), e.getValue().max.get()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the registry as a JSON object with "timers" and "gauges".
+     *
+     * @return The JSON text.
+     */
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\"timers\":{");
+        boolean first = true;
+        for (Map.Entry<String, Timer> e : new TreeMap<>(TIMERS).entrySet()) {
+            Timer t = e.getValue();
+            sb.append(first ? "" : ",").append(quote(e.getKey()));
+            sb.append(String.format(Locale.ROOT,
+                    ":{\"count\":%d,\"totalNanos\":%d,\"maxNanos\":%d,\"pixels\":%d,\"pixelsPerSecond\":%.0f,"
+                            + "\"allocatedBytes\":%d}",
+                    t.getCount(), t.getTotalNanos(), t.getMaxNanos(), t.getPixels(), t.getPixelsPerSecond(),
+                    t.getAllocatedBytes()));
+            first = false;
+        }
+        sb.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Gauge> e : new TreeMap<>(GAUGES).entrySet()) {
+            sb.append(first ? "" : ",").append(quote(e.getKey()));
+            sb.append(String.format(Locale.ROOT, ":{\"last\":%d,\"max\":%d}", e.getValue().last.get(),
+                    e.getValue().max.get()));
+            first = false;
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void dumpAtExit() {
+        String report = JSON ? toJson() + System.lineSeparator() : toText();
+        String file = System.getProperty("imageEditor.metrics.file");
+        if (file == null) {
+            PrintStream err = System.err;
+            err.print(report);
+            err.flush();
+            return;
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(report);
+        } catch (IOException e) {
+            System.err.println("cannot write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,400 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Processing of every frame of an animated GIF or a multi-page TIFF.
+ *
+ * Frames are decoded one at a time on the calling thread, run through the
+ * operation chain on a pool of worker threads, and handed back to the writer
+ * of the input format in their original order with
+ * {@link ImageWriter#writeToSequence}. At most a few frames per thread are
+ * decoded but not yet written, so long animations never sit in memory whole.
+ * The metadata of each frame, such as the GIF delay, disposal method and
+ * transparent color, is written back with it.
+ *
+ * The frames of a GIF may cover only part of its logical screen. Mirrors and
+ * half turns move such a frame to the mirrored position on the screen, and
+ * scale and fit resize the screen and every frame by the same factor, so the
+ * animation still lines up. Rotations by other angles would move a partial
+ * frame off its rectangle and are only allowed when every frame covers the
+ * whole screen. Neighborhood operations such as blur see each frame on its
+ * own.
+ */
+public class multiFrame {
+
+    // Native metadata formats of the GIF plugin, which place frames on a logical screen.
+    private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+
+    // How many frames per worker thread may be decoded but not yet written.
+    private static final int FRAMES_PER_THREAD = 2;
+
+    /**
+     * One frame with its metadata and its rectangle on the canvas.
+     */
+    private static final class Frame {
+        final BufferedImage image;
+        final IIOMetadata metadata;
+        final Rectangle place;
+
+        Frame(BufferedImage image, IIOMetadata metadata, Rectangle place) {
+            this.image = image;
+            this.metadata = metadata;
+            this.place = place;
+        }
+    }
+
+    private multiFrame() {
+    }
+
+    /**
+     * Counts the frames of an image file.
+     *
+     * @param file The image file.
+     * @return The number of frames or pages, 1 for single-image formats.
+     * @throws IOException If the file cannot be read.
+     */
+    public static int frameCount(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(in, file);
+            try {
+                reader.setInput(in, false, true);
+                return reader.getNumImages(true);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Applies operations to every frame of a file and writes the frames in the
+     * same format, with as many worker threads as the filters may use.
+     *
+     * @param input  The input image file.
+     * @param output The output file, replaced if it exists.
+     * @param ops    The operations to apply to each frame.
+     * @return The number of frames written.
+     * @throws IOException If the input cannot be read or the output written.
+     */
+    public static int process(File input, File output, opChain ops) throws IOException {
+        return process(input, output, ops, parallelExecutor.getParallelism());
+    }
+
+    /**
+     * Applies operations to every frame of a file and writes the frames in the
+     * same format.
+     *
+     * @param input   The input image file.
+     * @param output  The output file, replaced if it exists.
+     * @param ops     The operations to apply to each frame.
+     * @param threads The number of frames processed at once.
+     * @return The number of frames written.
+     * @throws IOException If the input cannot be read or the output written.
+     */
+    public static int process(File input, File output, opChain ops, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            ImageReader reader = reader(in, input);
+            ImageWriter writer = null;
+            try {
+                // Frames are read in order and never revisited, so the reader may drop what it has passed.
+                reader.setInput(in, true, false);
+                String format = reader.getFormatName();
+                writer = ImageIO.getImageWriter(reader);
+                if (writer == null || !writer.canWriteSequence()) {
+                    throw new IOException("cannot write the frames of a " + format + " image");
+                }
+                if (output.exists() && !output.delete()) {
+                    throw new IOException("cannot replace " + output);
+                }
+                try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+                    if (out == null) {
+                        throw new IOException("cannot create " + output);
+                    }
+                    writer.setOutput(out);
+                    return process(reader, writer, format, ops, threads);
+                }
+            } finally {
+                reader.dispose();
+                if (writer != null) {
+                    writer.dispose();
+                }
+            }
+        }
+    }
+
+    private static int process(ImageReader reader, ImageWriter writer, String format, opChain ops, int threads)
+            throws IOException {
+        // A GIF has a logical screen its frames are placed on; other formats use each page as its own canvas.
+        IIOMetadata stream = reader.getStreamMetadata();
+        Dimension screen = logicalScreen(stream);
+        Dimension outScreen = screen == null ? null : canvasAfter(ops.getSteps(), screen);
+        writer.prepareWriteSequence(screen == null || outScreen.equals(screen) ? stream
+                : withLogicalScreen(writer, stream, outScreen));
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<CompletableFuture<Frame>> pending = new ArrayDeque<>();
+        int frames = 0;
+        try {
+            // getNumImages is -1 when the frames can only be counted by reading them; then read until the end.
+            int count = reader.getNumImages(false);
+            for (int index = 0; count < 0 || index < count; index++) {
+                metrics.Span decode = metrics.start("decode", format);
+                IIOImage image;
+                try {
+                    image = reader.readAll(index, null);
+                } catch (IndexOutOfBoundsException e) {
+                    break;
+                }
+                BufferedImage img = (BufferedImage) image.getRenderedImage();
+                metrics.end(decode, (long) img.getWidth() * img.getHeight());
+
+                Frame frame = new Frame(img, image.getMetadata(), place(image.getMetadata(), img, screen));
+                // Frames are processed in parallel, so each keeps its filters on its own worker thread.
+                Supplier<Frame> task = () -> apply(frame, ops.getSteps(), screen);
+                pending.add(CompletableFuture.supplyAsync(
+                        threads == 1 ? task : () -> parallelExecutor.sequential(task), pool));
+
+                // Write the oldest frames once enough are in flight, so memory stays bounded.
+                while (pending.size() >= threads * FRAMES_PER_THREAD) {
+                    write(writer, format, pending.poll(), screen);
+                    frames++;
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(writer, format, pending.poll(), screen);
+                frames++;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        writer.endWriteSequence();
+        return frames;
+    }
+
+    /**
+     * Waits for a processed frame and appends it to the output.
+     */
+    private static void write(ImageWriter writer, String format, CompletableFuture<Frame> pending,
+            Dimension screen) throws IOException {
+        Frame frame;
+        try {
+            frame = pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        IIOMetadata metadata = frame.metadata;
+        if (screen != null) {
+            metadata = withPlace(writer, metadata, frame.image, frame.place);
+        }
+        metrics.Span encode = metrics.start("encode", format);
+        writer.writeToSequence(new IIOImage(frame.image, null, metadata), null);
+        metrics.end(encode, (long) frame.image.getWidth() * frame.image.getHeight());
+    }
+
+    /**
+     * Runs the steps on one frame and moves its rectangle with them.
+     *
+     * @param frame  The decoded frame.
+     * @param steps  The steps to apply.
+     * @param screen The canvas the frame is placed on, or null if the frame is its own canvas.
+     * @return The processed frame, with the metadata of the input frame.
+     */
+    private static Frame apply(Frame frame, List<opChain.Step> steps, Dimension screen) {
+        BufferedImage img = frame.image;
+        Rectangle place = new Rectangle(frame.place);
+        Dimension canvas = screen == null ? new Dimension(img.getWidth(), img.getHeight()) : new Dimension(screen);
+
+        // Steps that keep the size are collected and applied together, so that fusion still happens.
+        List<opChain.Step> run = new ArrayList<>();
+        for (opChain.Step step : steps) {
+            switch (step.getName()) {
+                case "mirrorh":
+                    place.x = canvas.width - place.x - place.width;
+                    break;
+                case "mirrorv":
+                    place.y = canvas.height - place.y - place.height;
+                    break;
+                case "rotate":
+                case "rotateccw":
+                    double normalized = ((step.getParam() % 360) + 360) % 360;
+                    if (normalized == 180) {
+                        place.x = canvas.width - place.x - place.width;
+                        place.y = canvas.height - place.y - place.height;
+                    } else if (normalized != 0 && !place.equals(new Rectangle(canvas))) {
+                        throw new IllegalArgumentException("operation '" + step
+                                + "' needs every frame to cover the whole image");
+                    }
+                    break;
+                case "scale":
+                case "fit":
+                    img = opChain.applySteps(img, run);
+                    run.clear();
+                    Dimension resized = opChain.sizeAfter(step, canvas);
+                    if (place.equals(new Rectangle(canvas))) {
+                        img = opChain.applyStep(img, step);
+                        place = new Rectangle(resized);
+                    } else {
+                        // Scale the edges of the frame, so that frames that touch still touch.
+                        int left = (int) Math.round((double) place.x * resized.width / canvas.width);
+                        int top = (int) Math.round((double) place.y * resized.height / canvas.height);
+                        int right = (int) Math.round((double) (place.x + place.width) * resized.width / canvas.width);
+                        int bottom = (int) Math.round((double) (place.y + place.height) * resized.height
+                                / canvas.height);
+                        place = new Rectangle(left, top, Math.max(1, right - left), Math.max(1, bottom - top));
+                        img = imageEditor.resize(img, place.width, place.height);
+                    }
+                    canvas = resized;
+                    continue;
+                default:
+                    break;
+            }
+            run.add(step);
+        }
+        img = opChain.applySteps(img, run);
+        return new Frame(img, frame.metadata, place);
+    }
+
+    /**
+     * Returns the canvas size after a list of steps; only scale and fit change it.
+     */
+    private static Dimension canvasAfter(List<opChain.Step> steps, Dimension canvas) {
+        for (opChain.Step step : steps) {
+            canvas = opChain.sizeAfter(step, canvas);
+        }
+        return canvas;
+    }
+
+    private static ImageReader reader(ImageInputStream in, File file) throws IOException {
+        if (in == null) {
+            throw new IOException("cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("no image reader for " + file);
+        }
+        return readers.next();
+    }
+
+    /**
+     * Returns the logical screen of a GIF, or null for formats without one.
+     */
+    private static Dimension logicalScreen(IIOMetadata stream) {
+        Node screen = child(stream, GIF_STREAM_FORMAT, "LogicalScreenDescriptor");
+        if (screen == null) {
+            return null;
+        }
+        IIOMetadataNode node = (IIOMetadataNode) screen;
+        return new Dimension(Integer.parseInt(node.getAttribute("logicalScreenWidth")),
+                Integer.parseInt(node.getAttribute("logicalScreenHeight")));
+    }
+
+    /**
+     * Returns the rectangle of a frame on the logical screen; the whole
+     * screen for frames without a position.
+     */
+    private static Rectangle place(IIOMetadata metadata, BufferedImage img, Dimension screen) {
+        Node descriptor = child(metadata, GIF_IMAGE_FORMAT, "ImageDescriptor");
+        if (screen == null || descriptor == null) {
+            return new Rectangle(0, 0, img.getWidth(), img.getHeight());
+        }
+        IIOMetadataNode node = (IIOMetadataNode) descriptor;
+        return new Rectangle(Integer.parseInt(node.getAttribute("imageLeftPosition")),
+                Integer.parseInt(node.getAttribute("imageTopPosition")), img.getWidth(), img.getHeight());
+    }
+
+    private static Node child(IIOMetadata metadata, String format, String name) {
+        if (metadata == null || !format.equals(metadata.getNativeMetadataFormatName())) {
+            return null;
+        }
+        for (Node node = metadata.getAsTree(format).getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals(name)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies GIF stream metadata with a new logical screen size.
+     */
+    private static IIOMetadata withLogicalScreen(ImageWriter writer, IIOMetadata stream, Dimension screen)
+            throws IOException {
+        IIOMetadataNode tree = (IIOMetadataNode) stream.getAsTree(GIF_STREAM_FORMAT);
+        IIOMetadataNode node = (IIOMetadataNode) tree.getElementsByTagName("LogicalScreenDescriptor").item(0);
+        node.setAttribute("logicalScreenWidth", Integer.toString(screen.width));
+        node.setAttribute("logicalScreenHeight", Integer.toString(screen.height));
+        IIOMetadata copy = writer.getDefaultStreamMetadata(null);
+        merge(copy, GIF_STREAM_FORMAT, tree);
+        return copy;
+    }
+
+    /**
+     * Copies GIF frame metadata with the position and size of a processed
+     * frame, or returns it as it is when neither changed.
+     */
+    private static IIOMetadata withPlace(ImageWriter writer, IIOMetadata metadata, BufferedImage img,
+            Rectangle place) throws IOException {
+        Node descriptor = child(metadata, GIF_IMAGE_FORMAT, "ImageDescriptor");
+        if (descriptor == null) {
+            return metadata;
+        }
+        IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(GIF_IMAGE_FORMAT);
+        IIOMetadataNode node = (IIOMetadataNode) tree.getElementsByTagName("ImageDescriptor").item(0);
+        String[][] attributes = { { "imageLeftPosition", Integer.toString(place.x) },
+                { "imageTopPosition", Integer.toString(place.y) },
+                { "imageWidth", Integer.toString(place.width) },
+                { "imageHeight", Integer.toString(place.height) } };
+        boolean changed = false;
+        for (String[] attribute : attributes) {
+            changed |= !attribute[1].equals(node.getAttribute(attribute[0]));
+            node.setAttribute(attribute[0], attribute[1]);
+        }
+        if (!changed) {
+            return metadata;
+        }
+        // The reader's metadata is read-only, so merge the changed tree into writable defaults.
+        IIOMetadata copy = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), null);
+        merge(copy, GIF_IMAGE_FORMAT, tree);
+        return copy;
+    }
+
+    private static void merge(IIOMetadata metadata, String format, Node tree) throws IOException {
+        try {
+            metadata.mergeTree(format, tree);
+        } catch (IIOInvalidTreeException e) {
+            throw new IOException("cannot rewrite the " + format + " metadata", e);
+        }
+    }
+}
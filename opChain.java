@@ -0,0 +1,632 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * A parsed sequence of imageEditor operations, e.g. "sepia,blur:3,pixelate:16".
+ *
+ * Each step is an operation name, optionally followed by a colon and a numeric
+ * parameter. Consecutive point operations (brightness, negative, sepia and the
+ * channel filters) are fused into a single {@link pointOpChain} pass when the
+ * chain is applied, and a run of mirrors and rotations, with any point
+ * operations between them, is composed into a single {@link lazyTransform}
+ * pass.
+ *
+ * Supported steps:
+ * <ul>
+ * <li>gray</li>
+ * <li>brightness:PERCENT</li>
+ * <li>negative</li>
+ * <li>sepia</li>
+ * <li>rotate:DEGREES, rotateccw:DEGREES</li>
+ * <li>mirrorh, mirrorv</li>
+ * <li>red, green, blue</li>
+ * <li>pixelate:SIZE</li>
+ * <li>blur, blur:RADIUS</li>
+ * <li>gaussian:SIGMA</li>
+ * <li>sharpen, edges, emboss</li>
+ * <li>autolevels, autolevels:CLIP_PERCENT</li>
+ * <li>equalize</li>
+ * <li>scale:PERCENT</li>
+ * <li>fit:SIZE, which shrinks the longer side to at most SIZE pixels</li>
+ * </ul>
+ */
+public class opChain {
+
+    // Largest blur radius and Gaussian sigma, far beyond any useful blur.
+    private static final int MAX_RADIUS = 1000;
+
+    // Largest pixelate block and fit size.
+    private static final int MAX_SIZE = 1 << 16;
+
+    /**
+     * One step of the chain.
+     */
+    public static final class Step {
+        final String name;
+        final double param;
+
+        Step(String name, double param) {
+            this.name = name;
+            this.param = param;
+        }
+
+        /**
+         * Returns the operation name.
+         *
+         * @return The lower-case operation name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the numeric parameter, or NaN if the operation takes none.
+         *
+         * @return The parameter.
+         */
+        public double getParam() {
+            return param;
+        }
+
+        boolean isGeometric() {
+            switch (name) {
+                case "rotate":
+                case "rotateccw":
+                case "mirrorh":
+                case "mirrorv":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        boolean isPointOp() {
+            switch (name) {
+                case "brightness":
+                case "negative":
+                case "sepia":
+                case "red":
+                case "green":
+                case "blue":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Returns the step in its normalized text form.
+         */
+        @Override
+        public String toString() {
+            if (Double.isNaN(param)) {
+                return name;
+            }
+            if (param == Math.rint(param) && Math.abs(param) < 1e15) {
+                return name + ":" + (long) param;
+            }
+            return name + ":" + param;
+        }
+    }
+
+    private final List<Step> steps;
+
+    private opChain(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Parses a comma-separated chain of operations.
+     *
+     * @param text The chain, e.g. "brightness:20,sepia,blur:2".
+     * @return The parsed chain.
+     * @throws IllegalArgumentException If a step is unknown or has a bad parameter.
+     */
+    public static opChain parse(String text) {
+        List<Step> steps = new ArrayList<>();
+        for (String token : text.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            int colon = token.indexOf(':');
+            String name = (colon < 0 ? token : token.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+            double param = Double.NaN;
+            if (colon >= 0) {
+                try {
+                    param = Double.parseDouble(token.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad parameter in step '" + token + "'");
+                }
+                // NaN stands for a missing parameter below, so it cannot be given as one.
+                if (Double.isNaN(param)) {
+                    throw new IllegalArgumentException("bad parameter in step '" + token + "'");
+                }
+            }
+            steps.add(check(name, param, token));
+        }
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("empty operation chain");
+        }
+        return new opChain(steps);
+    }
+
+    private static Step check(String name, double param, String token) {
+        boolean needsParam;
+        switch (name) {
+            case "brightness":
+            case "rotate":
+            case "rotateccw":
+            case "pixelate":
+            case "gaussian":
+            case "scale":
+            case "fit":
+                needsParam = true;
+                break;
+            case "gray":
+            case "negative":
+            case "sepia":
+            case "mirrorh":
+            case "mirrorv":
+            case "red":
+            case "green":
+            case "blue":
+            case "equalize":
+            case "sharpen":
+            case "edges":
+            case "emboss":
+                needsParam = false;
+                break;
+            case "autolevels":
+                // The clip percentage is optional and defaults to 0.5%.
+                if (!Double.isNaN(param) && !(param >= 0 && param < 50)) {
+                    throw new IllegalArgumentException("step '" + token + "' needs a percentage in [0, 50)");
+                }
+                return new Step(name, Double.isNaN(param) ? 0.5 : param);
+            case "blur":
+                // The radius is optional and defaults to the 3x3 blur.
+                if (!Double.isNaN(param) && checkWhole(param, token) > MAX_RADIUS) {
+                    throw new IllegalArgumentException("step '" + token + "' needs a radius of at most " + MAX_RADIUS);
+                }
+                return new Step(name, Double.isNaN(param) ? 1 : param);
+            default:
+                throw new IllegalArgumentException("unknown operation '" + name + "'");
+        }
+        if (needsParam && Double.isNaN(param)) {
+            throw new IllegalArgumentException("operation '" + name + "' needs a parameter, e.g. " + name + ":10");
+        }
+        if (!needsParam && !Double.isNaN(param)) {
+            throw new IllegalArgumentException("operation '" + name + "' takes no parameter");
+        }
+        if (needsParam && !Double.isFinite(param)) {
+            throw new IllegalArgumentException("step '" + token + "' needs a finite parameter");
+        }
+        if ((name.equals("pixelate") || name.equals("fit"))
+                && (checkWhole(param, token) < 1 || param > MAX_SIZE)) {
+            throw new IllegalArgumentException("step '" + token + "' needs a size in [1, " + MAX_SIZE + "]");
+        }
+        if (name.equals("gaussian") && !(param >= 0 && param <= MAX_RADIUS)) {
+            throw new IllegalArgumentException("step '" + token + "' needs a sigma in [0, " + MAX_RADIUS + "]");
+        }
+        if (name.equals("scale") && !(param > 0 && param <= 10000)) {
+            throw new IllegalArgumentException("step '" + token + "' needs a percentage in (0, 10000]");
+        }
+        return new Step(name, param);
+    }
+
+    private static double checkWhole(double param, String token) {
+        if (param != Math.rint(param) || param < 0 || param > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("step '" + token + "' needs a non-negative whole number");
+        }
+        return param;
+    }
+
+    /**
+     * Returns the steps of the chain.
+     *
+     * @return An unmodifiable list of steps.
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Returns a chain holding the first steps of this one.
+     *
+     * @param length The number of steps to keep.
+     * @return The prefix chain.
+     */
+    public opChain prefix(int length) {
+        return new opChain(new ArrayList<>(steps.subList(0, length)));
+    }
+
+    /**
+     * Returns the size of the largest image the chain produces from an input
+     * of the given size, so that callers with a pixel budget can refuse a
+     * chain before running it. Only scale and fit change the size.
+     *
+     * @param width  The input width.
+     * @param height The input height.
+     * @return The largest pixel count of the input and of every step result.
+     */
+    public long peakPixels(int width, int height) {
+        Dimension size = new Dimension(width, height);
+        long peak = (long) width * height;
+        for (Step step : steps) {
+            size = sizeAfter(step, size);
+            peak = Math.max(peak, (long) size.width * size.height);
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the size of the result of a step, with the rounding of {@link #applyStep}.
+     *
+     * @param step The step.
+     * @param size The size of its input.
+     * @return The size of its output.
+     */
+    static Dimension sizeAfter(Step step, Dimension size) {
+        switch (step.name) {
+            case "scale":
+                return new Dimension(Math.max(1, (int) Math.round(size.width * step.param / 100)),
+                        Math.max(1, (int) Math.round(size.height * step.param / 100)));
+            case "fit":
+                return resize.fit(size.width, size.height, (int) step.param);
+            default:
+                return size;
+        }
+    }
+
+    /**
+     * Applies the chain to an image.
+     *
+     * @param inputImg The input image.
+     * @return The result of every step, in order.
+     */
+    public BufferedImage apply(BufferedImage inputImg) {
+        return applySteps(inputImg, steps, null, false);
+    }
+
+    /**
+     * Applies the chain to an image, taking the output images of the steps
+     * from a pool and giving each intermediate result back once the next step
+     * has consumed it. The input image is left as it is, and the result is
+     * the caller's to release.
+     *
+     * @param inputImg The input image.
+     * @param pool     The pool, or null to allocate every image.
+     * @return The result of every step, in order.
+     */
+    public BufferedImage apply(BufferedImage inputImg, imagePool pool) {
+        return applySteps(inputImg, steps, pool, false);
+    }
+
+    /**
+     * Like {@link #apply(BufferedImage, imagePool)}, but the input image is
+     * the chain's to change in place or release, e.g. a freshly decoded file.
+     *
+     * @param inputImg The input image, which must not be used afterwards.
+     * @param pool     The pool, or null to allocate every image.
+     * @return The result of every step, in order.
+     */
+    BufferedImage applyConsuming(BufferedImage inputImg, imagePool pool) {
+        return applySteps(inputImg, steps, pool, true);
+    }
+
+    /**
+     * Applies a list of steps, fusing runs of point operations.
+     *
+     * @param inputImg The input image.
+     * @param steps    The steps to apply, in order.
+     * @return The result of every step.
+     */
+    static BufferedImage applySteps(BufferedImage inputImg, List<Step> steps) {
+        return applySteps(inputImg, steps, null, false);
+    }
+
+    /**
+     * Applies a list of steps, fusing runs of point operations. Steps that can
+     * run in place do so on intermediate results, and the other steps take
+     * their output images from the pool.
+     *
+     * @param inputImg     The input image.
+     * @param steps        The steps to apply, in order.
+     * @param pool         The pool, or null to allocate every image.
+     * @param consumeInput Whether the input image may be changed or released.
+     * @return The result of every step.
+     */
+    static BufferedImage applySteps(BufferedImage inputImg, List<Step> steps, imagePool pool,
+            boolean consumeInput) {
+        BufferedImage img = inputImg;
+        // Whether img belongs to this call, so that it may be changed in place and recycled.
+        boolean owned = consumeInput;
+        int i = 0;
+        while (i < steps.size()) {
+            BufferedImage current = img;
+            boolean inPlace = owned && pixelEngine.isWritable(current);
+            BufferedImage next;
+            Step step = steps.get(i);
+            int end = runEnd(steps, i);
+            boolean geometric = false;
+            for (int k = i; k < end && end - i > 1; k++) {
+                geometric |= steps.get(k).isGeometric();
+            }
+            // A fused run is timed under its whole name, e.g. "sepia,negative".
+            metrics.Span span = metrics.start("op", end - i == 1 ? step : new opChain(steps.subList(i, end)));
+            if (geometric) {
+                // Compose the mirrors and rotations of the run, and the point operations among them, into one pass.
+                lazyTransform transform = transform(steps.subList(i, end));
+                next = withPool(pool, () -> transform.apply(current));
+                i = end;
+            } else if (step.isPointOp()) {
+                // Fuse the run of point operations into one pass.
+                pointOpChain fused = new pointOpChain();
+                for (; i < end; i++) {
+                    addPointOp(fused, steps.get(i));
+                }
+                next = inPlace ? fused.applyInPlace(current) : withPool(pool, () -> fused.apply(current));
+            } else {
+                next = inPlace ? applyStepInPlace(current, step) : null;
+                if (next == null) {
+                    next = withPool(pool, () -> applyStep(current, step));
+                }
+                i++;
+            }
+            metrics.end(span, (long) current.getWidth() * current.getHeight());
+            if (next != current) {
+                // The step wrote a new image: recycle the one it read.
+                if (owned && pool != null) {
+                    pool.release(current);
+                }
+                owned = true;
+            }
+            img = next;
+        }
+        return img;
+    }
+
+    /**
+     * Finds the end of the run of steps that {@link #applySteps} applies in one
+     * pass: a run of point operations, a run of mirrors, rotations and point
+     * operations with at least one mirror or rotation, or a single other step.
+     *
+     * @param steps The steps.
+     * @param from  The first step of the run.
+     * @return The index after the last step of the run.
+     */
+    static int runEnd(List<Step> steps, int from) {
+        Step step = steps.get(from);
+        int end = from + 1;
+        boolean geometric = step.isGeometric();
+        while (fusable(step) && end < steps.size() && fusable(steps.get(end))) {
+            geometric |= steps.get(end).isGeometric();
+            end++;
+        }
+        return geometric || step.isPointOp() ? end : from + 1;
+    }
+
+    private static boolean fusable(Step step) {
+        return step.isPointOp() || step.isGeometric();
+    }
+
+    /**
+     * Builds the single-pass form of a run of geometric and point operations.
+     */
+    private static lazyTransform transform(List<Step> run) {
+        lazyTransform transform = new lazyTransform();
+        for (Step step : run) {
+            switch (step.name) {
+                case "rotate":
+                    transform.rotate(step.param);
+                    break;
+                case "rotateccw":
+                    transform.rotate(-step.param);
+                    break;
+                case "mirrorh":
+                    transform.mirrorHorizontal();
+                    break;
+                case "mirrorv":
+                    transform.mirrorVertical();
+                    break;
+                default:
+                    pointOpChain points = new pointOpChain();
+                    addPointOp(points, step);
+                    transform.pointOps(points);
+                    break;
+            }
+        }
+        return transform;
+    }
+
+    private static BufferedImage withPool(imagePool pool, Supplier<BufferedImage> task) {
+        return pool == null ? task.get() : pool.using(task);
+    }
+
+    /**
+     * Applies a step in place if it has an in-place form: the mirrors and the
+     * half turn.
+     *
+     * @param img  A writable image that may be changed.
+     * @param step The step.
+     * @return The changed image, or null if the step needs a new image.
+     */
+    private static BufferedImage applyStepInPlace(BufferedImage img, Step step) {
+        switch (step.name) {
+            case "mirrorh":
+                return imageEditor.mirrorHorizontalInPlace(img);
+            case "mirrorv":
+                return imageEditor.mirrorVerticalInPlace(img);
+            case "rotate":
+            case "rotateccw":
+                if ((step.param % 360 + 360) % 360 == 180) {
+                    return imageEditor.rotate180InPlace(img);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the input pixels a step reads to produce a region of its output
+     * exactly, for steps whose output pixels only depend on the input pixels
+     * around them: the point operations, the blurs, the 3x3 kernels and
+     * pixelate, whose blocks stay aligned to the image origin.
+     *
+     * @param step   The step.
+     * @param out    The output region.
+     * @param width  The image width.
+     * @param height The image height.
+     * @return The input region, within the image, or null if the step moves
+     *         pixels, changes the image size or type, or needs statistics of
+     *         the whole image.
+     */
+    static Rectangle inputRegion(Step step, Rectangle out, int width, int height) {
+        int reach;
+        switch (step.name) {
+            case "brightness":
+            case "negative":
+            case "sepia":
+            case "red":
+            case "green":
+            case "blue":
+                reach = 0;
+                break;
+            case "blur":
+                reach = (int) step.param;
+                break;
+            case "gaussian":
+                reach = boxBlur.gaussianReach(step.param);
+                break;
+            case "sharpen":
+            case "edges":
+            case "emboss":
+                reach = 1;
+                break;
+            case "pixelate": {
+                // Whole blocks, aligned to the top left of the image.
+                int size = (int) step.param;
+                if (size <= 0) {
+                    throw new IllegalArgumentException("pixelSize must be positive: " + size);
+                }
+                int left = out.x / size * size;
+                int top = out.y / size * size;
+                int right = (int) Math.min(width, ((long) out.x + out.width + size - 1) / size * size);
+                int bottom = (int) Math.min(height, ((long) out.y + out.height + size - 1) / size * size);
+                return new Rectangle(left, top, right - left, bottom - top);
+            }
+            default:
+                return null;
+        }
+        int left = Math.max(0, out.x - reach);
+        int top = Math.max(0, out.y - reach);
+        int right = (int) Math.min(width, (long) out.x + out.width + reach);
+        int bottom = (int) Math.min(height, (long) out.y + out.height + reach);
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Applies a single step.
+     *
+     * @param img  The input image.
+     * @param step The step to apply.
+     * @return The output image.
+     */
+    static BufferedImage applyStep(BufferedImage img, Step step) {
+        switch (step.name) {
+            case "gray":
+                return imageEditor.grayScale(img);
+            case "brightness":
+                return imageEditor.changeBrightness(img, step.param);
+            case "negative":
+                return imageEditor.negative(img);
+            case "sepia":
+                return imageEditor.sepia(img);
+            case "rotate":
+                return imageEditor.rotate(img, step.param);
+            case "rotateccw":
+                return imageEditor.rotateCounterclockwise(img, step.param);
+            case "mirrorh":
+                return imageEditor.mirrorHorizontal(img);
+            case "mirrorv":
+                return imageEditor.mirrorVertical(img);
+            case "red":
+                return imageEditor.redFilter(img);
+            case "green":
+                return imageEditor.greenFilter(img);
+            case "blue":
+                return imageEditor.blueFilter(img);
+            case "pixelate":
+                return imageEditor.pixelate(img, (int) step.param);
+            case "blur":
+                return imageEditor.blur(img, (int) step.param);
+            case "gaussian":
+                return imageEditor.gaussianBlur(img, step.param);
+            case "sharpen":
+                return imageEditor.sharpen(img);
+            case "edges":
+                return imageEditor.detectEdges(img);
+            case "emboss":
+                return imageEditor.emboss(img);
+            case "autolevels":
+                return imageEditor.autoLevels(img, step.param);
+            case "equalize":
+                return imageEditor.equalize(img);
+            case "scale":
+                Dimension size = sizeAfter(step, new Dimension(img.getWidth(), img.getHeight()));
+                return imageEditor.resize(img, size.width, size.height);
+            case "fit":
+                return imageEditor.thumbnail(img, (int) step.param);
+            default:
+                throw new IllegalStateException("unhandled operation " + step.name);
+        }
+    }
+
+    private static void addPointOp(pointOpChain chain, Step step) {
+        switch (step.name) {
+            case "brightness":
+                chain.brightness(step.param);
+                break;
+            case "negative":
+                chain.negative();
+                break;
+            case "sepia":
+                chain.sepia();
+                break;
+            case "red":
+                chain.redFilter();
+                break;
+            case "green":
+                chain.greenFilter();
+                break;
+            case "blue":
+                chain.blueFilter();
+                break;
+            default:
+                throw new IllegalStateException("not a point operation: " + step.name);
+        }
+    }
+
+    /**
+     * Returns the chain in normalized form, e.g. "brightness:20,sepia,blur:1".
+     * Two chains that do the same thing have the same normalized form.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Step step : steps) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(step);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Runs the imageEditor filters over horizontal bands of rows on a ForkJoinPool.
+ *
+ * The image is split recursively into bands until they are small enough,
+ * and every band is processed by the same code as the serial path, so the
+ * results do not depend on the parallelism level. The level defaults to the
+ * number of available processors and can be changed with the
+ * "imageEditor.parallelism" system property or {@link #setParallelism(int)}.
+ */
+final class parallelExecutor {
+
+    /**
+     * Work done on one band of rows.
+     */
+    interface BandTask {
+        /**
+         * Processes the rows [fromRow, toRow).
+         *
+         * @param fromRow The first row of the band.
+         * @param toRow   The row after the last row of the band.
+         */
+        void run(int fromRow, int toRow);
+    }
+
+    // Bands smaller than this many pixels are not worth a task of their own.
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    // How many bands to aim for per worker thread, so that uneven bands still balance out.
+    private static final int BANDS_PER_THREAD = 4;
+
+    // Set on threads that already run one of several tasks in parallel, e.g. one frame each.
+    private static final ThreadLocal<Boolean> SEQUENTIAL = ThreadLocal.withInitial(() -> false);
+
+    private static int parallelism = Math.max(1,
+            Integer.getInteger("imageEditor.parallelism", Runtime.getRuntime().availableProcessors()));
+    private static ForkJoinPool pool;
+
+    private parallelExecutor() {
+    }
+
+    /**
+     * Returns the number of threads the filters may use.
+     *
+     * @return The parallelism level.
+     */
+    static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads the filters may use. A level of 1 runs every
+     * filter on the calling thread.
+     *
+     * @param level The new parallelism level, at least 1.
+     */
+    static synchronized void setParallelism(int level) {
+        if (level < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + level);
+        }
+        if (level != parallelism && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = level;
+    }
+
+    /**
+     * Runs a task with every filter it calls kept on the calling thread, for
+     * callers that already run several such tasks at once. Other threads keep
+     * the shared parallelism level.
+     *
+     * @param task The task.
+     * @param <T>  The result type.
+     * @return The result of the task.
+     */
+    static <T> T sequential(Supplier<T> task) {
+        boolean outer = SEQUENTIAL.get();
+        SEQUENTIAL.set(true);
+        try {
+            return task.get();
+        } finally {
+            SEQUENTIAL.set(outer);
+        }
+    }
+
+    /**
+     * Returns the number of band tasks waiting in the worker queues.
+     *
+     * @return The queued task count, 0 before the pool is first used.
+     */
+    static synchronized long queuedTasks() {
+        return pool == null ? 0 : pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Processes the rows [0, height) in bands.
+     *
+     * @param height The number of rows.
+     * @param width  The number of pixels per row, used to size the bands.
+     * @param task   The work to run on each band.
+     */
+    static void forEachBand(int height, int width, BandTask task) {
+        forEachBand(height, width, 1, task);
+    }
+
+    /**
+     * Processes the rows [0, height) in bands whose first row is always a
+     * multiple of the given alignment, e.g. the block size of pixelate.
+     *
+     * @param height    The number of rows.
+     * @param width     The number of pixels per row, used to size the bands.
+     * @param alignment The row alignment of every band, at least 1.
+     * @param task      The work to run on each band.
+     */
+    static void forEachBand(int height, int width, int alignment, BandTask task) {
+        int threads = SEQUENTIAL.get() ? 1 : getParallelism();
+
+        // Pick a band height that gives each thread a few bands without making them tiny.
+        int rowsForPixels = MIN_BAND_PIXELS / Math.max(1, width) + 1;
+        int rowsForBalance = height / (threads * BANDS_PER_THREAD);
+        int grain = Math.max(rowsForPixels, rowsForBalance);
+        grain = Math.max(alignment, (grain + alignment - 1) / alignment * alignment);
+
+        if (threads == 1 || height <= grain) {
+            // Not worth splitting: run on the calling thread.
+            if (height > 0) {
+                task.run(0, height);
+            }
+            return;
+        }
+        pool().invoke(new BandAction(task, 0, height, grain, alignment));
+    }
+
+    /**
+     * Splits a range of rows in two until it is no taller than the grain.
+     */
+    private static final class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient BandTask task;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final int alignment;
+
+        BandAction(BandTask task, int from, int to, int grain, int alignment) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.alignment = alignment;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = to - from;
+            if (rows <= grain) {
+                task.run(from, to);
+                return;
+            }
+
+            // Split near the middle, keeping the second half aligned.
+            int half = Math.max(alignment, rows / 2 / alignment * alignment);
+            int mid = from + half;
+            invokeAll(new BandAction(task, from, mid, grain, alignment),
+                    new BandAction(task, mid, to, grain, alignment));
+        }
+    }
+}
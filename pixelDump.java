@@ -0,0 +1,439 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Exports pixel values of an image, or of a region of it, to a channel.
+ *
+ * Values are formatted straight into a reusable buffer, with the decimal
+ * digits of every channel level precomputed, and the buffer is handed to the
+ * channel whenever it fills up, so nothing is allocated per pixel. Images that
+ * live in a file are decoded a strip of rows at a time, with the region and
+ * stride applied by the reader, so even multi-gigapixel images can be dumped
+ * with a small heap.
+ *
+ * Formats:
+ * <ul>
+ * <li>TEXT: one line per row of "(R G B)" groups, as printPixelValues always printed.</li>
+ * <li>CSV: a "x,y,r,g,b" header and one line per pixel, in image coordinates.</li>
+ * <li>RAW: R, G and B bytes of each pixel, row after row, without a header.</li>
+ * <li>PLANAR: the whole red plane, then the green plane, then the blue plane.</li>
+ * </ul>
+ *
+ * Usage:
+ *
+ * <pre>
+ * java imageEditor dump --input photo.png [--output pixels.csv] [--format text|csv|raw|planar]
+ *      [--region X,Y,W,H] [--stride N[,M]]
+ * </pre>
+ */
+public class pixelDump {
+
+    /**
+     * The output formats.
+     */
+    public enum Format {
+        TEXT, CSV, RAW, PLANAR
+    }
+
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    // Room for the longest record (a CSV line with two 10-digit coordinates).
+    private static final int MAX_RECORD = 48;
+
+    // Rows decoded at a time when dumping from a file.
+    private static final int STRIP_ROWS = 256;
+
+    private static final String USAGE = "Usage: java imageEditor dump --input <file> [--output <file>]"
+            + " [--format text|csv|raw|planar] [--region X,Y,W,H] [--stride N[,M]]";
+
+    // ASCII digits of every channel level.
+    private static final byte[][] LEVELS = new byte[256][];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            LEVELS[i] = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Format format;
+    private Rectangle region;
+    private int strideX = 1;
+    private int strideY = 1;
+
+    /**
+     * Creates an exporter for the whole image, every pixel.
+     *
+     * @param format The output format.
+     */
+    public pixelDump(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Restricts the export to a rectangle of the image.
+     *
+     * @param x The left column.
+     * @param y The top row.
+     * @param w The width, at least 1.
+     * @param h The height, at least 1.
+     * @return This exporter.
+     */
+    public pixelDump region(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("bad region " + x + "," + y + " " + w + "x" + h);
+        }
+        this.region = new Rectangle(x, y, w, h);
+        return this;
+    }
+
+    /**
+     * Exports only every strideX-th column and strideY-th row, starting from
+     * the top left corner of the region.
+     *
+     * @param strideX The column step, at least 1.
+     * @param strideY The row step, at least 1.
+     * @return This exporter.
+     */
+    public pixelDump stride(int strideX, int strideY) {
+        if (strideX <= 0 || strideY <= 0) {
+            throw new IllegalArgumentException("stride must be positive: " + strideX + "," + strideY);
+        }
+        this.strideX = strideX;
+        this.strideY = strideY;
+        return this;
+    }
+
+    /**
+     * Exports the pixels of an image in memory.
+     *
+     * @param img The image.
+     * @param out The channel to write to; it is not closed.
+     * @throws IOException If the channel cannot be written.
+     */
+    public void write(BufferedImage img, WritableByteChannel out) throws IOException {
+        Rectangle r = clip(img.getWidth(), img.getHeight());
+        pixelEngine.Source src = new pixelEngine.Source(img);
+        int[] full = new int[r.width];
+        write(r, out, (row, pixels) -> {
+            int y = r.y + row * strideY;
+            if (strideX == 1) {
+                src.readRow(r.x, y, r.width, pixels, 0);
+            } else {
+                src.readRow(r.x, y, r.width, full, 0);
+                for (int k = 0, x = 0; x < r.width; k++, x += strideX) {
+                    pixels[k] = full[x];
+                }
+            }
+        });
+    }
+
+    /**
+     * Exports the pixels of an image file, decoding only the rows and columns
+     * that are exported, a strip at a time.
+     *
+     * @param input The image file.
+     * @param out   The channel to write to; it is not closed.
+     * @throws IOException If the file cannot be decoded or the channel written.
+     */
+    public void write(File input, WritableByteChannel out) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) {
+                throw new IOException("cannot open " + input);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("no image reader for " + input);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                Rectangle r = clip(reader.getWidth(0), reader.getHeight(0));
+                StripReader strips = new StripReader(reader, r);
+                write(r, out, strips::readRow);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Rows of the exported grid, each holding the selected pixels of one image row.
+     */
+    private interface RowReader {
+        void read(int row, int[] pixels) throws IOException;
+    }
+
+    /**
+     * Decodes a file a strip of exported rows at a time, letting the reader
+     * skip the columns and rows outside the region and between strides.
+     */
+    private final class StripReader {
+        private final ImageReader reader;
+        private final Rectangle region;
+        private int stripStart = -1;
+        private pixelEngine.Source strip;
+
+        StripReader(ImageReader reader, Rectangle region) {
+            this.reader = reader;
+            this.region = region;
+        }
+
+        void readRow(int row, int[] pixels) throws IOException {
+            if (strip == null || row < stripStart || row >= stripStart + strip.height) {
+                stripStart = row / STRIP_ROWS * STRIP_ROWS;
+                int firstY = region.y + stripStart * strideY;
+                int lastY = Math.min(region.y + region.height - 1, firstY + (STRIP_ROWS - 1) * strideY);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(region.x, firstY, region.width, lastY - firstY + 1));
+                param.setSourceSubsampling(strideX, strideY, 0, 0);
+                strip = new pixelEngine.Source(reader.read(0, param));
+            }
+            strip.readRow(row - stripStart, pixels);
+        }
+    }
+
+    private Rectangle clip(int width, int height) {
+        Rectangle r = region == null ? new Rectangle(0, 0, width, height)
+                : region.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            throw new IllegalArgumentException("region " + region + " is outside the " + width + "x" + height
+                    + " image");
+        }
+        return r;
+    }
+
+    private void write(Rectangle r, WritableByteChannel out, RowReader rows) throws IOException {
+        int columns = (r.width + strideX - 1) / strideX;
+        int lines = (r.height + strideY - 1) / strideY;
+        int[] pixels = new int[r.width];
+        Output buffer = new Output(out);
+
+        if (format == Format.CSV) {
+            buffer.ascii("x,y,r,g,b\n");
+        }
+
+        if (format == Format.PLANAR) {
+            // One pass over the rows per plane keeps memory bounded by a row.
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                for (int row = 0; row < lines; row++) {
+                    rows.read(row, pixels);
+                    for (int k = 0; k < columns; k++) {
+                        buffer.ensure(1);
+                        buffer.bytes[buffer.position++] = (byte) (pixels[k] >> shift);
+                    }
+                }
+            }
+            buffer.flush();
+            return;
+        }
+
+        for (int row = 0; row < lines; row++) {
+            rows.read(row, pixels);
+            int y = r.y + row * strideY;
+            for (int k = 0; k < columns; k++) {
+                int rgb = pixels[k];
+                buffer.ensure(MAX_RECORD);
+                switch (format) {
+                    case TEXT:
+                        buffer.put('(');
+                        buffer.level(rgb >> 16);
+                        buffer.put(' ');
+                        buffer.level(rgb >> 8);
+                        buffer.put(' ');
+                        buffer.level(rgb);
+                        buffer.put(')');
+                        break;
+                    case CSV:
+                        buffer.number(r.x + k * strideX);
+                        buffer.put(',');
+                        buffer.number(y);
+                        buffer.put(',');
+                        buffer.level(rgb >> 16);
+                        buffer.put(',');
+                        buffer.level(rgb >> 8);
+                        buffer.put(',');
+                        buffer.level(rgb);
+                        buffer.put('\n');
+                        break;
+                    default:
+                        buffer.put((byte) (rgb >> 16));
+                        buffer.put((byte) (rgb >> 8));
+                        buffer.put((byte) rgb);
+                        break;
+                }
+            }
+            if (format == Format.TEXT) {
+                buffer.ensure(1);
+                buffer.put('\n');
+            }
+        }
+        buffer.flush();
+    }
+
+    /**
+     * A byte array that is written to the channel whenever it fills up.
+     */
+    private static final class Output {
+        private final WritableByteChannel channel;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private final ByteBuffer wrapper = ByteBuffer.wrap(bytes);
+        private int position;
+
+        Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int room) throws IOException {
+            if (position + room > bytes.length) {
+                flush();
+            }
+        }
+
+        void put(int b) {
+            bytes[position++] = (byte) b;
+        }
+
+        void level(int value) {
+            byte[] digits = LEVELS[value & 0xFF];
+            System.arraycopy(digits, 0, bytes, position, digits.length);
+            position += digits.length;
+        }
+
+        void number(int value) {
+            if (value < 256) {
+                level(value);
+                return;
+            }
+            int length = 0;
+            for (int v = value; v > 0; v /= 10) {
+                length++;
+            }
+            for (int i = position + length - 1; i >= position; i--, value /= 10) {
+                bytes[i] = (byte) ('0' + value % 10);
+            }
+            position += length;
+        }
+
+        void ascii(String text) throws IOException {
+            byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, position, b.length);
+            position += b.length;
+        }
+
+        void flush() throws IOException {
+            wrapper.clear().limit(position);
+            while (wrapper.hasRemaining()) {
+                channel.write(wrapper);
+            }
+            position = 0;
+        }
+    }
+
+    /**
+     * Prints every pixel of an image to standard output in the TEXT format.
+     *
+     * @param img The image.
+     */
+    static void print(BufferedImage img) {
+        try {
+            new pixelDump(Format.TEXT).write(img, Channels.newChannel((OutputStream) System.out));
+            System.out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Entry point of the dump command.
+     *
+     * @param args The command-line arguments, without the leading "dump".
+     * @throws IOException If the input cannot be read or the output written.
+     */
+    public static void main(String[] args) throws IOException {
+        String input = null;
+        String output = null;
+        Format format = Format.TEXT;
+        int[] region = null;
+        int[] stride = { 1, 1 };
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--input":
+                        input = value;
+                        break;
+                    case "--output":
+                        output = value;
+                        break;
+                    case "--format":
+                        format = Format.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--region":
+                        region = numbers(value, 4);
+                        break;
+                    case "--stride":
+                        stride = numbers(value, value.contains(",") ? 2 : 1);
+                        if (stride.length == 1) {
+                            stride = new int[] { stride[0], stride[0] };
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (input == null || args.length % 2 != 0) {
+                throw new IllegalArgumentException("missing --input");
+            }
+
+            pixelDump dump = new pixelDump(format).stride(stride[0], stride[1]);
+            if (region != null) {
+                dump.region(region[0], region[1], region[2], region[3]);
+            }
+            if (output == null || output.equals("-")) {
+                WritableByteChannel out = Channels.newChannel((OutputStream) System.out);
+                dump.write(new File(input), out);
+                System.out.flush();
+            } else {
+                try (FileChannel out = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    dump.write(new File(input), out);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    private static int[] numbers(String text, int count) {
+        String[] parts = text.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException("expected " + count + " comma-separated numbers: " + text);
+        }
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
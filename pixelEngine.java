@@ -0,0 +1,889 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Direct raster access used by the imageEditor filters.
+ *
+ * A {@link Source} reads pixels straight from the backing arrays of the input
+ * and a {@link Sink} writes them straight into the arrays of the output, each
+ * with a loop specialized for the raster layout. Conversions that depend on
+ * the ColorModel (gray levels, palettes, premultiplied alpha, channels of
+ * fewer than 8 bits) are turned into lookup tables once per ColorModel, so no
+ * pixel goes through getRGB/setRGB. Only exotic layouts (16-bit samples,
+ * non-sRGB color spaces) still fall back to one bulk getRGB call per row.
+ *
+ * Pixels are exchanged as non-premultiplied 0xAARRGGBB ints; opaque sources
+ * report an alpha of 0xFF. Images of a {@link mappedStore} are read and
+ * written row by row in their file regions.
+ */
+final class pixelEngine {
+
+    // sRGB 8-bit to linear 16-bit table, computed exactly like java.awt.image.ColorModel does
+    // so that grayscale conversion matches setRGB on a TYPE_BYTE_GRAY image bit for bit.
+    private static final short[] SRGB8_TO_LINEAR16 = new short[256];
+
+    static {
+        for (int i = 0; i <= 255; i++) {
+            float input = ((float) i) / 255.0f;
+            float output;
+            if (input <= 0.04045f) {
+                output = input / 12.92f;
+            } else {
+                output = (float) Math.pow((input + 0.055f) / 1.055f, 2.4);
+            }
+            SRGB8_TO_LINEAR16[i] = (short) Math.round(output * 65535.0f);
+        }
+    }
+
+    // Weighted linear values of each channel level, the same floats the gray ColorModel multiplies.
+    private static final float[] RED_WEIGHT = new float[256];
+    private static final float[] GREEN_WEIGHT = new float[256];
+    private static final float[] BLUE_WEIGHT = new float[256];
+
+    static {
+        for (int i = 0; i <= 255; i++) {
+            int linear = SRGB8_TO_LINEAR16[i] & 0xFFFF;
+            RED_WEIGHT[i] = 0.2125f * linear;
+            GREEN_WEIGHT[i] = 0.7154f * linear;
+            BLUE_WEIGHT[i] = 0.0721f * linear;
+        }
+    }
+
+    // Lookup tables derived from a ColorModel, built the first time the model is seen.
+    private static final Map<ColorModel, int[]> PALETTES = new ConcurrentHashMap<>();
+    private static final Map<ColorModel, byte[]> UNPREMULTIPLY = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_TABLES = 64;
+
+    private pixelEngine() {
+    }
+
+    /**
+     * Creates a TYPE_3BYTE_BGR image.
+     *
+     * @param width  The width of the new image.
+     * @param height The height of the new image.
+     * @return The new, all-black image.
+     */
+    static BufferedImage newBgrImage(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    /**
+     * Creates the output image of a filter with the same dimensions as its input.
+     *
+     * @param input The filter input.
+     * @return An image of type {@link #outputType}, see {@link #newImage}.
+     */
+    static BufferedImage newOutputImage(BufferedImage input) {
+        return newOutputImage(input, input.getWidth(), input.getHeight());
+    }
+
+    /**
+     * Creates the output image of a filter.
+     *
+     * @param input  The filter input.
+     * @param width  The output width.
+     * @param height The output height.
+     * @return An image of type {@link #outputType}, see {@link #newImage}.
+     */
+    static BufferedImage newOutputImage(BufferedImage input, int width, int height) {
+        return newImage(width, height, outputType(input));
+    }
+
+    /**
+     * Creates the output image of a filter that leaves some pixels unwritten.
+     *
+     * @param input  The filter input.
+     * @param width  The output width.
+     * @param height The output height.
+     * @return An all-black, and transparent if it has alpha, image of type {@link #outputType}.
+     */
+    static BufferedImage newClearedOutputImage(BufferedImage input, int width, int height) {
+        int type = outputType(input);
+        BufferedImage mapped = mapped(width, height, type);
+        if (mapped != null) {
+            return mapped;
+        }
+        imagePool pool = imagePool.current();
+        return pool != null ? pool.acquireCleared(width, height, type) : new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Creates a filter output image, mapped by the {@link mappedStore} of the
+     * current thread if it is large enough, else taken from the
+     * {@link imagePool} of the current thread if there is one. A pooled image
+     * keeps the pixels it had, so the filter must write every pixel.
+     *
+     * @param width  The width.
+     * @param height The height.
+     * @param type   A predefined BufferedImage type.
+     * @return The image.
+     */
+    static BufferedImage newImage(int width, int height, int type) {
+        BufferedImage mapped = mapped(width, height, type);
+        if (mapped != null) {
+            return mapped;
+        }
+        imagePool pool = imagePool.current();
+        return pool != null ? pool.acquire(width, height, type) : new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Creates a large output image in the {@link mappedStore} of the current thread, if there is one.
+     */
+    private static BufferedImage mapped(int width, int height, int type) {
+        mappedStore store = mappedStore.current();
+        return store != null ? store.allocateOutput(width, height, type) : null;
+    }
+
+    /**
+     * Whether an image can be written through a {@link Sink}, and so can be
+     * changed in place by the filters: a whole image of one of the types
+     * {@link #outputType} picks, or a whole {@link mappedStore} image.
+     *
+     * @param img The image.
+     * @return Whether a Sink accepts the image.
+     */
+    static boolean isWritable(BufferedImage img) {
+        return (outputType(img) == img.getType() || mappedStore.isMapped(img)) && img.getRaster().getParent() == null
+                && img.getRaster().getMinX() == 0 && img.getRaster().getMinY() == 0;
+    }
+
+    /**
+     * Picks the output type matching an input: packed int inputs stay packed
+     * ints, inputs with alpha keep their alpha (non-premultiplied), and
+     * everything else, including gray and indexed inputs, becomes TYPE_3BYTE_BGR.
+     *
+     * @param input The filter input.
+     * @return A BufferedImage type constant.
+     */
+    static int outputType(BufferedImage input) {
+        switch (input.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_ARGB:
+                return input.getType();
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                return BufferedImage.TYPE_INT_ARGB;
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return BufferedImage.TYPE_4BYTE_ABGR;
+            default:
+                return input.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR
+                        : BufferedImage.TYPE_3BYTE_BGR;
+        }
+    }
+
+    /**
+     * Returns an opaque TYPE_3BYTE_BGR copy of an image that has alpha, for
+     * formats such as JPEG that cannot store it. Other images are returned as is.
+     *
+     * @param img The image to flatten.
+     * @return An image without alpha.
+     */
+    static BufferedImage withoutAlpha(BufferedImage img) {
+        if (!img.getColorModel().hasAlpha()) {
+            return img;
+        }
+        Source src = new Source(img);
+        BufferedImage outputImg = newBgrImage(src.width, src.height);
+        Sink sink = new Sink(outputImg);
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                sink.writeRow(i, row);
+            }
+        });
+        return outputImg;
+    }
+
+    /**
+     * Returns an image that the writers of a format can encode: images with
+     * alpha are flattened when no writer of the format accepts alpha.
+     *
+     * @param img    The image to write.
+     * @param format The informal format name, e.g. "jpg".
+     * @return The image itself, or an opaque copy.
+     */
+    static BufferedImage forFormat(BufferedImage img, String format) {
+        if (img.getColorModel().hasAlpha()
+                && !ImageIO.getImageWriters(ImageTypeSpecifier.createFromRenderedImage(img), format).hasNext()) {
+            // Formats such as JPEG and BMP cannot store alpha.
+            return withoutAlpha(img);
+        }
+        return img;
+    }
+
+    /**
+     * Returns the backing byte array of a freshly created TYPE_BYTE_GRAY image.
+     *
+     * @param img A TYPE_BYTE_GRAY image with a default raster.
+     * @return The backing byte array, one byte per pixel.
+     */
+    static byte[] grayData(BufferedImage img) {
+        return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Converts an sRGB color to an 8-bit linear gray value the same way a
+     * TYPE_BYTE_GRAY ColorModel does.
+     *
+     * @param rgb The packed color; alpha is ignored.
+     * @return The gray level in [0, 255].
+     */
+    static int luminance(int rgb) {
+        float gray = ((RED_WEIGHT[(rgb >> 16) & 0xFF] + GREEN_WEIGHT[(rgb >> 8) & 0xFF]) + BLUE_WEIGHT[rgb & 0xFF])
+                / 65535.0f;
+        return (int) (gray * 255 + 0.5f);
+    }
+
+    /**
+     * Converts a run of colors to gray levels with {@link #luminance}.
+     *
+     * @param row    The 0xAARRGGBB colors.
+     * @param out    Receives one gray level per color.
+     * @param offset The index in out of the first gray level.
+     * @param length The number of colors to convert.
+     */
+    static void luminanceRow(int[] row, byte[] out, int offset, int length) {
+        for (int j = 0; j < length; j++) {
+            int rgb = row[j];
+            float gray = ((RED_WEIGHT[(rgb >> 16) & 0xFF] + GREEN_WEIGHT[(rgb >> 8) & 0xFF])
+                    + BLUE_WEIGHT[rgb & 0xFF]) / 65535.0f;
+            out[offset + j] = (byte) (int) (gray * 255 + 0.5f);
+        }
+    }
+
+    /**
+     * Forgets every table once many distinct ColorModels have been seen, e.g.
+     * a stream of images with different palettes.
+     */
+    private static void trim(Map<ColorModel, ?> tables) {
+        if (tables.size() > MAX_CACHED_TABLES) {
+            tables.clear();
+        }
+    }
+
+    /**
+     * Returns the sRGB color of each of the 2^bits sample values of a single-band
+     * image (gray or indexed), as getRGB would report it.
+     */
+    private static int[] paletteOf(ColorModel cm, int bits) {
+        trim(PALETTES);
+        return PALETTES.computeIfAbsent(cm, model -> {
+            int[] palette = new int[1 << bits];
+            byte[] sample = new byte[1];
+            for (int v = 0; v < palette.length; v++) {
+                sample[0] = (byte) v;
+                try {
+                    palette[v] = model.getRGB(sample);
+                } catch (RuntimeException e) {
+                    // Values outside a short palette have no color.
+                    palette[v] = 0;
+                }
+            }
+            return palette;
+        });
+    }
+
+    /**
+     * Returns a table mapping (alpha << 8 | premultiplied component) to the
+     * non-premultiplied component, as the given premultiplied ColorModel reports it.
+     */
+    private static byte[] unpremultiplyTable(ColorModel cm) {
+        trim(UNPREMULTIPLY);
+        return UNPREMULTIPLY.computeIfAbsent(cm, model -> {
+            byte[] table = new byte[256 * 256];
+            boolean packed = model instanceof DirectColorModel;
+            byte[] sample = new byte[4];
+            for (int a = 0; a < 256; a++) {
+                for (int c = 0; c < 256; c++) {
+                    int red;
+                    if (packed) {
+                        red = model.getRed((a << 24) | (c << 16));
+                    } else {
+                        sample[0] = (byte) c;
+                        sample[3] = (byte) a;
+                        red = model.getRed(sample);
+                    }
+                    table[(a << 8) | c] = (byte) red;
+                }
+            }
+            return table;
+        });
+    }
+
+    /**
+     * Read-only view over the pixels of a BufferedImage, specialized for its layout.
+     */
+    static final class Source {
+        private static final int BYTES = 0;
+        private static final int BYTES_PREMULTIPLIED = 1;
+        private static final int INT_RGB = 2;
+        private static final int INT_ARGB = 3;
+        private static final int INT_BGR = 4;
+        private static final int PACKED = 5;
+        private static final int PALETTE = 6;
+        private static final int PALETTE_BITS = 7;
+        private static final int GENERIC = 8;
+        private static final int MAPPED = 9;
+
+        final BufferedImage image;
+        final int width;
+        final int height;
+
+        /** Whether the pixels may be partly transparent. */
+        final boolean hasAlpha;
+
+        private final int layout;
+        private byte[] bytes;
+        private int[] ints;
+        private short[] shorts;
+        private int base;
+        private int scanline;
+        private int pixelStride;
+        private int redOffset;
+        private int greenOffset;
+        private int blueOffset;
+        private int alphaOffset = -1;
+
+        // Palette of gray or indexed images, unpremultiply table, or per-channel tables.
+        private int[] palette;
+        private byte[] unpremultiply;
+        private int bitsPerPixel;
+        private int bitOffset;
+        private int[] masks;
+        private int[] shifts;
+        private byte[][] channelTables;
+
+        // Mapped pixels, and the position of this image within them.
+        private mappedStore.Pixels mapped;
+        private int mappedX;
+        private int mappedY;
+
+        Source(BufferedImage image) {
+            this.image = image;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+
+            Raster raster = image.getRaster();
+            SampleModel sm = raster.getSampleModel();
+            DataBuffer db = raster.getDataBuffer();
+            ColorModel cm = image.getColorModel();
+            this.hasAlpha = cm.hasAlpha();
+            int tx = raster.getSampleModelTranslateX();
+            int ty = raster.getSampleModelTranslateY();
+            boolean sRGB = cm.getColorSpace().isCS_sRGB();
+            boolean oneBank = db.getNumBanks() == 1;
+
+            if (db instanceof mappedStore.Pixels) {
+                // Rows of a mapped file, possibly of a subimage.
+                this.layout = MAPPED;
+                this.mapped = (mappedStore.Pixels) db;
+                this.mappedX = -tx;
+                this.mappedY = -ty;
+            } else if (oneBank && cm instanceof ComponentColorModel && sm instanceof ComponentSampleModel
+                    && db instanceof DataBufferByte && is8Bit(sm) && sm.getNumBands() == 1
+                    && cm.getColorSpace() == ColorSpace.getInstance(ColorSpace.CS_GRAY)) {
+                // 8-bit gray: one palette entry per level.
+                this.layout = PALETTE;
+                this.palette = paletteOf(cm, 8);
+                setComponentLayout((ComponentSampleModel) sm, db, tx, ty);
+            } else if (oneBank && sRGB && cm instanceof ComponentColorModel && sm instanceof ComponentSampleModel
+                    && db instanceof DataBufferByte && is8Bit(sm)
+                    && (sm.getNumBands() == 3 || sm.getNumBands() == 4)) {
+                // Interleaved bytes, one band per color component, optionally premultiplied.
+                this.layout = cm.isAlphaPremultiplied() ? BYTES_PREMULTIPLIED : BYTES;
+                if (cm.isAlphaPremultiplied()) {
+                    this.unpremultiply = unpremultiplyTable(cm);
+                }
+                setComponentLayout((ComponentSampleModel) sm, db, tx, ty);
+            } else if (oneBank && cm instanceof IndexColorModel && db instanceof DataBufferByte
+                    && sm.getNumBands() == 1 && sm.getSampleSize(0) <= 8) {
+                // Indexed color, either one byte per pixel or several pixels per byte.
+                this.palette = paletteOf(cm, sm.getSampleSize(0));
+                if (sm instanceof MultiPixelPackedSampleModel) {
+                    MultiPixelPackedSampleModel mpp = (MultiPixelPackedSampleModel) sm;
+                    this.layout = PALETTE_BITS;
+                    this.bytes = ((DataBufferByte) db).getData();
+                    this.bitsPerPixel = mpp.getPixelBitStride();
+                    this.scanline = mpp.getScanlineStride();
+                    this.base = db.getOffset() - ty * scanline;
+                    this.bitOffset = mpp.getDataBitOffset() - tx * bitsPerPixel;
+                } else if (sm instanceof ComponentSampleModel && sm.getSampleSize(0) == 8) {
+                    this.layout = PALETTE;
+                    setComponentLayout((ComponentSampleModel) sm, db, tx, ty);
+                } else {
+                    this.layout = GENERIC;
+                }
+            } else if (oneBank && sRGB && cm instanceof DirectColorModel && sm instanceof SinglePixelPackedSampleModel
+                    && (db instanceof DataBufferInt || db instanceof DataBufferUShort)) {
+                // One int or short per pixel holding packed channels.
+                DirectColorModel dcm = (DirectColorModel) cm;
+                SinglePixelPackedSampleModel spp = (SinglePixelPackedSampleModel) sm;
+                if (db instanceof DataBufferInt) {
+                    this.ints = ((DataBufferInt) db).getData();
+                } else {
+                    this.shorts = ((DataBufferUShort) db).getData();
+                }
+                this.scanline = spp.getScanlineStride();
+                this.pixelStride = 1;
+                this.base = db.getOffset() - ty * scanline - tx;
+                // Premultiplied channels other than 8-bit ARGB have no tables and go through getRGB.
+                int packed = packedLayout(dcm);
+                this.layout = packed == PACKED && !setPackedTables(dcm) ? GENERIC : packed;
+            } else {
+                // 16-bit samples, non-sRGB color spaces and other unusual layouts.
+                this.layout = GENERIC;
+            }
+        }
+
+        private void setComponentLayout(ComponentSampleModel csm, DataBuffer db, int tx, int ty) {
+            int[] bandOffsets = csm.getBandOffsets();
+            this.bytes = ((DataBufferByte) db).getData();
+            this.scanline = csm.getScanlineStride();
+            this.pixelStride = csm.getPixelStride();
+            this.base = db.getOffset() - ty * scanline - tx * pixelStride;
+            this.redOffset = bandOffsets[0];
+            this.greenOffset = bandOffsets.length > 1 ? bandOffsets[1] : 0;
+            this.blueOffset = bandOffsets.length > 2 ? bandOffsets[2] : 0;
+            this.alphaOffset = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+        }
+
+        private int packedLayout(DirectColorModel cm) {
+            boolean ints8 = ints != null && cm.getAlphaMask() == (cm.hasAlpha() ? 0xFF000000 : 0);
+            if (ints8 && !cm.isAlphaPremultiplied() && cm.getGreenMask() == 0xFF00) {
+                if (cm.getRedMask() == 0xFF0000 && cm.getBlueMask() == 0xFF) {
+                    return cm.hasAlpha() ? INT_ARGB : INT_RGB;
+                }
+                if (cm.getRedMask() == 0xFF && cm.getBlueMask() == 0xFF0000 && !cm.hasAlpha()) {
+                    return INT_BGR;
+                }
+            }
+            return PACKED;
+        }
+
+        /**
+         * Prepares per-channel tables for packed pixels with arbitrary masks, or
+         * the unpremultiply table for premultiplied 8-bit channels.
+         *
+         * @return False for premultiplied layouts other than 8-bit ARGB, which have no tables.
+         */
+        private boolean setPackedTables(DirectColorModel cm) {
+            masks = new int[] { cm.getRedMask(), cm.getGreenMask(), cm.getBlueMask(), cm.getAlphaMask() };
+            shifts = new int[4];
+            channelTables = new byte[4][];
+            for (int c = 0; c < 4; c++) {
+                shifts[c] = masks[c] == 0 ? 0 : Integer.numberOfTrailingZeros(masks[c]);
+                int bits = Integer.bitCount(masks[c]);
+                if (bits > 8 || bits == 0) {
+                    continue;
+                }
+                // The 8-bit value getRGB reports for each raw channel value.
+                byte[] table = new byte[1 << bits];
+                for (int v = 0; v < table.length; v++) {
+                    int pixel = v << shifts[c];
+                    if (cm.hasAlpha() && c < 3) {
+                        // Make the pixel opaque so premultiplication does not interfere.
+                        pixel |= cm.getAlphaMask();
+                    }
+                    table[v] = (byte) (c == 0 ? cm.getRed(pixel)
+                            : c == 1 ? cm.getGreen(pixel) : c == 2 ? cm.getBlue(pixel) : cm.getAlpha(pixel));
+                }
+                channelTables[c] = table;
+            }
+            if (cm.isAlphaPremultiplied()) {
+                if (masks[0] != 0xFF0000 || masks[1] != 0xFF00 || masks[2] != 0xFF || masks[3] != 0xFF000000) {
+                    return false;
+                }
+                unpremultiply = unpremultiplyTable(cm);
+            }
+            return true;
+        }
+
+        private static boolean is8Bit(SampleModel sm) {
+            for (int size : sm.getSampleSize()) {
+                if (size != 8) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the colors of the sample values of a gray or indexed image.
+         *
+         * @return The palette, or null if pixels are not stored as palette indices.
+         */
+        int[] palette() {
+            return layout == PALETTE || layout == PALETTE_BITS ? palette : null;
+        }
+
+        /**
+         * Reads the palette indices of a full row of a gray or indexed image.
+         *
+         * @param y   The row.
+         * @param row Receives the indices, at least width entries.
+         */
+        void readIndices(int y, int[] row) {
+            if (layout == PALETTE) {
+                int i = base + y * scanline + redOffset;
+                for (int k = 0; k < width; k++, i += pixelStride) {
+                    row[k] = bytes[i] & 0xFF;
+                }
+            } else if (layout == PALETTE_BITS) {
+                int rowStart = base + y * scanline;
+                int mask = (1 << bitsPerPixel) - 1;
+                for (int k = 0; k < width; k++) {
+                    int bit = bitOffset + k * bitsPerPixel;
+                    row[k] = (bytes[rowStart + (bit >> 3)] >> (8 - (bit & 7) - bitsPerPixel)) & mask;
+                }
+            } else {
+                throw new IllegalStateException("not a palette image");
+            }
+        }
+
+        /**
+         * Returns the color of a single pixel.
+         *
+         * @param x The column, in [0, width).
+         * @param y The row, in [0, height).
+         * @return The non-premultiplied 0xAARRGGBB color.
+         */
+        int rgb(int x, int y) {
+            switch (layout) {
+                case BYTES: {
+                    int i = base + y * scanline + x * pixelStride;
+                    int alpha = alphaOffset < 0 ? 0xFF000000 : (bytes[i + alphaOffset] & 0xFF) << 24;
+                    return alpha | ((bytes[i + redOffset] & 0xFF) << 16) | ((bytes[i + greenOffset] & 0xFF) << 8)
+                            | (bytes[i + blueOffset] & 0xFF);
+                }
+                case INT_RGB:
+                    return ints[base + y * scanline + x] | 0xFF000000;
+                case INT_ARGB:
+                    return ints[base + y * scanline + x];
+                case INT_BGR: {
+                    int p = ints[base + y * scanline + x];
+                    return 0xFF000000 | ((p & 0xFF) << 16) | (p & 0xFF00) | ((p >> 16) & 0xFF);
+                }
+                case PALETTE:
+                    return palette[bytes[base + y * scanline + x * pixelStride + redOffset] & 0xFF];
+                case MAPPED:
+                    return mapped.rgb(mappedX + x, mappedY + y);
+                default: {
+                    int[] one = new int[1];
+                    readRow(x, y, 1, one, 0);
+                    return one[0];
+                }
+            }
+        }
+
+        /**
+         * Reads a full row of pixels.
+         *
+         * @param y   The row, in [0, height).
+         * @param row Receives the 0xAARRGGBB colors, at least width entries.
+         */
+        void readRow(int y, int[] row) {
+            readRow(0, y, width, row, 0);
+        }
+
+        /**
+         * Reads a horizontal run of pixels.
+         *
+         * @param x      The first column.
+         * @param y      The row.
+         * @param length The number of pixels to read.
+         * @param row    Receives the 0xAARRGGBB colors.
+         * @param offset The index in row of the first pixel.
+         */
+        void readRow(int x, int y, int length, int[] row, int offset) {
+            switch (layout) {
+                case BYTES: {
+                    int i = base + y * scanline + x * pixelStride;
+                    if (alphaOffset < 0) {
+                        for (int k = 0; k < length; k++, i += pixelStride) {
+                            row[offset + k] = 0xFF000000 | ((bytes[i + redOffset] & 0xFF) << 16)
+                                    | ((bytes[i + greenOffset] & 0xFF) << 8) | (bytes[i + blueOffset] & 0xFF);
+                        }
+                    } else {
+                        for (int k = 0; k < length; k++, i += pixelStride) {
+                            row[offset + k] = ((bytes[i + alphaOffset] & 0xFF) << 24)
+                                    | ((bytes[i + redOffset] & 0xFF) << 16)
+                                    | ((bytes[i + greenOffset] & 0xFF) << 8) | (bytes[i + blueOffset] & 0xFF);
+                        }
+                    }
+                    break;
+                }
+                case BYTES_PREMULTIPLIED: {
+                    int i = base + y * scanline + x * pixelStride;
+                    for (int k = 0; k < length; k++, i += pixelStride) {
+                        int a = (bytes[i + alphaOffset] & 0xFF) << 8;
+                        row[offset + k] = (a << 16) | ((unpremultiply[a | (bytes[i + redOffset] & 0xFF)] & 0xFF) << 16)
+                                | ((unpremultiply[a | (bytes[i + greenOffset] & 0xFF)] & 0xFF) << 8)
+                                | (unpremultiply[a | (bytes[i + blueOffset] & 0xFF)] & 0xFF);
+                    }
+                    break;
+                }
+                case INT_RGB: {
+                    int i = base + y * scanline + x;
+                    for (int k = 0; k < length; k++) {
+                        row[offset + k] = ints[i + k] | 0xFF000000;
+                    }
+                    break;
+                }
+                case INT_ARGB:
+                    System.arraycopy(ints, base + y * scanline + x, row, offset, length);
+                    break;
+                case INT_BGR: {
+                    int i = base + y * scanline + x;
+                    for (int k = 0; k < length; k++) {
+                        int p = ints[i + k];
+                        row[offset + k] = 0xFF000000 | ((p & 0xFF) << 16) | (p & 0xFF00) | ((p >> 16) & 0xFF);
+                    }
+                    break;
+                }
+                case PALETTE: {
+                    int i = base + y * scanline + x * pixelStride + redOffset;
+                    for (int k = 0; k < length; k++, i += pixelStride) {
+                        row[offset + k] = palette[bytes[i] & 0xFF];
+                    }
+                    break;
+                }
+                case PALETTE_BITS: {
+                    int rowStart = base + y * scanline;
+                    int mask = (1 << bitsPerPixel) - 1;
+                    for (int k = 0; k < length; k++) {
+                        int bit = bitOffset + (x + k) * bitsPerPixel;
+                        int value = (bytes[rowStart + (bit >> 3)] >> (8 - (bit & 7) - bitsPerPixel)) & mask;
+                        row[offset + k] = palette[value];
+                    }
+                    break;
+                }
+                case PACKED: {
+                    int i = base + y * scanline + x;
+                    for (int k = 0; k < length; k++) {
+                        int p = ints != null ? ints[i + k] : shorts[i + k] & 0xFFFF;
+                        row[offset + k] = unpackPixel(p);
+                    }
+                    break;
+                }
+                case MAPPED:
+                    mapped.readRow(mappedX + x, y + mappedY, length, row, offset);
+                    break;
+                default: {
+                    // One bulk call per row instead of one call per pixel.
+                    image.getRGB(x, y, length, 1, row, offset, length);
+                    break;
+                }
+            }
+        }
+
+        private int unpackPixel(int p) {
+            if (unpremultiply != null) {
+                int a = (p >>> 24) << 8;
+                return (a << 16) | ((unpremultiply[a | ((p >> 16) & 0xFF)] & 0xFF) << 16)
+                        | ((unpremultiply[a | ((p >> 8) & 0xFF)] & 0xFF) << 8) | (unpremultiply[a | (p & 0xFF)] & 0xFF);
+            }
+            int argb = masks[3] == 0 ? 0xFF000000 : (channelTables[3][(p & masks[3]) >>> shifts[3]] & 0xFF) << 24;
+            for (int c = 0; c < 3; c++) {
+                argb |= (channelTables[c][(p & masks[c]) >>> shifts[c]] & 0xFF) << (16 - 8 * c);
+            }
+            return argb;
+        }
+    }
+
+    /**
+     * Write-only view over an image created by {@link #newOutputImage} or
+     * {@link #newBgrImage}, or any image that {@link #isWritable}, specialized
+     * for its layout.
+     */
+    static final class Sink {
+        private static final int BGR = 0;
+        private static final int ABGR = 1;
+        private static final int INT_RGB = 2;
+        private static final int INT_ARGB = 3;
+        private static final int INT_BGR = 4;
+        private static final int MAPPED = 5;
+
+        final BufferedImage image;
+        final int width;
+        final int height;
+
+        private final int layout;
+        private final byte[] bytes;
+        private final int[] ints;
+        private final int pixelStride;
+        private final mappedStore.Pixels mapped;
+
+        Sink(BufferedImage image) {
+            this.image = image;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            DataBuffer db = image.getRaster().getDataBuffer();
+            this.mapped = db instanceof mappedStore.Pixels ? (mappedStore.Pixels) db : null;
+            switch (mapped != null ? BufferedImage.TYPE_CUSTOM : image.getType()) {
+                case BufferedImage.TYPE_CUSTOM:
+                    layout = MAPPED;
+                    break;
+                case BufferedImage.TYPE_3BYTE_BGR:
+                    layout = BGR;
+                    break;
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                    layout = ABGR;
+                    break;
+                case BufferedImage.TYPE_INT_RGB:
+                    layout = INT_RGB;
+                    break;
+                case BufferedImage.TYPE_INT_ARGB:
+                    layout = INT_ARGB;
+                    break;
+                case BufferedImage.TYPE_INT_BGR:
+                    layout = INT_BGR;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported output type " + image.getType());
+            }
+            if (!isWritable(image)) {
+                throw new IllegalArgumentException("output must be a whole image, not a subimage");
+            }
+            this.bytes = db instanceof DataBufferByte ? ((DataBufferByte) db).getData() : null;
+            this.ints = db instanceof DataBufferInt ? ((DataBufferInt) db).getData() : null;
+            this.pixelStride = layout == BGR ? 3 : layout == ABGR ? 4 : 1;
+        }
+
+        /**
+         * Writes a full row of pixels.
+         *
+         * @param y   The row.
+         * @param row The 0xAARRGGBB colors, at least width entries.
+         */
+        void writeRow(int y, int[] row) {
+            writeRow(0, y, width, row, 0);
+        }
+
+        /**
+         * Writes a horizontal run of pixels.
+         *
+         * @param x      The first column.
+         * @param y      The row.
+         * @param length The number of pixels to write.
+         * @param row    The 0xAARRGGBB colors.
+         * @param offset The index in row of the first pixel.
+         */
+        void writeRow(int x, int y, int length, int[] row, int offset) {
+            int o = (y * width + x) * pixelStride;
+            switch (layout) {
+                case MAPPED:
+                    mapped.writeRow(x, y, length, row, offset);
+                    break;
+                case BGR:
+                    for (int k = 0; k < length; k++, o += 3) {
+                        int argb = row[offset + k];
+                        bytes[o] = (byte) argb;
+                        bytes[o + 1] = (byte) (argb >> 8);
+                        bytes[o + 2] = (byte) (argb >> 16);
+                    }
+                    break;
+                case ABGR:
+                    for (int k = 0; k < length; k++, o += 4) {
+                        int argb = row[offset + k];
+                        bytes[o] = (byte) (argb >>> 24);
+                        bytes[o + 1] = (byte) argb;
+                        bytes[o + 2] = (byte) (argb >> 8);
+                        bytes[o + 3] = (byte) (argb >> 16);
+                    }
+                    break;
+                case INT_RGB:
+                    for (int k = 0; k < length; k++) {
+                        ints[o + k] = row[offset + k] & 0xFFFFFF;
+                    }
+                    break;
+                case INT_ARGB:
+                    System.arraycopy(row, offset, ints, o, length);
+                    break;
+                default:
+                    for (int k = 0; k < length; k++) {
+                        int argb = row[offset + k];
+                        ints[o + k] = ((argb & 0xFF) << 16) | (argb & 0xFF00) | ((argb >> 16) & 0xFF);
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Writes a single pixel.
+         *
+         * @param x    The column.
+         * @param y    The row.
+         * @param argb The 0xAARRGGBB color.
+         */
+        void set(int x, int y, int argb) {
+            int o = (y * width + x) * pixelStride;
+            switch (layout) {
+                case MAPPED:
+                    mapped.writeRow(x, y, 1, new int[] { argb }, 0);
+                    break;
+                case BGR:
+                    bytes[o] = (byte) argb;
+                    bytes[o + 1] = (byte) (argb >> 8);
+                    bytes[o + 2] = (byte) (argb >> 16);
+                    break;
+                case ABGR:
+                    bytes[o] = (byte) (argb >>> 24);
+                    bytes[o + 1] = (byte) argb;
+                    bytes[o + 2] = (byte) (argb >> 8);
+                    bytes[o + 3] = (byte) (argb >> 16);
+                    break;
+                case INT_RGB:
+                    ints[o] = argb & 0xFFFFFF;
+                    break;
+                case INT_ARGB:
+                    ints[o] = argb;
+                    break;
+                default:
+                    ints[o] = ((argb & 0xFF) << 16) | (argb & 0xFF00) | ((argb >> 16) & 0xFF);
+                    break;
+            }
+        }
+
+        /**
+         * Copies an already written row onto another row.
+         *
+         * @param fromY The row to copy.
+         * @param toY   The row to overwrite.
+         */
+        void copyRow(int fromY, int toY) {
+            int rowLength = width * pixelStride;
+            if (mapped != null) {
+                int[] row = new int[width];
+                mapped.readRow(0, fromY, width, row, 0);
+                mapped.writeRow(0, toY, width, row, 0);
+            } else if (bytes != null) {
+                System.arraycopy(bytes, fromY * rowLength, bytes, toY * rowLength, rowLength);
+            } else {
+                System.arraycopy(ints, fromY * rowLength, ints, toY * rowLength, rowLength);
+            }
+        }
+    }
+}
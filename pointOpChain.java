@@ -0,0 +1,332 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chain of per-pixel operations that is applied in a single pass.
+ *
+ * Operations that treat every channel on its own (brightness, negative and
+ * the red/green/blue filters) are folded into one 256-entry lookup table per
+ * channel. Operations that mix channels (sepia or a custom 3x4 color matrix)
+ * keep their own stage, but the tables before them are folded into their
+ * coefficients, so a pixel costs a few table lookups per stage. However long
+ * the chain is, the image is read once and one output image is allocated,
+ * and the result is identical to calling the imageEditor methods one by one.
+ *
+ * Example:
+ *
+ * <pre>
+ * BufferedImage out = new pointOpChain().brightness(20).sepia().negative().apply(img);
+ * </pre>
+ */
+public class pointOpChain {
+
+    // Sepia weights, rows are the output red, green and blue channels.
+    private static final double[] SEPIA = {
+            0.393, 0.769, 0.189, 0,
+            0.349, 0.686, 0.168, 0,
+            0.272, 0.534, 0.131, 0 };
+
+    /**
+     * One operation of the chain: either a table per channel or a color matrix.
+     */
+    private static final class Op {
+        final int[][] lut;
+        final double[] matrix;
+
+        Op(int[][] lut, double[] matrix) {
+            this.lut = lut;
+            this.matrix = matrix;
+        }
+    }
+
+    private final List<Op> ops = new ArrayList<>();
+
+    /**
+     * Appends a brightness change, as {@link imageEditor#changeBrightness}.
+     *
+     * @param percent The percentage by which to change brightness.
+     * @return This chain.
+     */
+    public pointOpChain brightness(double percent) {
+        double brightness = 1 + (percent / 100);
+        int[] lut = new int[256];
+        for (int c = 0; c < 256; c++) {
+            lut[c] = Math.max(0, Math.min(255, (int) (c * brightness)));
+        }
+        return lut(lut, lut, lut);
+    }
+
+    /**
+     * Appends a color inversion, as {@link imageEditor#negative}.
+     *
+     * @return This chain.
+     */
+    public pointOpChain negative() {
+        int[] lut = new int[256];
+        for (int c = 0; c < 256; c++) {
+            lut[c] = 255 - c;
+        }
+        return lut(lut, lut, lut);
+    }
+
+    /**
+     * Appends the sepia effect, as {@link imageEditor#sepia}.
+     *
+     * @return This chain.
+     */
+    public pointOpChain sepia() {
+        return matrix(SEPIA);
+    }
+
+    /**
+     * Appends the red filter, as {@link imageEditor#redFilter}.
+     *
+     * @return This chain.
+     */
+    public pointOpChain redFilter() {
+        return lut(identity(), new int[256], new int[256]);
+    }
+
+    /**
+     * Appends the green filter, as {@link imageEditor#greenFilter}.
+     *
+     * @return This chain.
+     */
+    public pointOpChain greenFilter() {
+        return lut(new int[256], identity(), new int[256]);
+    }
+
+    /**
+     * Appends the blue filter, as {@link imageEditor#blueFilter}.
+     *
+     * @return This chain.
+     */
+    public pointOpChain blueFilter() {
+        return lut(new int[256], new int[256], identity());
+    }
+
+    /**
+     * Appends a custom lookup table per channel.
+     *
+     * @param red   The 256 output values of the red channel, each in [0, 255].
+     * @param green The 256 output values of the green channel, each in [0, 255].
+     * @param blue  The 256 output values of the blue channel, each in [0, 255].
+     * @return This chain.
+     */
+    public pointOpChain lut(int[] red, int[] green, int[] blue) {
+        ops.add(new Op(new int[][] { checkLut(red), checkLut(green), checkLut(blue) }, null));
+        return this;
+    }
+
+    /**
+     * Appends a custom color matrix. Each output channel is computed as
+     * m[4k] * red + m[4k+1] * green + m[4k+2] * blue + m[4k+3], truncated to an
+     * integer and clamped to [0, 255], the same way sepia does it.
+     *
+     * @param m The 3x4 matrix in row-major order (red, green, blue rows).
+     * @return This chain.
+     */
+    public pointOpChain matrix(double[] m) {
+        if (m.length != 12) {
+            throw new IllegalArgumentException("a color matrix needs 12 coefficients, got " + m.length);
+        }
+        ops.add(new Op(null, m.clone()));
+        return this;
+    }
+
+    /**
+     * Appends the operations of another chain.
+     *
+     * @param other The chain whose operations follow the ones of this chain.
+     * @return This chain.
+     */
+    pointOpChain append(pointOpChain other) {
+        ops.addAll(other.ops);
+        return this;
+    }
+
+    /**
+     * Returns a chain of the operations from an index on.
+     *
+     * @param from The index of the first operation to keep.
+     * @return A new chain.
+     */
+    pointOpChain suffix(int from) {
+        pointOpChain chain = new pointOpChain();
+        chain.ops.addAll(ops.subList(from, ops.size()));
+        return chain;
+    }
+
+    /**
+     * Returns the number of operations in the chain.
+     *
+     * @return The chain length.
+     */
+    public int size() {
+        return ops.size();
+    }
+
+    /**
+     * Applies the chain to an image in one pass.
+     *
+     * @param inputImg The input image.
+     * @return A new image with every operation applied; alpha is kept as is.
+     */
+    public BufferedImage apply(BufferedImage inputImg) {
+        // Create a new BufferedImage with the same dimensions and a matching pixel layout.
+        return apply(inputImg, pixelEngine.newOutputImage(inputImg));
+    }
+
+    /**
+     * Applies the chain to an image in place, in one pass.
+     *
+     * @param img The image to change; see {@link imageEditor#canEditInPlace}.
+     * @return The same image.
+     */
+    public BufferedImage applyInPlace(BufferedImage img) {
+        if (!pixelEngine.isWritable(img)) {
+            throw new IllegalArgumentException("cannot change an image of type " + img.getType() + " in place");
+        }
+        return apply(img, img);
+    }
+
+    private BufferedImage apply(BufferedImage inputImg, BufferedImage outputImg) {
+        Compiled compiled = compile();
+
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Run the whole chain on each row, one band of rows per task.
+        parallelExecutor.forEachBand(src.height, src.width, (from, to) -> {
+            int[] row = new int[src.width];
+            for (int i = from; i < to; i++) {
+                src.readRow(i, row);
+                compiled.applyRow(row, src.width);
+                sink.writeRow(i, row);
+            }
+        });
+
+        return outputImg;
+    }
+
+    /**
+     * Folds the operations into matrix stages followed by one final table.
+     */
+    Compiled compile() {
+        List<double[][][]> stageTables = new ArrayList<>();
+        List<double[]> stageOffsets = new ArrayList<>();
+
+        // Tables accumulated since the last matrix stage.
+        int[][] pending = { identity(), identity(), identity() };
+
+        for (Op op : ops) {
+            if (op.lut != null) {
+                // Compose with the tables collected so far.
+                for (int c = 0; c < 3; c++) {
+                    int[] composed = new int[256];
+                    for (int v = 0; v < 256; v++) {
+                        composed[v] = op.lut[c][pending[c][v]];
+                    }
+                    pending[c] = composed;
+                }
+            } else {
+                // Fold the pending tables into the matrix: tables[out][in][v] = m * lut_in(v).
+                double[][][] tables = new double[3][3][256];
+                for (int o = 0; o < 3; o++) {
+                    for (int c = 0; c < 3; c++) {
+                        double weight = op.matrix[o * 4 + c];
+                        for (int v = 0; v < 256; v++) {
+                            tables[o][c][v] = pending[c][v] * weight;
+                        }
+                    }
+                }
+                stageTables.add(tables);
+                stageOffsets.add(new double[] { op.matrix[3], op.matrix[7], op.matrix[11] });
+                pending = new int[][] { identity(), identity(), identity() };
+            }
+        }
+        return new Compiled(stageTables.toArray(new double[0][][][]), stageOffsets.toArray(new double[0][]),
+                pending);
+    }
+
+    /**
+     * The compiled form of a chain, shared read-only by all worker threads.
+     */
+    static final class Compiled {
+        private final double[][][][] tables;
+        private final double[][] offsets;
+        private final byte[] red;
+        private final byte[] green;
+        private final byte[] blue;
+
+        Compiled(double[][][][] tables, double[][] offsets, int[][] finalLut) {
+            this.tables = tables;
+            this.offsets = offsets;
+            this.red = toBytes(finalLut[0]);
+            this.green = toBytes(finalLut[1]);
+            this.blue = toBytes(finalLut[2]);
+        }
+
+        void applyRow(int[] row, int width) {
+            applyRow(row, 0, width);
+        }
+
+        /**
+         * Applies the chain to the pixels [from, to) of a row of ARGB values.
+         */
+        void applyRow(int[] row, int from, int to) {
+            for (int j = from; j < to; j++) {
+                int rgb = row[j];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+
+                for (int s = 0; s < tables.length; s++) {
+                    double[][][] t = tables[s];
+                    double[] off = offsets[s];
+                    int nr = clamp((int) (t[0][0][r] + t[0][1][g] + t[0][2][b] + off[0]));
+                    int ng = clamp((int) (t[1][0][r] + t[1][1][g] + t[1][2][b] + off[1]));
+                    int nb = clamp((int) (t[2][0][r] + t[2][1][g] + t[2][2][b] + off[2]));
+                    r = nr;
+                    g = ng;
+                    b = nb;
+                }
+
+                row[j] = (rgb & 0xFF000000) | ((red[r] & 0xFF) << 16) | ((green[g] & 0xFF) << 8) | (blue[b] & 0xFF);
+            }
+        }
+
+        private static int clamp(int value) {
+            return Math.max(0, Math.min(255, value));
+        }
+
+        private static byte[] toBytes(int[] lut) {
+            byte[] bytes = new byte[256];
+            for (int v = 0; v < 256; v++) {
+                bytes[v] = (byte) lut[v];
+            }
+            return bytes;
+        }
+    }
+
+    private static int[] identity() {
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = v;
+        }
+        return lut;
+    }
+
+    private static int[] checkLut(int[] lut) {
+        if (lut.length != 256) {
+            throw new IllegalArgumentException("a lookup table needs 256 entries, got " + lut.length);
+        }
+        for (int v : lut) {
+            if (v < 0 || v > 255) {
+                throw new IllegalArgumentException("lookup table value out of range: " + v);
+            }
+        }
+        return lut.clone();
+    }
+}
@@ -0,0 +1,382 @@
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Downscaling and resizing.
+ *
+ * {@link #halve} is the fast 2x box reduction that builds a pyramid: every
+ * output pixel is the mean of a 2x2 block. {@link #resize} is a separable
+ * resampler that filters the rows and then the columns. The weights of
+ * every output column (and row) are computed once per call in 2.14 fixed
+ * point, normalized so that they add up to exactly 1, so a flat area stays
+ * flat and an opaque image stays opaque even with the negative lobes of
+ * Lanczos.
+ *
+ * {@link #resizeAll} makes several sizes from one source: each target is
+ * resampled from the smallest pyramid level that is still at least as large,
+ * so the expensive filter never works on more than twice the target size,
+ * and the pyramid levels are shared between the targets.
+ *
+ * All four channels are filtered alike, as in {@link boxBlur}, and the
+ * output has the type the other filters produce for the input.
+ */
+public class resize {
+
+    /**
+     * Resampling filters.
+     */
+    public enum Filter {
+        /** Area average: the mean of the covered source pixels. */
+        BOX(0.5),
+        /** Linear interpolation, widened to a triangle when downscaling. */
+        BILINEAR(1),
+        /** Windowed sinc with three lobes: sharp, with slight ringing on hard edges. */
+        LANCZOS3(3);
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        double kernel(double x) {
+            switch (this) {
+                case BOX:
+                    return x > -0.5 && x <= 0.5 ? 1 : 0;
+                case BILINEAR:
+                    return Math.max(0, 1 - Math.abs(x));
+                default:
+                    return Math.abs(x) < 3 ? sinc(x) * sinc(x / 3) : 0;
+            }
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            double a = Math.PI * x;
+            return Math.sin(a) / a;
+        }
+    }
+
+    private static final int WEIGHT_BITS = 14;
+    private static final int ONE = 1 << WEIGHT_BITS;
+
+    private resize() {
+    }
+
+    /**
+     * The source pixels and fixed-point weights of every output pixel along one axis.
+     */
+    private static final class Weights {
+        final int[] first;
+        final int[] count;
+        final int[] weights;
+        final int stride;
+
+        Weights(int[] first, int[] count, int[] weights, int stride) {
+            this.first = first;
+            this.count = count;
+            this.weights = weights;
+            this.stride = stride;
+        }
+    }
+
+    /**
+     * Halves an image with a 2x2 box filter. An odd last row or column is
+     * averaged with itself.
+     *
+     * @param inputImg The input image.
+     * @return The image of ceil(width / 2) x ceil(height / 2) pixels.
+     */
+    public static BufferedImage halve(BufferedImage inputImg) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        int width = src.width;
+        int height = src.height;
+        int outWidth = (width + 1) / 2;
+        int outHeight = (height + 1) / 2;
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg, outWidth, outHeight);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        parallelExecutor.forEachBand(outHeight, width * 2, (from, to) -> {
+            int[] top = new int[width];
+            int[] bottom = new int[width];
+            int[] out = new int[outWidth];
+            for (int i = from; i < to; i++) {
+                src.readRow(2 * i, top);
+                src.readRow(Math.min(2 * i + 1, height - 1), bottom);
+                for (int j = 0; j < outWidth; j++) {
+                    int x0 = 2 * j;
+                    int x1 = Math.min(x0 + 1, width - 1);
+                    int a = top[x0];
+                    int b = top[x1];
+                    int c = bottom[x0];
+                    int d = bottom[x1];
+                    int argb = 0;
+                    for (int shift = 0; shift <= 24; shift += 8) {
+                        int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF)
+                                + ((d >>> shift) & 0xFF);
+                        argb |= ((sum + 2) >> 2) << shift;
+                    }
+                    out[j] = argb;
+                }
+                sink.writeRow(i, out);
+            }
+        });
+        return outputImg;
+    }
+
+    /**
+     * Builds a pyramid by halving until the next level would have a side
+     * shorter than the given size.
+     *
+     * @param inputImg The input image, which is the first level.
+     * @param minSize  The smallest width and height of any level, at least 1.
+     * @return The levels, from the input down.
+     */
+    public static List<BufferedImage> pyramid(BufferedImage inputImg, int minSize) {
+        if (minSize < 1) {
+            throw new IllegalArgumentException("minSize must be positive: " + minSize);
+        }
+        List<BufferedImage> levels = new ArrayList<>();
+        BufferedImage level = inputImg;
+        levels.add(level);
+        while ((level.getWidth() + 1) / 2 >= minSize && (level.getHeight() + 1) / 2 >= minSize
+                && (level.getWidth() > 1 || level.getHeight() > 1)) {
+            level = halve(level);
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    /**
+     * Resizes an image with a separable filter.
+     *
+     * @param inputImg  The input image.
+     * @param outWidth  The output width.
+     * @param outHeight The output height.
+     * @param filter    The resampling filter.
+     * @return The resized image.
+     */
+    public static BufferedImage resize(BufferedImage inputImg, int outWidth, int outHeight, Filter filter) {
+        if (outWidth < 1 || outHeight < 1) {
+            throw new IllegalArgumentException("the output size must be positive: " + outWidth + "x" + outHeight);
+        }
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        int width = src.width;
+        int height = src.height;
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg, outWidth, outHeight);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Filter the rows into an outWidth x height buffer, unless the width stays.
+        int[] rows = new int[outWidth * height];
+        if (outWidth == width) {
+            parallelExecutor.forEachBand(height, width, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    src.readRow(0, i, width, rows, i * width);
+                }
+            });
+        } else {
+            Weights columns = weights(width, outWidth, filter);
+            parallelExecutor.forEachBand(height, width + outWidth * columns.stride, (from, to) -> {
+                int[] row = new int[width];
+                for (int i = from; i < to; i++) {
+                    src.readRow(i, row);
+                    filterRow(row, columns, rows, i * outWidth, outWidth);
+                }
+            });
+        }
+
+        // Then filter the columns of that buffer, one output row at a time.
+        Weights lines = outHeight == height ? null : weights(height, outHeight, filter);
+        parallelExecutor.forEachBand(outHeight, outWidth * (lines == null ? 1 : lines.stride), (from, to) -> {
+            int[] out = new int[outWidth];
+            int[][] sums = new int[4][outWidth];
+            for (int i = from; i < to; i++) {
+                if (lines == null) {
+                    sink.writeRow(0, i, outWidth, rows, i * outWidth);
+                    continue;
+                }
+                for (int[] sum : sums) {
+                    Arrays.fill(sum, ONE / 2);
+                }
+                int first = lines.first[i];
+                for (int k = 0; k < lines.count[i]; k++) {
+                    int w = lines.weights[i * lines.stride + k];
+                    int o = (first + k) * outWidth;
+                    for (int j = 0; j < outWidth; j++) {
+                        int argb = rows[o + j];
+                        sums[0][j] += (argb & 0xFF) * w;
+                        sums[1][j] += ((argb >> 8) & 0xFF) * w;
+                        sums[2][j] += ((argb >> 16) & 0xFF) * w;
+                        sums[3][j] += (argb >>> 24) * w;
+                    }
+                }
+                for (int j = 0; j < outWidth; j++) {
+                    out[j] = (clamp(sums[3][j]) << 24) | (clamp(sums[2][j]) << 16) | (clamp(sums[1][j]) << 8)
+                            | clamp(sums[0][j]);
+                }
+                sink.writeRow(i, out);
+            }
+        });
+        return outputImg;
+    }
+
+    /**
+     * Makes several sizes of one image, each resampled from the smallest
+     * level of a shared pyramid that is at least as large as the target.
+     *
+     * @param inputImg The input image.
+     * @param sizes    The output sizes, in any order.
+     * @param filter   The filter of the final resampling.
+     * @return The images, in the order of the sizes.
+     */
+    public static BufferedImage[] resizeAll(BufferedImage inputImg, Dimension[] sizes, Filter filter) {
+        List<BufferedImage> levels = new ArrayList<>();
+        levels.add(inputImg);
+        BufferedImage[] outputs = new BufferedImage[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            int targetWidth = sizes[s].width;
+            int targetHeight = sizes[s].height;
+
+            // Halve further while the next level is still large enough for this target.
+            BufferedImage deepest = levels.get(levels.size() - 1);
+            while ((deepest.getWidth() + 1) / 2 >= targetWidth && (deepest.getHeight() + 1) / 2 >= targetHeight
+                    && (deepest.getWidth() > 1 || deepest.getHeight() > 1)) {
+                deepest = halve(deepest);
+                levels.add(deepest);
+            }
+
+            // The smallest level that covers the target.
+            BufferedImage level = inputImg;
+            for (BufferedImage candidate : levels) {
+                if (candidate.getWidth() >= targetWidth && candidate.getHeight() >= targetHeight) {
+                    level = candidate;
+                }
+            }
+            outputs[s] = resize(level, targetWidth, targetHeight, filter);
+        }
+
+        // The levels made here are not returned, so they can go back to the pool.
+        imagePool pool = imagePool.current();
+        if (pool != null) {
+            for (int l = 1; l < levels.size(); l++) {
+                pool.release(levels.get(l));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Returns the size that fits an image within a square, keeping its
+     * aspect ratio. Images that already fit keep their size.
+     *
+     * @param width   The image width.
+     * @param height  The image height.
+     * @param maxSize The longest side allowed.
+     * @return The fitted size, at least 1x1.
+     */
+    public static Dimension fit(int width, int height, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        if (width <= maxSize && height <= maxSize) {
+            return new Dimension(width, height);
+        }
+        double scale = (double) maxSize / Math.max(width, height);
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale)));
+    }
+
+    private static void filterRow(int[] row, Weights columns, int[] out, int offset, int outWidth) {
+        for (int j = 0; j < outWidth; j++) {
+            int b = ONE / 2;
+            int g = ONE / 2;
+            int r = ONE / 2;
+            int a = ONE / 2;
+            int first = columns.first[j];
+            int w = j * columns.stride;
+            for (int k = 0; k < columns.count[j]; k++) {
+                int argb = row[first + k];
+                int weight = columns.weights[w + k];
+                b += (argb & 0xFF) * weight;
+                g += ((argb >> 8) & 0xFF) * weight;
+                r += ((argb >> 16) & 0xFF) * weight;
+                a += (argb >>> 24) * weight;
+            }
+            out[offset + j] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+        }
+    }
+
+    private static int clamp(int sum) {
+        int value = sum >> WEIGHT_BITS;
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * Computes the weights of every output pixel along an axis. Output pixel
+     * i covers [i, i + 1) * scale in the input, and the filter is stretched
+     * by the scale when downscaling so that every input pixel contributes.
+     */
+    private static Weights weights(int inSize, int outSize, Filter filter) {
+        double scale = (double) inSize / outSize;
+        double stretch = Math.max(1, scale);
+        double support = filter.support * stretch;
+        int stride = (int) Math.ceil(support * 2) + 2;
+
+        int[] first = new int[outSize];
+        int[] count = new int[outSize];
+        int[] weights = new int[outSize * stride];
+        double[] raw = new double[stride];
+        for (int i = 0; i < outSize; i++) {
+            double center = (i + 0.5) * scale;
+            int left = Math.max(0, (int) Math.floor(center - support));
+            int right = Math.min(inSize, (int) Math.ceil(center + support));
+            int n = Math.min(stride, right - left);
+
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                raw[k] = filter.kernel((left + k + 0.5 - center) / stretch);
+                total += raw[k];
+            }
+            if (total == 0) {
+                // Upscaling with a box can fall between samples: take the nearest one.
+                left = Math.min(inSize - 1, (int) center);
+                n = 1;
+                raw[0] = total = 1;
+            }
+
+            // Round to fixed point and give the rounding error to the largest weight.
+            int sum = 0;
+            int largest = 0;
+            for (int k = 0; k < n; k++) {
+                int w = (int) Math.round(raw[k] / total * ONE);
+                weights[i * stride + k] = w;
+                sum += w;
+                if (Math.abs(w) > Math.abs(weights[i * stride + largest])) {
+                    largest = k;
+                }
+            }
+            weights[i * stride + largest] += ONE - sum;
+
+            // Drop zero weights at both ends.
+            int start = 0;
+            while (start < n - 1 && weights[i * stride + start] == 0) {
+                start++;
+            }
+            int end = n;
+            while (end > start + 1 && weights[i * stride + end - 1] == 0) {
+                end--;
+            }
+            if (start > 0) {
+                System.arraycopy(weights, i * stride + start, weights, i * stride, end - start);
+            }
+            first[i] = left + start;
+            count[i] = end - start;
+        }
+        return new Weights(first, count, weights, stride);
+    }
+}
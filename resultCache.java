@@ -0,0 +1,473 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Cache of processed images, keyed by the content of the source image and
+ * the normalized operation chain.
+ *
+ * Results live in a least-recently-used memory tier bounded by the bytes of
+ * their pixel data. With a disk directory, final results are also written
+ * there as PNG, and intermediate results are spilled there when they are
+ * evicted from memory; the disk tier has its own byte budget and survives
+ * restarts. A disk hit is promoted back into memory.
+ *
+ * Besides the final result of a chain, the cache keeps the result after
+ * every step boundary (runs that opChain fuses into one pass, such as point
+ * operations or mirrors and rotations, count as one step), so
+ * "sepia,blur:2,pixelate:8" can start from the cached result of
+ * "sepia,blur:2". Cached and uncached chains give the same pixels;
+ * cacheCheck compares them.
+ *
+ * Images handed out by the cache are shared with it and must not be modified.
+ * Images reloaded from disk have the same pixels but may have a different
+ * BufferedImage type.
+ */
+public class resultCache {
+
+    private final long maxMemoryBytes;
+    private final Path diskDir;
+    private final long maxDiskBytes;
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, BufferedImage> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    // File name to size, also access-ordered; guarded by the same lock as memory.
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong prefixHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cached result for the first steps of a chain.
+     */
+    public static final class Entry {
+        final int steps;
+        final BufferedImage image;
+
+        Entry(int steps, BufferedImage image) {
+            this.steps = steps;
+            this.image = image;
+        }
+
+        /**
+         * Returns how many steps of the chain the image already has applied.
+         *
+         * @return The length of the cached prefix.
+         */
+        public int getSteps() {
+            return steps;
+        }
+
+        /**
+         * Returns the cached image.
+         *
+         * @return The image, which must not be modified.
+         */
+        public BufferedImage getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * Creates a memory-only cache.
+     *
+     * @param maxMemoryBytes The most pixel bytes to keep in memory.
+     */
+    public resultCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Creates a cache with a disk tier.
+     *
+     * @param maxMemoryBytes The most pixel bytes to keep in memory.
+     * @param diskDir        The directory of the disk tier, or null for none.
+     * @param maxDiskBytes   The most file bytes to keep on disk.
+     * @throws UncheckedIOException If the directory cannot be created or listed.
+     */
+    public resultCache(long maxMemoryBytes, Path diskDir, long maxDiskBytes) {
+        if (maxMemoryBytes < 0 || maxDiskBytes < 0) {
+            throw new IllegalArgumentException("cache sizes must not be negative");
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskDir = diskDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDir != null) {
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * Hashes the bytes of an image file, so that a cached result can be found
+     * without decoding the file.
+     *
+     * @param file The image file.
+     * @return The source key.
+     * @throws IOException If the file cannot be read.
+     */
+    public static String sourceKey(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return "file:" + hex(digest.digest());
+    }
+
+    /**
+     * Hashes the dimensions and pixels of an image.
+     *
+     * @param img The image.
+     * @return The source key.
+     */
+    public static String sourceKey(BufferedImage img) {
+        MessageDigest digest = sha256();
+        pixelEngine.Source src = new pixelEngine.Source(img);
+        ByteBuffer bytes = ByteBuffer.allocate(Math.max(8, src.width * 4));
+        bytes.putInt(src.width).putInt(src.height).flip();
+        digest.update(bytes);
+        int[] row = new int[src.width];
+        for (int i = 0; i < src.height; i++) {
+            src.readRow(i, row);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array(), 0, src.width * 4);
+        }
+        return "pixels:" + hex(digest.digest());
+    }
+
+    /**
+     * Applies a chain to an image, reusing the longest cached prefix.
+     *
+     * @param img   The source image.
+     * @param chain The chain to apply.
+     * @return The result, which must not be modified.
+     */
+    public BufferedImage apply(BufferedImage img, opChain chain) {
+        return apply(sourceKey(img), img, chain);
+    }
+
+    /**
+     * Applies a chain to a source whose key is known, reusing the longest
+     * cached prefix.
+     *
+     * @param sourceKey The key of the source, from {@link #sourceKey}.
+     * @param img       The source image.
+     * @param chain     The chain to apply.
+     * @return The result, which must not be modified.
+     */
+    public BufferedImage apply(String sourceKey, BufferedImage img, opChain chain) {
+        Entry cached = lookup(sourceKey, chain);
+        return cached == null ? finish(sourceKey, chain, new Entry(0, img))
+                : finish(sourceKey, chain, cached);
+    }
+
+    /**
+     * Finds the longest prefix of a chain whose result is cached, and counts
+     * the lookup as a hit, a prefix hit or a miss.
+     *
+     * @param sourceKey The key of the source.
+     * @param chain     The chain.
+     * @return The cached prefix, or null if none is cached.
+     */
+    public Entry lookup(String sourceKey, opChain chain) {
+        List<Integer> boundaries = boundaries(chain);
+        for (int b = boundaries.size() - 1; b >= 0; b--) {
+            int steps = boundaries.get(b);
+            BufferedImage img = get(key(sourceKey, chain.prefix(steps)));
+            if (img != null) {
+                (steps == chain.getSteps().size() ? hits : prefixHits).incrementAndGet();
+                return new Entry(steps, img);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Applies the steps of a chain that come after a cached prefix, caching the
+     * result after every step boundary.
+     *
+     * @param sourceKey The key of the source.
+     * @param chain     The chain.
+     * @param start     The prefix already applied; (0, source image) for none.
+     * @return The result of the whole chain, which must not be modified.
+     */
+    public BufferedImage finish(String sourceKey, opChain chain, Entry start) {
+        List<opChain.Step> steps = chain.getSteps();
+        BufferedImage img = start.image;
+        int done = start.steps;
+        for (int end : boundaries(chain)) {
+            if (end <= done) {
+                continue;
+            }
+            img = opChain.applySteps(img, steps.subList(done, end));
+            done = end;
+            put(key(sourceKey, chain.prefix(end)), img, end == steps.size());
+        }
+        return img;
+    }
+
+    /**
+     * Step counts after which an intermediate result can be cached: the end of
+     * every run that opChain applies in one pass, so that a cached chain goes
+     * through the same fused point operations and composed transforms, and
+     * gives the same pixels, as an uncached one.
+     */
+    private static List<Integer> boundaries(opChain chain) {
+        List<opChain.Step> steps = chain.getSteps();
+        List<Integer> boundaries = new ArrayList<>();
+        for (int i = 0; i < steps.size(); i = boundaries.get(boundaries.size() - 1)) {
+            boundaries.add(opChain.runEnd(steps, i));
+        }
+        return boundaries;
+    }
+
+    private static String key(String sourceKey, opChain prefix) {
+        return sourceKey + "|" + prefix;
+    }
+
+    private BufferedImage get(String key) {
+        synchronized (this) {
+            BufferedImage img = memory.get(key);
+            if (img != null) {
+                return img;
+            }
+            if (diskDir == null || disk.get(fileName(key)) == null) {
+                return null;
+            }
+        }
+
+        // Decode outside the lock; another thread may have evicted the file meanwhile.
+        try {
+            BufferedImage img = ImageIO.read(diskDir.resolve(fileName(key)).toFile());
+            if (img == null) {
+                return null;
+            }
+            diskHits.incrementAndGet();
+            put(key, img, false);
+            return img;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void put(String key, BufferedImage img, boolean persist) {
+        long size = sizeOf(img);
+        List<Map.Entry<String, BufferedImage>> spilled = new ArrayList<>();
+        synchronized (this) {
+            if (size <= maxMemoryBytes) {
+                BufferedImage old = memory.put(key, img);
+                if (old != null) {
+                    memoryBytes -= sizeOf(old);
+                }
+                memoryBytes += size;
+
+                // Evict the least recently used entries until the new one fits.
+                Iterator<Map.Entry<String, BufferedImage>> it = memory.entrySet().iterator();
+                while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                    Map.Entry<String, BufferedImage> eldest = it.next();
+                    if (eldest.getKey().equals(key)) {
+                        continue;
+                    }
+                    it.remove();
+                    memoryBytes -= sizeOf(eldest.getValue());
+                    evictions.incrementAndGet();
+                    spilled.add(eldest);
+                }
+            } else if (!persist) {
+                return;
+            }
+        }
+
+        // Disk writes happen outside the lock.
+        if (diskDir != null) {
+            if (persist) {
+                writeToDisk(key, img);
+            }
+            for (Map.Entry<String, BufferedImage> e : spilled) {
+                writeToDisk(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void writeToDisk(String key, BufferedImage img) {
+        String name = fileName(key);
+        synchronized (this) {
+            if (disk.get(name) != null) {
+                return;
+            }
+        }
+        Path file = diskDir.resolve(name);
+        try {
+            // Write to a temporary name first so readers never see half a file.
+            Path tmp = Files.createTempFile(diskDir, "tmp", ".part");
+            if (!ImageIO.write(img, "png", tmp.toFile())) {
+                Files.deleteIfExists(tmp);
+                return;
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            long size = Files.size(file);
+            List<String> deleted = new ArrayList<>();
+            synchronized (this) {
+                disk.put(name, size);
+                diskBytes += size;
+                Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+                while (diskBytes > maxDiskBytes && it.hasNext()) {
+                    Map.Entry<String, Long> eldest = it.next();
+                    it.remove();
+                    diskBytes -= eldest.getValue();
+                    evictions.incrementAndGet();
+                    deleted.add(eldest.getKey());
+                }
+            }
+            for (String d : deleted) {
+                Files.deleteIfExists(diskDir.resolve(d));
+            }
+        } catch (IOException e) {
+            // The disk tier is best effort; the result is still in memory or recomputed.
+        }
+    }
+
+    private void loadDiskIndex() {
+        try {
+            Files.createDirectories(diskDir);
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> list = Files.list(diskDir)) {
+                list.filter(p -> p.getFileName().toString().endsWith(".png")).forEach(files::add);
+            }
+            // Oldest first, so they are evicted first.
+            files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+            for (Path p : files) {
+                long size = Files.size(p);
+                disk.put(p.getFileName().toString(), size);
+                diskBytes += size;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String fileName(String key) {
+        return hex(sha256().digest(key.getBytes(StandardCharsets.UTF_8))) + ".png";
+    }
+
+    /**
+     * Bytes of pixel data held by an image.
+     */
+    static long sizeOf(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType())
+                / 8;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns how many lookups found the result of the whole chain.
+     *
+     * @return The number of full hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns how many lookups found only the result of a prefix of the chain.
+     *
+     * @return The number of prefix hits.
+     */
+    public long getPrefixHits() {
+        return prefixHits.get();
+    }
+
+    /**
+     * Returns how many cached results were read back from the disk tier.
+     *
+     * @return The number of disk reads.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns how many lookups found nothing.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns how many entries were evicted from either tier.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the bytes of pixel data held in memory.
+     *
+     * @return The memory tier size.
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Returns the counters in one line, e.g. for a summary.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "cache: %d hits, %d prefix hits, %d misses, %d disk reads, %d evictions, %.1f MB in memory"
+                        + " (%d entries), %.1f MB on disk (%d files)",
+                hits.get(), prefixHits.get(), misses.get(), diskHits.get(), evictions.get(), memoryBytes / 1e6,
+                memory.size(), diskBytes / 1e6, disk.size());
+    }
+}
@@ -0,0 +1,336 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Rotation of images by any angle.
+ *
+ * Angles use the same convention as {@link imageEditor#rotate}: output pixel
+ * (j, i) takes the input pixel at (a * cos - b * sin + x0, a * sin + b * cos + y0),
+ * where (a, b) is its offset from the center of the output.
+ *
+ * Multiples of 90 degrees are exact: they are done by cache-blocked transposes
+ * and flips that lose no pixels and, when the canvas is expanded, swap the
+ * width and height. Other angles work out the source position of each pixel
+ * of an output row from its column, only visiting the part of the row that
+ * maps inside the input, and sample either the nearest pixel or a bilinear
+ * blend of four. Positions are nudged by {@link #BIAS} before they are
+ * truncated, so that a position that is exactly on a pixel in exact
+ * arithmetic does not fall back to the pixel before it when the rounding of
+ * sin and cos leaves it a hair short. {@link rotationCheck} compares the
+ * result with the per-pixel formula worked out in exact arithmetic.
+ */
+public class rotation {
+
+    /**
+     * How a source pixel is picked for a non-integer source position.
+     */
+    public enum Sampling {
+        /** The pixel the position falls in, as imageEditor.rotate does. */
+        NEAREST,
+        /** A weighted blend of the four pixels around the position. */
+        BILINEAR
+    }
+
+    // Tile size of the blocked transpose; a tile of ints fits comfortably in L1.
+    private static final int TILE = 64;
+
+    // Far above the rounding error of a position, far below the gap between positions that are not whole.
+    static final double BIAS = 1e-9;
+
+    private rotation() {
+    }
+
+    /**
+     * Rotates an image.
+     *
+     * @param inputImg     The input image.
+     * @param angle        The angle in degrees, positive in the direction of
+     *                     {@link imageEditor#rotate}.
+     * @param sampling     How source pixels are sampled for angles that are not
+     *                     multiples of 90 degrees.
+     * @param expandCanvas Whether to grow the output to hold the whole rotated
+     *                     image instead of keeping the input dimensions.
+     * @return The rotated image, with the output type of the other filters;
+     *         uncovered areas are black, or transparent if the image has alpha.
+     */
+    public static BufferedImage rotate(BufferedImage inputImg, double angle, Sampling sampling,
+            boolean expandCanvas) {
+        if (Double.isNaN(angle) || Double.isInfinite(angle)) {
+            throw new IllegalArgumentException("angle must be finite: " + angle);
+        }
+        int width = inputImg.getWidth();
+        int height = inputImg.getHeight();
+
+        // Multiples of 90 degrees go through the exact paths when the output size allows it.
+        double normalized = ((angle % 360) + 360) % 360;
+        if (normalized % 90 == 0) {
+            int quarterTurns = (int) (normalized / 90);
+            if (quarterTurns % 2 == 0 || expandCanvas || width == height) {
+                return rotateQuarterTurns(inputImg, quarterTurns);
+            }
+        }
+        return rotateAnyAngle(inputImg, normalized, sampling, expandCanvas);
+    }
+
+    /**
+     * Rotates an image by a multiple of 90 degrees without resampling. For odd
+     * quarter turns the output has the width and height of the input swapped.
+     *
+     * @param inputImg     The input image.
+     * @param quarterTurns The number of 90 degree turns, in the direction of
+     *                     {@link imageEditor#rotate}.
+     * @return The rotated image, with the output type of the other filters.
+     */
+    public static BufferedImage rotateQuarterTurns(BufferedImage inputImg, int quarterTurns) {
+        int turns = ((quarterTurns % 4) + 4) % 4;
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        int width = src.width;
+        int height = src.height;
+
+        if (turns == 0 || turns == 2) {
+            BufferedImage outputImg = pixelEngine.newOutputImage(inputImg);
+            pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+            parallelExecutor.forEachBand(height, width, (from, to) -> {
+                int[] row = new int[width];
+                for (int i = from; i < to; i++) {
+                    if (turns == 0) {
+                        src.readRow(i, row);
+                    } else {
+                        // Half turn: output row i is input row h - 1 - i read back to front.
+                        src.readRow(height - 1 - i, row);
+                        for (int j = 0, k = width - 1; j < k; j++, k--) {
+                            int argb = row[j];
+                            row[j] = row[k];
+                            row[k] = argb;
+                        }
+                    }
+                    sink.writeRow(i, row);
+                }
+            });
+            return outputImg;
+        }
+
+        // Quarter turns: the output is height x width, transposed tile by tile so that
+        // both the reads and the writes stay within a few cache lines.
+        int outWidth = height;
+        int outHeight = width;
+        BufferedImage outputImg = pixelEngine.newOutputImage(inputImg, outWidth, outHeight);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        parallelExecutor.forEachBand(outHeight, outWidth, TILE, (from, to) -> {
+            int[] tile = new int[TILE * TILE];
+            int[] run = new int[TILE];
+            for (int tileTop = from; tileTop < to; tileTop += TILE) {
+                int tileRows = Math.min(TILE, to - tileTop);
+                for (int tileLeft = 0; tileLeft < outWidth; tileLeft += TILE) {
+                    int tileColumns = Math.min(TILE, outWidth - tileLeft);
+
+                    // Output rows [tileTop, tileTop + tileRows) map to input columns and output
+                    // columns [tileLeft, tileLeft + tileColumns) map to input rows.
+                    int sourceX = turns == 1 ? width - tileTop - tileRows : tileTop;
+                    int sourceY = turns == 1 ? tileLeft : height - tileLeft - tileColumns;
+                    for (int k = 0; k < tileColumns; k++) {
+                        src.readRow(sourceX, sourceY + k, tileRows, tile, k * TILE);
+                    }
+
+                    for (int r = 0; r < tileRows; r++) {
+                        // Column of the tile buffer that holds output row tileTop + r.
+                        int column = turns == 1 ? tileRows - 1 - r : r;
+                        for (int c = 0; c < tileColumns; c++) {
+                            int k = turns == 1 ? c : tileColumns - 1 - c;
+                            run[c] = tile[k * TILE + column];
+                        }
+                        sink.writeRow(tileLeft, tileTop + r, tileColumns, run, 0);
+                    }
+                }
+            }
+        });
+        return outputImg;
+    }
+
+    /**
+     * Rotates by an arbitrary angle, working out each source position from its output column.
+     */
+    private static BufferedImage rotateAnyAngle(BufferedImage inputImg, double degrees, Sampling sampling,
+            boolean expandCanvas) {
+        pixelEngine.Source src = new pixelEngine.Source(inputImg);
+        int width = src.width;
+        int height = src.height;
+
+        double radians = Math.toRadians(degrees);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+
+        // Use exact values at the quarter turns so that no row or column is lost to rounding.
+        if (degrees % 90 == 0) {
+            int turns = (int) (degrees / 90);
+            sin = turns == 1 ? 1 : turns == 3 ? -1 : 0;
+            cos = turns == 0 ? 1 : turns == 2 ? -1 : 0;
+        }
+
+        int outWidth = width;
+        int outHeight = height;
+        if (expandCanvas) {
+            outWidth = Math.max(1, (int) Math.ceil(Math.abs(width * cos) + Math.abs(height * sin) - 1e-9));
+            outHeight = Math.max(1, (int) Math.ceil(Math.abs(width * sin) + Math.abs(height * cos) - 1e-9));
+        }
+
+        // Pixels outside the rotated input are never written, so they must start out blank.
+        BufferedImage outputImg = pixelEngine.newClearedOutputImage(inputImg, outWidth, outHeight);
+        pixelEngine.Sink sink = new pixelEngine.Sink(outputImg);
+
+        // Centers of rotation in the input and in the output.
+        double x0 = 0.5 * (width - 1);
+        double y0 = 0.5 * (height - 1);
+        double outX0 = 0.5 * (outWidth - 1);
+        double outY0 = 0.5 * (outHeight - 1);
+
+        double[] m = { cos, -sin, sin, cos };
+        int rowPixels = outWidth;
+        boolean bilinear = sampling == Sampling.BILINEAR;
+
+        parallelExecutor.forEachBand(outHeight, outWidth, (from, to) -> {
+            int[] row = new int[rowPixels];
+            int[] span = new int[2];
+            for (int i = from; i < to; i++) {
+                // Only visit the columns whose source position is inside the input.
+                double b = i - outY0;
+                span(m, b, outX0, x0, y0, width, height, rowPixels, span);
+                for (int j = span[0]; j <= span[1]; j++) {
+                    double a = j - outX0;
+                    double sx = position(a, b, m[0], m[1], x0);
+                    double sy = position(a, b, m[2], m[3], y0);
+                    row[j] = bilinear ? bilinear(src, sx, sy) : src.rgb(index(sx), index(sy));
+                }
+                if (span[0] <= span[1]) {
+                    sink.writeRow(span[0], i, span[1] - span[0] + 1, row, span[0]);
+                }
+            }
+        });
+        return outputImg;
+    }
+
+    /**
+     * One coordinate of the source position of an output pixel, nudged by
+     * {@link #BIAS}.
+     *
+     * @param a      The column offset of the output pixel from the output center.
+     * @param b      The row offset of the output pixel from the output center.
+     * @param ma     The factor of a in the map.
+     * @param mb     The factor of b in the map.
+     * @param center The input center on this axis.
+     * @return The coordinate, in pixels.
+     */
+    static double position(double a, double b, double ma, double mb, double center) {
+        return a * ma + b * mb + center + BIAS;
+    }
+
+    /**
+     * Whether a position falls in a pixel of a line of the given length.
+     * Positions in (-1, 0) count as pixel 0, as truncation did in
+     * imageEditor.rotate.
+     */
+    static boolean inside(double position, int length) {
+        return position > -1 && position < length;
+    }
+
+    /**
+     * Pixel index of an inside position, truncated towards zero.
+     */
+    static int index(double position) {
+        return position < 0 ? 0 : (int) position;
+    }
+
+    /**
+     * Finds the columns of an output row whose source position under a map
+     * falls inside the input.
+     *
+     * @param m       The map, as {x per a, x per b, y per a, y per b}.
+     * @param b       The row offset from the output center.
+     * @param outX0   The column of the output center.
+     * @param x0      The column of the input center.
+     * @param y0      The row of the input center.
+     * @param width   The input width.
+     * @param height  The input height.
+     * @param columns The output width.
+     * @param span    Receives the first and last column; empty when first > last.
+     */
+    static void span(double[] m, double b, double outX0, double x0, double y0, int width, int height, int columns,
+            int[] span) {
+        // Estimate the ends from the position of column 0 and the step per column, then settle them exactly.
+        double x = position(-outX0, b, m[0], m[1], x0);
+        double y = position(-outX0, b, m[2], m[3], y0);
+        int first = Math.max(firstInside(x, m[0], width), firstInside(y, m[2], height));
+        int last = Math.min(columns - 1, Math.min(lastInside(x, m[0], width, columns), lastInside(y, m[2], height,
+                columns)));
+        while (first <= last && !inside(m, first, b, outX0, x0, y0, width, height)) {
+            first++;
+        }
+        while (last >= first && !inside(m, last, b, outX0, x0, y0, width, height)) {
+            last--;
+        }
+        span[0] = first;
+        span[1] = last;
+    }
+
+    /**
+     * Whether the source position of column j is inside the input.
+     */
+    private static boolean inside(double[] m, int j, double b, double outX0, double x0, double y0, int width,
+            int height) {
+        double a = j - outX0;
+        return inside(position(a, b, m[0], m[1], x0), width) && inside(position(a, b, m[2], m[3], y0), height);
+    }
+
+    /**
+     * Estimates the first step at which start + j * step is inside [0, length).
+     */
+    private static int firstInside(double start, double step, int length) {
+        if (step == 0) {
+            return inside(start, length) ? 0 : Integer.MAX_VALUE;
+        }
+        double bound = (step > 0 ? -1 - start : length - start) / step;
+        // Step back one to absorb rounding; the caller moves forward to the exact column.
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, Math.floor(bound) - 1));
+    }
+
+    /**
+     * Estimates the last step at which start + j * step is inside [0, length).
+     */
+    private static int lastInside(double start, double step, int length, int steps) {
+        if (step == 0) {
+            return inside(start, length) ? steps - 1 : -1;
+        }
+        double bound = (step > 0 ? length - start : -1 - start) / step;
+        return (int) Math.min(steps - 1, Math.max(-1, Math.ceil(bound) + 1));
+    }
+
+    /**
+     * Blends the four pixels around a position. Positions put the center of
+     * pixel k at k, as the identity maps output pixel j to input pixel j;
+     * positions past the outer centers take the edge pixels.
+     */
+    private static int bilinear(pixelEngine.Source src, double sx, double sy) {
+        double u = Math.max(0, Math.min(sx, src.width - 1));
+        double v = Math.max(0, Math.min(sy, src.height - 1));
+        int x = (int) u;
+        int y = (int) v;
+        int fx = (int) ((u - x) * 256);
+        int fy = (int) ((v - y) * 256);
+        int x1 = Math.min(x + 1, src.width - 1);
+        int y1 = Math.min(y + 1, src.height - 1);
+
+        int p00 = src.rgb(x, y);
+        int p01 = src.rgb(x1, y);
+        int p10 = src.rgb(x, y1);
+        int p11 = src.rgb(x1, y1);
+
+        int result = 0;
+        for (int shift = 0; shift <= 24; shift += 8) {
+            int top = ((p00 >> shift) & 0xFF) * (256 - fx) + ((p01 >> shift) & 0xFF) * fx;
+            int bottom = ((p10 >> shift) & 0xFF) * (256 - fx) + ((p11 >> shift) & 0xFF) * fx;
+            int value = (top * (256 - fy) + bottom * fy + (1 << 15)) >> 16;
+            result |= value << shift;
+        }
+        return result;
+    }
+}
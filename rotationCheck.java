@@ -0,0 +1,131 @@
+import java.awt.image.BufferedImage;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+/**
+ * Checks that {@link imageEditor#rotate} and
+ * {@link imageEditor#rotateCounterclockwise} pick the pixels of the
+ * per-pixel formula in the {@link rotation} doc, worked out in exact
+ * arithmetic.
+ *
+ * Each output pixel (j, i) must be the input pixel at
+ * (a * cos - b * sin + x0, a * sin + b * cos + y0) plus {@link rotation#BIAS},
+ * truncated, or blank when that falls outside the input. The positions are
+ * computed with BigDecimal from the same double sin and cos, so a position
+ * that is exactly on a pixel must read that pixel and not the one before,
+ * e.g. the center pixel of an image with odd sides must map to itself.
+ *
+ * <pre>
+ * java -cp out rotationCheck
+ * </pre>
+ *
+ * Exits with status 1 when any rotation differs.
+ */
+final class rotationCheck {
+
+    // Angles that land many positions exactly on pixels, and a few that land none.
+    private static final double[] ANGLES = { -45, 45, 30, -60, 89.9, 90, 135, 1, -1, 0.5, 179.99, 270, 333.3 };
+
+    private static final int[][] SIZES = { { 301, 157 }, { 157, 301 }, { 64, 64 }, { 37, 23 }, { 1, 9 }, { 2, 2 } };
+
+    // Random angles on top of the fixed ones.
+    private static final int RANDOM_ANGLES = 8;
+
+    private rotationCheck() {
+    }
+
+    /**
+     * Runs the comparison and prints every rotation that differs.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        double[] angles = new double[ANGLES.length + RANDOM_ANGLES];
+        System.arraycopy(ANGLES, 0, angles, 0, ANGLES.length);
+        for (int k = ANGLES.length; k < angles.length; k++) {
+            angles[k] = random.nextDouble() * 720 - 360;
+        }
+
+        int checked = 0;
+        int failed = 0;
+        for (int[] size : SIZES) {
+            BufferedImage img = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    img.setRGB(x, y, random.nextInt());
+                }
+            }
+            for (double angle : angles) {
+                // Clockwise, and the same turn the other way round.
+                String where = size[0] + "x" + size[1] + " rotate:" + angle;
+                checked++;
+                long diff = differences(img, angle, imageEditor.rotate(img, angle));
+                checked++;
+                long ccwDiff = differences(img, -angle, imageEditor.rotateCounterclockwise(img, angle));
+                if (diff != 0 || ccwDiff != 0) {
+                    failed++;
+                    System.out.println(where + ": " + diff + " pixels differ, " + ccwDiff + " counterclockwise");
+                }
+            }
+        }
+        System.out.println(checked + " rotations checked, " + failed + " differ");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Counts the pixels of a rotated image that differ from the exact formula.
+     */
+    private static long differences(BufferedImage img, double angle, BufferedImage rotated) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        if (rotated.getWidth() != width || rotated.getHeight() != height) {
+            return (long) width * height;
+        }
+
+        // The sin and cos rotation uses, exact at the quarter turns.
+        double degrees = ((angle % 360) + 360) % 360;
+        double radians = Math.toRadians(degrees);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+        if (degrees % 90 == 0) {
+            int turns = (int) (degrees / 90);
+            sin = turns == 1 ? 1 : turns == 3 ? -1 : 0;
+            cos = turns == 0 ? 1 : turns == 2 ? -1 : 0;
+        }
+        BigDecimal s = new BigDecimal(sin);
+        BigDecimal c = new BigDecimal(cos);
+        BigDecimal x0 = BigDecimal.valueOf(width - 1).divide(BigDecimal.valueOf(2));
+        BigDecimal y0 = BigDecimal.valueOf(height - 1).divide(BigDecimal.valueOf(2));
+        BigDecimal bias = new BigDecimal(rotation.BIAS);
+
+        long count = 0;
+        for (int i = 0; i < height; i++) {
+            BigDecimal b = BigDecimal.valueOf(i).subtract(y0);
+            for (int j = 0; j < width; j++) {
+                BigDecimal a = BigDecimal.valueOf(j).subtract(x0);
+                BigDecimal x = a.multiply(c).subtract(b.multiply(s)).add(x0).add(bias);
+                BigDecimal y = a.multiply(s).add(b.multiply(c)).add(y0).add(bias);
+                int expected = inside(x, width) && inside(y, height) ? img.getRGB(index(x), index(y)) : 0xFF000000;
+                if (rotated.getRGB(j, i) != expected) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Whether a position falls in a pixel; (-1, 0) counts as pixel 0.
+     */
+    private static boolean inside(BigDecimal position, int length) {
+        return position.compareTo(BigDecimal.ONE.negate()) > 0 && position.compareTo(BigDecimal.valueOf(length)) < 0;
+    }
+
+    private static int index(BigDecimal position) {
+        return Math.max(0, position.setScale(0, RoundingMode.DOWN).intValueExact());
+    }
+}
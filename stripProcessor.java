@@ -0,0 +1,416 @@
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Bounded-memory processing of images that are too large to decode at once.
+ *
+ * The input is decoded in horizontal strips with
+ * {@link ImageReadParam#setSourceRegion}, each strip is run through the
+ * operation chain, and the result is handed to the image writer as a
+ * {@link RenderedImage} whose strips are computed on demand. Writers that pull
+ * rows in order (PNG, TIFF, BMP) therefore never see more than one strip at a
+ * time, and peak memory is proportional to the strip height, not to the image.
+ *
+ * Neighborhood operations get halo rows: a strip is decoded with as many
+ * extra rows above and below it as the chain needs (the blur radius, the
+ * reach of the Gaussian passes, one row for the 3x3 kernels, whole pixelate
+ * blocks), and the halo is cropped away after each step, so the output is
+ * identical to processing the whole image. Operations that move rows across the image (rotations and the
+ * vertical mirror) or that need statistics of the whole image (auto-levels
+ * and equalization) cannot be streamed.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java imageEditor stream --input scan.tif --ops blur:2,sepia --output out.png [--strip 256]
+ * </pre>
+ */
+public class stripProcessor {
+
+    private static final int DEFAULT_STRIP_HEIGHT = 256;
+
+    // Formats whose ImageIO writers request the image a few rows at a time, in order.
+    private static final String[] STREAMING_FORMATS = { "png", "tif", "tiff", "bmp" };
+
+    private static final String USAGE = "Usage: java imageEditor stream --input <file> --ops <chain>"
+            + " --output <file> [--strip ROWS]";
+
+    /**
+     * Entry point of the stream command.
+     *
+     * @param args The command-line arguments, without the leading "stream".
+     * @throws IOException If the input cannot be read or the output written.
+     */
+    public static void main(String[] args) throws IOException {
+        String input = null;
+        String chain = null;
+        String output = null;
+        int stripHeight = DEFAULT_STRIP_HEIGHT;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--input":
+                    input = args[i + 1];
+                    break;
+                case "--ops":
+                    chain = args[i + 1];
+                    break;
+                case "--output":
+                    output = args[i + 1];
+                    break;
+                case "--strip":
+                    try {
+                        stripHeight = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        System.err.println(USAGE);
+                        System.exit(2);
+                        return;
+                    }
+                    break;
+                default:
+                    System.err.println(USAGE);
+                    System.exit(2);
+                    return;
+            }
+        }
+        if (input == null || chain == null || output == null || args.length % 2 != 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        String name = output.toLowerCase(Locale.ROOT);
+        String format = name.substring(name.lastIndexOf('.') + 1);
+        try {
+            process(new File(input), opChain.parse(chain), new File(output), format, stripHeight);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Processes an image file strip by strip.
+     *
+     * @param input       The input image file.
+     * @param ops         The operations to apply.
+     * @param output      The output file.
+     * @param format      The output format; one of png, tif, tiff or bmp.
+     * @param stripHeight The number of output rows computed at a time.
+     * @throws IOException If the input cannot be read or the output written.
+     */
+    public static void process(File input, opChain ops, File output, String format, int stripHeight)
+            throws IOException {
+        if (!isStreamingFormat(format)) {
+            throw new IllegalArgumentException("format " + format + " cannot be written incrementally;"
+                    + " use png, tiff or bmp");
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) {
+                throw new IOException("cannot open " + input);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("no image reader for " + input);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                StripImage image = new StripImage(reader, ops, stripHeight);
+                if (!ImageIO.write(image, format, output)) {
+                    throw new IOException("no " + format + " writer for the processed image");
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean isStreamingFormat(String format) {
+        for (String f : STREAMING_FORMATS) {
+            if (f.equalsIgnoreCase(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A run of steps that needs the same input rows: a single neighborhood or
+     * row-local step, or a run of point operations that is fused into one pass.
+     */
+    private static final class Segment {
+        final List<opChain.Step> steps = new ArrayList<>();
+
+        /**
+         * Returns the rows of the segment input needed to produce [from, to) exactly.
+         */
+        int[] inputRows(int from, int to, int width, int height) {
+            // Row-local steps such as gray and the horizontal mirror have no input region but need no halo.
+            Rectangle out = new Rectangle(0, from, width, to - from);
+            Rectangle rows = opChain.inputRegion(steps.get(0), out, width, height);
+            return rows == null ? new int[] { from, to } : new int[] { rows.y, rows.y + rows.height };
+        }
+    }
+
+    /**
+     * The processed image, computed one strip at a time when the writer asks for it.
+     */
+    private static final class StripImage implements RenderedImage {
+        private final ImageReader reader;
+        private final List<Segment> segments;
+        private final int width;
+        private final int height;
+        private final int stripHeight;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+
+        // The most recently computed strip; writers ask for rows in order.
+        private int cachedStrip = -1;
+        private BufferedImage cached;
+
+        StripImage(ImageReader reader, opChain ops, int stripHeight) throws IOException {
+            if (stripHeight < 1) {
+                throw new IllegalArgumentException("strip height must be positive: " + stripHeight);
+            }
+            this.reader = reader;
+            this.segments = segment(ops);
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+            this.stripHeight = Math.min(stripHeight, height);
+
+            // The first strip tells us the output pixel layout.
+            BufferedImage first = strip(0);
+            this.colorModel = first.getColorModel();
+            this.sampleModel = first.getSampleModel().createCompatibleSampleModel(width, this.stripHeight);
+        }
+
+        private static List<Segment> segment(opChain ops) {
+            List<Segment> segments = new ArrayList<>();
+            Segment points = null;
+            for (opChain.Step step : ops.getSteps()) {
+                switch (step.getName()) {
+                    case "rotate":
+                    case "rotateccw":
+                    case "mirrorv":
+                        throw new IllegalArgumentException("operation '" + step.getName()
+                                + "' moves rows across the image and cannot be streamed");
+                    case "autolevels":
+                    case "equalize":
+                        throw new IllegalArgumentException("operation '" + step.getName()
+                                + "' needs statistics of the whole image and cannot be streamed");
+                    case "scale":
+                    case "fit":
+                        throw new IllegalArgumentException("operation '" + step.getName()
+                                + "' changes the image size and cannot be streamed");
+                    case "brightness":
+                    case "negative":
+                    case "sepia":
+                    case "red":
+                    case "green":
+                    case "blue":
+                        if (points == null) {
+                            points = new Segment();
+                            segments.add(points);
+                        }
+                        points.steps.add(step);
+                        break;
+                    default:
+                        Segment single = new Segment();
+                        single.steps.add(step);
+                        segments.add(single);
+                        points = null;
+                        break;
+                }
+            }
+            return segments;
+        }
+
+        /**
+         * Decodes and processes one strip of output rows.
+         */
+        private synchronized BufferedImage strip(int index) throws IOException {
+            if (index == cachedStrip) {
+                return cached;
+            }
+            int from = index * stripHeight;
+            int to = Math.min(height, from + stripHeight);
+
+            // Walk the chain backwards to find the rows every segment needs.
+            int[][] rows = new int[segments.size() + 1][];
+            rows[segments.size()] = new int[] { from, to };
+            for (int s = segments.size() - 1; s >= 0; s--) {
+                rows[s] = segments.get(s).inputRows(rows[s + 1][0], rows[s + 1][1], width, height);
+            }
+
+            // Decode only the rows the first segment needs.
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, rows[0][0], width, rows[0][1] - rows[0][0]));
+            BufferedImage img = reader.read(0, param);
+
+            // Run each segment and crop its output to the rows the next one needs.
+            for (int s = 0; s < segments.size(); s++) {
+                img = opChain.applySteps(img, segments.get(s).steps);
+                int top = rows[s + 1][0] - rows[s][0];
+                img = img.getSubimage(0, top, width, rows[s + 1][1] - rows[s + 1][0]);
+            }
+
+            cachedStrip = index;
+            cached = img;
+            return img;
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                return (WritableRaster) getData(getBounds());
+            }
+            Rectangle bounds = raster.getBounds().intersection(getBounds());
+            if (!bounds.isEmpty()) {
+                raster.setRect(getData(bounds));
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(getBounds());
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster result = Raster.createWritableRaster(
+                    sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y));
+            int y = rect.y;
+            while (y < rect.y + rect.height) {
+                int index = y / stripHeight;
+                int stripTop = index * stripHeight;
+                int rows = Math.min(rect.y + rect.height, stripTop + stripHeight) - y;
+                BufferedImage strip;
+                try {
+                    strip = strip(index);
+                } catch (IOException e) {
+                    throw new IllegalStateException("cannot decode rows " + y + ".." + (y + rows), e);
+                }
+                Raster part = strip.getRaster().createChild(rect.x, y - stripTop, rect.width, rows, rect.x, y,
+                        null);
+                result.setRect(part);
+                y += rows;
+            }
+            return result;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            int top = tileY * stripHeight;
+            return getData(new Rectangle(0, top, width, Math.min(stripHeight, height - top)));
+        }
+
+        private Rectangle getBounds() {
+            return new Rectangle(0, 0, width, height);
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + stripHeight - 1) / stripHeight;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Checks that the SIMD kernels give the same pixels as the scalar filters.
+ *
+ * Every point filter with a kernel is run through {@link imageEditor} on an
+ * image that holds all 2^24 colors, with a different alpha per row, and the
+ * result is compared with {@link vectorPointKernels} applied to the same
+ * rows. The filters must take their scalar loops, so the check is run with
+ * SIMD turned off for them; the kernels are created here directly:
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out *.java vector/*.java
+ * java --add-modules jdk.incubator.vector -DimageEditor.simd=false -cp out vectorCheck
+ * </pre>
+ *
+ * Exits with status 1 when any filter differs, e.g. after a change to the
+ * rounding of the sepia kernel.
+ */
+final class vectorCheck {
+
+    // Brightness changes to check; those without an exact multiplier keep the table and are skipped.
+    private static final double[] BRIGHTNESS = { 20, -37.5, 150, 7.3, -100, 0, 1, 99.9 };
+
+    private vectorCheck() {
+    }
+
+    /**
+     * Runs the comparison and prints one line per filter.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) {
+        if (vectorSupport.KERNELS != null) {
+            System.err.println("Run with -DimageEditor.simd=false so that the filters use their scalar loops.");
+            System.exit(2);
+        }
+        vectorPointKernels kernels = new vectorPointKernels();
+
+        // All 2^24 colors, one row of 4096 per 2^12 of them, with the alpha changing from row to row.
+        int size = 4096;
+        BufferedImage colors = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                row[x] = (y * 31 & 0xFF) << 24 | y * size + x;
+            }
+            colors.setRGB(0, y, size, 1, row, 0, size);
+        }
+
+        boolean ok = true;
+        ok &= check("negative", colors, imageEditor::negative, r -> kernels.xor(r, size, 0xFFFFFF));
+        ok &= check("red", colors, imageEditor::redFilter, r -> kernels.and(r, size, 0xFFFF0000));
+        ok &= check("green", colors, imageEditor::greenFilter, r -> kernels.and(r, size, 0xFF00FF00));
+        ok &= check("blue", colors, imageEditor::blueFilter, r -> kernels.and(r, size, 0xFF0000FF));
+        ok &= check("sepia", colors, imageEditor::sepia, r -> kernels.sepia(r, size));
+        for (double percent : BRIGHTNESS) {
+            // The table of imageEditor.changeBrightness.
+            byte[] lut = new byte[256];
+            for (int c = 0; c < 256; c++) {
+                lut[c] = (byte) Math.max(0, Math.min(255, (int) (c * (1 + percent / 100))));
+            }
+            int multiplier = vectorSupport.brightnessMultiplier(lut);
+            String name = "brightness:" + percent;
+            if (multiplier < 0) {
+                System.out.println(name + ": no exact multiplier, the table is used");
+                continue;
+            }
+            ok &= check(name, colors, img -> imageEditor.changeBrightness(img, percent),
+                    r -> kernels.scale(r, size, multiplier));
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compares a scalar filter with a kernel row by row.
+     *
+     * @return Whether every pixel matches.
+     */
+    private static boolean check(String name, BufferedImage colors, UnaryOperator<BufferedImage> filter,
+            Consumer<int[]> kernel) {
+        BufferedImage expected = filter.apply(colors);
+        int width = colors.getWidth();
+        int[] row = new int[width];
+        int[] want = new int[width];
+        long mismatches = 0;
+        String first = null;
+        for (int y = 0; y < colors.getHeight(); y++) {
+            colors.getRGB(0, y, width, 1, row, 0, width);
+            kernel.accept(row);
+            expected.getRGB(0, y, width, 1, want, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (row[x] != want[x]) {
+                    if (first == null) {
+                        first = String.format(Locale.ROOT, "%08x: kernel %08x, scalar %08x", y * width + x, row[x],
+                                want[x]);
+                    }
+                    mismatches++;
+                }
+            }
+        }
+        long pixels = (long) width * colors.getHeight();
+        System.out.println(name + ": " + (mismatches == 0 ? pixels + " pixels match"
+                : mismatches + " of " + pixels + " pixels differ, first " + first));
+        return mismatches == 0;
+    }
+}
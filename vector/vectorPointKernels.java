@@ -0,0 +1,138 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD point-op kernels built on the JDK Vector API.
+ *
+ * Each int lane holds one 0xAARRGGBB pixel, so a vector of the preferred
+ * species processes its four byte channels for 4 to 16 pixels at a time.
+ * Loaded by {@link vectorSupport} only when jdk.incubator.vector is present.
+ *
+ * Sepia runs in 12.20 fixed point with every weight rounded up, so the fixed
+ * sum lies less than 765 / 2^20 above the exact weighted sum. The weights
+ * have three decimals, so an exact sum that is not a whole number has a
+ * fraction of at least 0.001 (1048 / 2^20) and truncates to the same level
+ * as the double arithmetic of the scalar filter. Only lanes whose exact sum
+ * may be whole, where the double result can land just below it, are
+ * recomputed with the scalar formula, which keeps the output bit-exact.
+ */
+final class vectorPointKernels implements vectorSupport.Kernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private static final int SHIFT = 20;
+    private static final int FRACTION = (1 << SHIFT) - 1;
+
+    // Fixed sums with a smaller fraction may belong to a whole exact sum.
+    private static final int WHOLE = 1024;
+
+    private static final int RR = weight(0.393);
+    private static final int RG = weight(0.769);
+    private static final int RB = weight(0.189);
+    private static final int GR = weight(0.349);
+    private static final int GG = weight(0.686);
+    private static final int GB = weight(0.168);
+    private static final int BR = weight(0.272);
+    private static final int BG = weight(0.534);
+    private static final int BB = weight(0.131);
+
+    private static int weight(double w) {
+        return (int) Math.ceil(w * (1 << SHIFT));
+    }
+
+    @Override
+    public void xor(int[] row, int length, int bits) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, row, j).lanewise(VectorOperators.XOR, bits).intoArray(row, j);
+        }
+        for (; j < length; j++) {
+            row[j] ^= bits;
+        }
+    }
+
+    @Override
+    public void and(int[] row, int length, int bits) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, row, j).and(bits).intoArray(row, j);
+        }
+        for (; j < length; j++) {
+            row[j] &= bits;
+        }
+    }
+
+    @Override
+    public void scale(int[] row, int length, int multiplier) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+            IntVector argb = IntVector.fromArray(SPECIES, row, j);
+            IntVector r = argb.lanewise(VectorOperators.LSHR, 16).and(0xFF).mul(multiplier)
+                    .lanewise(VectorOperators.LSHR, 16).min(255);
+            IntVector g = argb.lanewise(VectorOperators.LSHR, 8).and(0xFF).mul(multiplier)
+                    .lanewise(VectorOperators.LSHR, 16).min(255);
+            IntVector b = argb.and(0xFF).mul(multiplier).lanewise(VectorOperators.LSHR, 16).min(255);
+            argb.and(0xFF000000).or(r.lanewise(VectorOperators.LSHL, 16)).or(g.lanewise(VectorOperators.LSHL, 8))
+                    .or(b).intoArray(row, j);
+        }
+        for (; j < length; j++) {
+            int argb = row[j];
+            int r = Math.min(255, (((argb >> 16) & 0xFF) * multiplier) >>> 16);
+            int g = Math.min(255, (((argb >> 8) & 0xFF) * multiplier) >>> 16);
+            int b = Math.min(255, ((argb & 0xFF) * multiplier) >>> 16);
+            row[j] = (argb & 0xFF000000) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    @Override
+    public void sepia(int[] row, int length) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+            IntVector argb = IntVector.fromArray(SPECIES, row, j);
+            IntVector r = argb.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = argb.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = argb.and(0xFF);
+
+            // The fixed-point weighted sums; at most 255 * 1.351 * 2^20, well within an int.
+            IntVector red = r.mul(RR).add(g.mul(RG)).add(b.mul(RB));
+            IntVector green = r.mul(GR).add(g.mul(GG)).add(b.mul(GB));
+            IntVector blue = r.mul(BR).add(g.mul(BG)).add(b.mul(BB));
+
+            VectorMask<Integer> whole = red.and(FRACTION).lt(WHOLE)
+                    .or(green.and(FRACTION).lt(WHOLE))
+                    .or(blue.and(FRACTION).lt(WHOLE));
+
+            argb.and(0xFF000000)
+                    .or(red.lanewise(VectorOperators.LSHR, SHIFT).min(255).lanewise(VectorOperators.LSHL, 16))
+                    .or(green.lanewise(VectorOperators.LSHR, SHIFT).min(255).lanewise(VectorOperators.LSHL, 8))
+                    .or(blue.lanewise(VectorOperators.LSHR, SHIFT).min(255))
+                    .intoArray(row, j);
+
+            // Redo the lanes the fixed-point sums cannot decide.
+            if (whole.anyTrue()) {
+                for (long lanes = whole.toLong(); lanes != 0; lanes &= lanes - 1) {
+                    int lane = Long.numberOfTrailingZeros(lanes);
+                    row[j + lane] = sepia(argb.lane(lane));
+                }
+            }
+        }
+        for (; j < length; j++) {
+            row[j] = sepia(row[j]);
+        }
+    }
+
+    /**
+     * The scalar sepia of {@link imageEditor#sepia}, for a single pixel.
+     */
+    private static int sepia(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int red = (int) (r * 0.393 + g * 0.769 + b * 0.189);
+        int green = (int) (r * 0.349 + g * 0.686 + b * 0.168);
+        int blue = (int) (r * 0.272 + g * 0.534 + b * 0.131);
+        return (argb & 0xFF000000) | (Math.min(255, red) << 16) | (Math.min(255, green) << 8) | Math.min(255, blue);
+    }
+}
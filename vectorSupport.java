@@ -0,0 +1,112 @@
+/**
+ * Optional SIMD backend for the point operations.
+ *
+ * The kernels live in vector/vectorPointKernels.java, which uses the
+ * incubating jdk.incubator.vector module and is therefore only compiled and
+ * used on request:
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out *.java vector/*.java
+ * java --add-modules jdk.incubator.vector -cp out imageEditor ...
+ * </pre>
+ *
+ * When the module is not in the boot layer, the kernel class is missing, or
+ * the "imageEditor.simd" system property is "false", {@link #KERNELS} is null
+ * and the filters run their scalar loops. The kernels produce exactly the
+ * same pixels as the scalar code; vector/vectorCheck.java compares them on
+ * every color:
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector -DimageEditor.simd=false -cp out vectorCheck
+ * </pre>
+ */
+final class vectorSupport {
+
+    /**
+     * Kernels that work in place on rows of 0xAARRGGBB pixels and never change alpha.
+     */
+    interface Kernels {
+        /**
+         * XORs every pixel with a mask.
+         *
+         * @param row    The pixels.
+         * @param length The number of pixels.
+         * @param bits   The 0xRRGGBB mask.
+         */
+        void xor(int[] row, int length, int bits);
+
+        /**
+         * ANDs every pixel with a mask.
+         *
+         * @param row    The pixels.
+         * @param length The number of pixels.
+         * @param bits   The mask, with 0xFF000000 set to keep alpha.
+         */
+        void and(int[] row, int length, int bits);
+
+        /**
+         * Scales every color channel c to min(255, (c * multiplier) >> 16).
+         *
+         * @param row        The pixels.
+         * @param length     The number of pixels.
+         * @param multiplier The factor in 16.16 fixed point, from {@link #brightnessMultiplier}.
+         */
+        void scale(int[] row, int length, int multiplier);
+
+        /**
+         * Applies the sepia matrix of {@link imageEditor#sepia}.
+         *
+         * @param row    The pixels.
+         * @param length The number of pixels.
+         */
+        void sepia(int[] row, int length);
+    }
+
+    /** The SIMD kernels, or null to use the scalar code. */
+    static final Kernels KERNELS = load();
+
+    private vectorSupport() {
+    }
+
+    private static Kernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("imageEditor.simd", "true"))) {
+            return null;
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (Kernels) Class.forName("vectorPointKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds a 16.16 fixed-point multiplier that reproduces a brightness table
+     * exactly, i.e. min(255, (c * m) >> 16) == lut[c] for every level c.
+     *
+     * @param lut The 256 output levels of a brightness change.
+     * @return The multiplier, or -1 if there is none and the table must be used.
+     */
+    static int brightnessMultiplier(byte[] lut) {
+        // The smallest multiplier that reaches every unclamped level.
+        long m = 0;
+        for (int c = 1; c < 256; c++) {
+            int level = lut[c] & 0xFF;
+            if (level < 255) {
+                m = Math.max(m, ((long) level << 16) / c + (((long) level << 16) % c == 0 ? 0 : 1));
+            }
+        }
+        // 255 * m must not overflow an int lane.
+        if (m > Integer.MAX_VALUE / 255) {
+            return -1;
+        }
+        for (int c = 0; c < 256; c++) {
+            if (Math.min(255, (c * (int) m) >> 16) != (lut[c] & 0xFF)) {
+                return -1;
+            }
+        }
+        return (int) m;
+    }
+}